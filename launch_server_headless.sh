@@ -0,0 +1,2 @@
+#!/bin/sh
+java -Djava.awt.headless=true -classpath bin wifindus.eye.server.HeadlessServer -1 "$@"
@@ -359,6 +359,9 @@ public final class Debugger
 		stream.println(message);
 		
 		//write to listeners
+		//(only touching the event queue if there are any, so headless tools never start AWT)
+		if (listeners.isEmpty())
+			return;
 		SwingUtilities.invokeLater(new Runnable() {
 		     public void run()
 		     {
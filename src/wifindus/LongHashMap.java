@@ -0,0 +1,234 @@
+package wifindus;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A hash map keyed by primitive <code>long</code>s, for hot lookups where boxing keys
+ * (or building and hashing Strings) would cost more than the lookup itself.
+ * <br><br>
+ * Uses open addressing with linear probing over parallel key/value arrays, so a lookup is a
+ * multiply, a shift and (usually) one array read. Null values are not permitted; a null value
+ * slot is what marks a slot as empty. Not thread-safe.
+ * @author Mark 'marzer' Gillard
+ * @param <V> The type of value stored in the map.
+ */
+public class LongHashMap<V>
+{
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+	private long[] keys;
+	private Object[] values;
+	private int mask;
+	private int shift;
+	private int size = 0;
+	private int resizeThreshold;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new LongHashMap with a default initial capacity.
+	 */
+	public LongHashMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * Creates a new LongHashMap.
+	 * @param expectedSize The number of entries the map should be able to hold before it needs to grow.
+	 * @throws IllegalArgumentException if expectedSize is negative or greater than 2^29.
+	 */
+	public LongHashMap(int expectedSize)
+	{
+		if (expectedSize < 0 || expectedSize > (1 << 29))
+			throw new IllegalArgumentException("Parameter 'expectedSize' must be between 0 and 2^29 (inclusive).");
+
+		//keep the load factor at or below 0.5
+		int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+		allocate(capacity);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Gets the value associated with a key.
+	 * @param key The key to look up.
+	 * @return The value associated with the key, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public final V get(long key)
+	{
+		int index = indexOf(key);
+		return index < 0 ? null : (V)values[index];
+	}
+
+	/**
+	 * Tests if the map contains a key.
+	 * @param key The key to look for.
+	 * @return TRUE if the key has a value associated with it.
+	 */
+	public final boolean containsKey(long key)
+	{
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Associates a value with a key, replacing any existing value.
+	 * @param key The key.
+	 * @param value The value.
+	 * @return The value previously associated with the key, or null if there was none.
+	 * @throws NullPointerException if value is null.
+	 */
+	@SuppressWarnings("unchecked")
+	public final V put(long key, V value)
+	{
+		if (value == null)
+			throw new NullPointerException("Parameter 'value' cannot be null.");
+
+		int index = slot(key);
+		while (values[index] != null)
+		{
+			if (keys[index] == key)
+			{
+				V old = (V)values[index];
+				values[index] = value;
+				return old;
+			}
+			index = (index + 1) & mask;
+		}
+		keys[index] = key;
+		values[index] = value;
+		if (++size > resizeThreshold)
+			rehash(keys.length << 1);
+		return null;
+	}
+
+	/**
+	 * Removes the value associated with a key.
+	 * @param key The key.
+	 * @return The value that was associated with the key, or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public final V remove(long key)
+	{
+		int index = indexOf(key);
+		if (index < 0)
+			return null;
+		V old = (V)values[index];
+
+		//shift following entries in the same probe run back into the gap
+		//(this keeps lookups correct without needing tombstones)
+		int gap = index;
+		int next = (gap + 1) & mask;
+		while (values[next] != null)
+		{
+			int home = slot(keys[next]);
+			if (((next - home) & mask) >= ((next - gap) & mask))
+			{
+				keys[gap] = keys[next];
+				values[gap] = values[next];
+				gap = next;
+			}
+			next = (next + 1) & mask;
+		}
+		values[gap] = null;
+		size--;
+		return old;
+	}
+
+	/**
+	 * Removes all entries from the map. Capacity is retained.
+	 */
+	public final void clear()
+	{
+		if (size == 0)
+			return;
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * @return the number of entries in the map.
+	 */
+	public final int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @return TRUE if the map has no entries.
+	 */
+	public final boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Copies every value in the map into a collection, in no particular order.
+	 * @param target The collection to add values to.
+	 * @return The target collection.
+	 * @throws NullPointerException if target is null.
+	 */
+	@SuppressWarnings("unchecked")
+	public final <C extends Collection<? super V>> C copyValuesTo(C target)
+	{
+		if (target == null)
+			throw new NullPointerException("Parameter 'target' cannot be null.");
+		for (int i = 0; i < values.length; i++)
+			if (values[i] != null)
+				target.add((V)values[i]);
+		return target;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private int slot(long key)
+	{
+		return (int)((key * GOLDEN_RATIO) >>> shift);
+	}
+
+	private int indexOf(long key)
+	{
+		int index = slot(key);
+		while (values[index] != null)
+		{
+			if (keys[index] == key)
+				return index;
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		resizeThreshold = capacity >> 1;
+	}
+
+	private void rehash(int capacity)
+	{
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+		allocate(capacity);
+		for (int i = 0; i < oldValues.length; i++)
+		{
+			if (oldValues[i] == null)
+				continue;
+			int index = slot(oldKeys[i]);
+			while (values[index] != null)
+				index = (index + 1) & mask;
+			keys[index] = oldKeys[i];
+			values[index] = oldValues[i];
+		}
+	}
+}
@@ -6,16 +6,52 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A wrapper around MySQL's Connector/J.
+ * <br><br>
+ * Rather than a single connection, this keeps a bounded pool of them, so that any number of threads can
+ * query and update the database at once (e.g. a background poll and a write from the UI) without
+ * waiting on each other. Each Statement created by {@link #createStatement()} or {@link #prepareStatement(String)}
+ * borrows a connection of its own, which goes back to the pool when the statement is passed to
+ * {@link #release(Statement...)}; statements must therefore always be released, ideally in a finally block.
+ * If every connection is in use, creating a statement waits for one to be released, up to the borrow timeout.
+ * Connections that have sat idle for a while are checked before being handed out, and ones idle for longer
+ * than the idle timeout are closed.
+ * <br><br>
+ * Each connection also keeps the last {@link #STATEMENT_CACHE_SIZE} PreparedStatements made on it, keyed by their SQL,
+ * which are prepared on the server once and then reused: releasing one of them just clears its parameters. Statements
+ * should therefore be written with '?' placeholders and bound values, so that all calls of the same shape share one.
  * @author Mark 'marzer' Gillard
  */
 public class MySQLConnection
 {
+	/**
+	 * The number of prepared statements kept open on each pooled connection.
+	 */
+	public static final int STATEMENT_CACHE_SIZE = 64;
+	//idle connections are checked with Connection.isValid() before reuse if they've been idle this long (ms)
+	private static final long VALIDATE_AFTER = 5000L;
+	//seconds to wait for a validation reply
+	private static final int VALIDATE_TIMEOUT = 2;
 	private static boolean driverLoaded = false;
-	private Connection connection = null;
-
+	private final Object pool = new Object();
+	private final ArrayDeque<Pooled> idle = new ArrayDeque<>();
+	private final IdentityHashMap<Statement, Lease> leases = new IdentityHashMap<>();
+	private final AtomicLong statementCacheHits = new AtomicLong();
+	private final AtomicLong statementCacheMisses = new AtomicLong();
+	private volatile String url = null;
+	private int open = 0;
+	private int maxSize = 4;
+	private long borrowTimeout = 5000L;
+	private long idleTimeout = 60000L;
+	
 	/////////////////////////////////////////////////////////////////////
 	// PUBLIC METHODS
 	/////////////////////////////////////////////////////////////////////
@@ -32,7 +68,7 @@ public class MySQLConnection
 	public final void connect(String address, int port, String database, String username, String password) throws IllegalStateException
 	{
 		//sanity checks
-		if (connection != null)
+		if (url != null)
 			throw new IllegalStateException("A connection has already been made! Use disconnect() first.");
 		if (address == null)
 			throw new NullPointerException("Parameter 'address' cannot be null.");
@@ -52,25 +88,25 @@ public class MySQLConnection
 			throw new NullPointerException("Parameter 'password' cannot be null.");
 		if ((password = password.trim()).isEmpty())
 			throw new IllegalArgumentException("Parameter 'password' cannot be an empty string");
-		
+	
 		//load mysql connector/j driver
 		if (!loadDriver())
 			throw new IllegalStateException("The Connector/J driver could not be loaded.");
-		
-		//make connection
-		try
-		{			
-			connection = DriverManager.getConnection(
-				"jdbc:mysql://" + address + ":" + port + "/" + database
-				+ "?user=" + username
-				+ "&password=" + password);
-		}
-		catch (SQLException ex)
+	
+		//make the first connection now, so bad settings are reported here and not at the first query
+		//(rewriteBatchedStatements lets Connector/J send JDBC batches of INSERTs as single multi-row statements,
+		//and useServerPrepStmts makes prepared statements real server-side ones, so cached ones aren't re-parsed)
+		String connectionUrl = "jdbc:mysql://" + address + ":" + port + "/" + database
+			+ "?user=" + username
+			+ "&password=" + password
+			+ "&rewriteBatchedStatements=true"
+			+ "&useServerPrepStmts=true";
+		Connection connection = openConnection(connectionUrl);
+		synchronized (pool)
 		{
-			Debugger.e("SQLException: " + ex.getMessage());
-			Debugger.e("SQLState: " + ex.getSQLState());
-			Debugger.e("VendorError: " + ex.getErrorCode());
-		    throw new IllegalStateException("Connecting to the MySQL server failed.");
+			url = connectionUrl;
+			open++;
+			idle.addLast(new Pooled(connection));
 		}
 	}
 	
@@ -100,45 +136,77 @@ public class MySQLConnection
 	}
 	
 	/**
-	 * Disconnects from the database, freeing the connection resources. If you have any ResultSets,
-	 * Statements or PreparedStatements cached, you should call release() on them before disconnecting. 
+	 * Sets the limits of the connection pool. May be called at any time; connections already open are unaffected.
+	 * @param maxSize The most connections that may be open at once.
+	 * @param borrowTimeout The longest to wait for a free connection when all of them are in use, in milliseconds.
+	 * @param idleTimeout Connections left unused for longer than this are closed, in milliseconds.
+	 * @throws IllegalArgumentException if any of the parameters are less than 1.
 	 */
-	public final void disconnect()
+	public final void setPoolLimits(int maxSize, int borrowTimeout, int idleTimeout)
 	{
-		try
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Parameter 'maxSize' must be greater than zero.");
+		if (borrowTimeout < 1)
+			throw new IllegalArgumentException("Parameter 'borrowTimeout' must be greater than zero.");
+		if (idleTimeout < 1)
+			throw new IllegalArgumentException("Parameter 'idleTimeout' must be greater than zero.");
+	
+		synchronized (pool)
 		{
-			if (connection != null)
-				connection.close();
+			this.maxSize = maxSize;
+			this.borrowTimeout = borrowTimeout;
+			this.idleTimeout = idleTimeout;
+			pool.notifyAll();
 		}
-		catch (Exception e)
+	}
+	
+	/**
+	 * Disconnects from the database, freeing the connection resources. If you have any ResultSets,
+	 * Statements or PreparedStatements cached, you should call release() on them before disconnecting.
+	 * Connections still in use by unreleased statements are closed when they're released.
+	 */
+	public final void disconnect()
+	{
+		synchronized (pool)
 		{
-			//
+			url = null;
+			while (!idle.isEmpty())
+				close(idle.removeFirst());
+			pool.notifyAll();
 		}
-		connection = null;
 	}
 	
 	/**
-	 * Frees the resources used by the given Statements or PreparedStatements.
+	 * Frees the resources used by the given Statements or PreparedStatements,
+	 * returning the connections they were using to the pool. Cached PreparedStatements are
+	 * kept open for reuse, with their parameters and batches cleared.
 	 * @param statements One or more Statement objects to release.
 	 * @throws IllegalStateException If no MySQL connection has been established.
 	 */
 	public final void release(Statement... statements) throws IllegalStateException
 	{
-		if (connection == null)
-			throw new IllegalStateException("No MySQL connection has been established.");
-		
 		for ( Statement statement : statements )
 		{
-			try
+			if (statement == null)
+				continue;
+			Lease lease;
+			synchronized (pool)
 			{
-				if (statement != null)
-					statement.close();
+				lease = leases.remove(statement);
 			}
-			catch (Exception e)
+			if (lease == null || lease.key == null)
+				closeQuietly(statement);
+			else if (!reset((PreparedStatement)statement))
 			{
-				//
+				lease.pooled.statements.remove(lease.key);
+				closeQuietly(statement);
 			}
+			if (lease != null)
+				giveBack(lease.pooled);
 		}
+	
+		if (url == null)
+			throw new IllegalStateException("No MySQL connection has been established.");
 	}
 	
 	/**
@@ -148,9 +216,9 @@ public class MySQLConnection
 	 */
 	public final void release(ResultSet... resultSets) throws IllegalStateException
 	{
-		if (connection == null)
+		if (url == null)
 			throw new IllegalStateException("No MySQL connection has been established.");
-		
+	
 		for ( ResultSet resultSet : resultSets )
 		{
 			try
@@ -166,46 +234,121 @@ public class MySQLConnection
 	}
 	
 	/**
-	 * Creates a Statement object using the MySQL connection.
-	 * @throws IllegalStateException If no MySQL connection has been established or if an error occurs.
+	 * Creates a Statement object using a connection from the pool.
+	 * The statement must be passed to {@link #release(Statement...)} when finished with.
+	 * @throws IllegalStateException If no MySQL connection has been established, if no connection became free
+	 * before the borrow timeout, or if an error occurs.
 	 */
 	public final Statement createStatement() throws IllegalStateException
 	{
-		if (connection == null)
-			throw new IllegalStateException("No MySQL connection has been established.");
+		Pooled pooled = borrow();
 		try
 		{
-			return connection.createStatement();
+			return lease(pooled.connection.createStatement(), pooled, null);
 		}
 		catch (SQLException ex)
 		{
 			Debugger.e("SQLException: " + ex.getMessage());
 			Debugger.e("SQLState: " + ex.getSQLState());
 			Debugger.e("VendorError: " + ex.getErrorCode());
+			giveBack(pooled);
 		    throw new IllegalStateException("There was an error creating a statement.");
 		}
 	}
 	
 	/**
-	 * Creates a PreparedStatement object using the MySQL connection.
+	 * Gets a PreparedStatement object using a connection from the pool, reusing the connection's cached
+	 * statement for the same query if it has one.
+	 * The statement must be passed to {@link #release(Statement...)} when finished with.
 	 * @param query The SQL query to execute.
-	 * @throws IllegalStateException If no MySQL connection has been established or if an error occurs.
+	 * @throws IllegalStateException If no MySQL connection has been established, if no connection became free
+	 * before the borrow timeout, or if an error occurs.
+	 * @throws NullPointerException if query is null.
 	 */
 	public final PreparedStatement prepareStatement(String query) throws IllegalStateException
 	{
-		if (connection == null)
-			throw new IllegalStateException("No MySQL connection has been established.");
+		return prepareStatement(query, Statement.NO_GENERATED_KEYS);
+	}
+	
+	/**
+	 * Gets a PreparedStatement object using a connection from the pool, reusing the connection's cached
+	 * statement for the same query if it has one.
+	 * The statement must be passed to {@link #release(Statement...)} when finished with.
+	 * @param query The SQL query to execute.
+	 * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS if the statement's getGeneratedKeys() will be used,
+	 * Statement.NO_GENERATED_KEYS otherwise.
+	 * @throws IllegalStateException If no MySQL connection has been established, if no connection became free
+	 * before the borrow timeout, or if an error occurs.
+	 * @throws NullPointerException if query is null.
+	 */
+	public final PreparedStatement prepareStatement(String query, int autoGeneratedKeys) throws IllegalStateException
+	{
+		if (query == null)
+			throw new NullPointerException("Parameter 'query' cannot be null.");
+		
+		//returning generated keys changes how a statement is prepared, so it's part of the statement's shape
+		String key = autoGeneratedKeys == Statement.RETURN_GENERATED_KEYS ? "+" + query : query;
+		Pooled pooled = borrow();
+		PreparedStatement statement = pooled.statements.get(key);
+		if (statement != null)
+		{
+			statementCacheHits.incrementAndGet();
+			return lease(statement, pooled, key);
+		}
+		
+		statementCacheMisses.incrementAndGet();
 		try
 		{
-			return connection.prepareStatement(query);
+			statement = pooled.connection.prepareStatement(query, autoGeneratedKeys);
 		}
 		catch (SQLException ex)
 		{
 			Debugger.e("SQLException: " + ex.getMessage());
 			Debugger.e("SQLState: " + ex.getSQLState());
 			Debugger.e("VendorError: " + ex.getErrorCode());
+			giveBack(pooled);
 		    throw new IllegalStateException("There was an error creating a statement.");
 		}
+		pooled.statements.put(key, statement);
+		return lease(statement, pooled, key);
+	}
+	
+	/**
+	 * @return the number of times a cached prepared statement was reused.
+	 */
+	public final long getStatementCacheHitCount()
+	{
+		return statementCacheHits.get();
+	}
+	
+	/**
+	 * @return the number of times a statement had to be prepared because it wasn't in the connection's cache.
+	 */
+	public final long getStatementCacheMissCount()
+	{
+		return statementCacheMisses.get();
+	}
+	
+	/**
+	 * @return the number of connections currently open, whether in use or idle.
+	 */
+	public final int getOpenConnectionCount()
+	{
+		synchronized (pool)
+		{
+			return open;
+		}
+	}
+	
+	/**
+	 * @return the number of open connections not currently in use.
+	 */
+	public final int getIdleConnectionCount()
+	{
+		synchronized (pool)
+		{
+			return idle.size();
+		}
 	}
 	
 	/**
@@ -214,7 +357,7 @@ public class MySQLConnection
 	 * @param columnLabel The name of the column holding the value
 	 * @return A Double containing the given value, or null if it was SQL NULL.
 	 * @throws SQLException if an SQL error occurs.
-	 * @throws NullPointerException if resultSet or columnLabel are null. 
+	 * @throws NullPointerException if resultSet or columnLabel are null.
 	 */
 	public static final Double getNullableDouble(ResultSet resultSet, String columnLabel) throws SQLException
 	{
@@ -222,7 +365,7 @@ public class MySQLConnection
 			throw new NullPointerException("Parameter 'resultSet' cannot be null.");
 		if (columnLabel == null)
 			throw new NullPointerException("Parameter 'columnLabel' cannot be null.");
-		
+	
 		Double val = Double.valueOf(resultSet.getDouble(columnLabel));
 		return resultSet.wasNull() ? null : val;
 	}
@@ -233,7 +376,7 @@ public class MySQLConnection
 	 * @param columnLabel The name of the column holding the value
 	 * @return An Integer containing the given value, or null if it was SQL NULL.
 	 * @throws SQLException if an SQL error occurs.
-	 * @throws NullPointerException if resultSet or columnLabel are null. 
+	 * @throws NullPointerException if resultSet or columnLabel are null.
 	 */
 	public static final Integer getNullableInt(ResultSet resultSet, String columnLabel) throws SQLException
 	{
@@ -241,7 +384,7 @@ public class MySQLConnection
 			throw new NullPointerException("Parameter 'resultSet' cannot be null.");
 		if (columnLabel == null)
 			throw new NullPointerException("Parameter 'columnLabel' cannot be null.");
-		
+	
 		Integer val = Integer.valueOf(resultSet.getInt(columnLabel));
 		return resultSet.wasNull() ? null : val;
 	}
@@ -265,4 +408,256 @@ public class MySQLConnection
         }
 		return false;
 	}
+	
+	private static Connection openConnection(String connectionUrl) throws IllegalStateException
+	{
+		try
+		{
+			return DriverManager.getConnection(connectionUrl);
+		}
+		catch (SQLException ex)
+		{
+			Debugger.e("SQLException: " + ex.getMessage());
+			Debugger.e("SQLState: " + ex.getSQLState());
+			Debugger.e("VendorError: " + ex.getErrorCode());
+		    throw new IllegalStateException("Connecting to the MySQL server failed.");
+		}
+	}
+	
+	/**
+	 * Takes a connection from the pool, opening a new one if there's room, or waiting for one to be given back.
+	 */
+	private Pooled borrow() throws IllegalStateException
+	{
+		while (true)
+		{
+			Pooled pooled = null;
+			String connectionUrl;
+			synchronized (pool)
+			{
+				long deadline = System.nanoTime() + borrowTimeout * 1000000L;
+				while (true)
+				{
+					if (url == null)
+						throw new IllegalStateException("No MySQL connection has been established.");
+					evictIdle();
+	
+					//most recently used first, so the least used ones are left to time out
+					if (!idle.isEmpty())
+					{
+						pooled = idle.removeLast();
+						break;
+					}
+					if (open < maxSize)
+					{
+						open++;
+						break;
+					}
+	
+					long remaining = (deadline - System.nanoTime()) / 1000000L;
+					if (remaining <= 0L)
+						throw new IllegalStateException("Timed out waiting for a free MySQL connection ("
+							+ open + " in use).");
+					try
+					{
+						pool.wait(remaining);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while waiting for a free MySQL connection.");
+					}
+				}
+				connectionUrl = url;
+			}
+	
+			//new connection
+			if (pooled == null)
+			{
+				try
+				{
+					return new Pooled(openConnection(connectionUrl));
+				}
+				catch (IllegalStateException e)
+				{
+					synchronized (pool)
+					{
+						open--;
+						pool.notifyAll();
+					}
+					throw e;
+				}
+			}
+	
+			//idle connection; make sure the server hasn't dropped it in the meantime
+			if (System.nanoTime() - pooled.idleSince < VALIDATE_AFTER * 1000000L || isValid(pooled))
+				return pooled;
+			Debugger.w("Discarding a stale MySQL connection.");
+			synchronized (pool)
+			{
+				close(pooled);
+				pool.notifyAll();
+			}
+		}
+	}
+	
+	private <T extends Statement> T lease(T statement, Pooled pooled, String key)
+	{
+		synchronized (pool)
+		{
+			leases.put(statement, new Lease(pooled, key));
+		}
+		return statement;
+	}
+	
+	private static boolean reset(PreparedStatement statement)
+	{
+		try
+		{
+			statement.clearParameters();
+			statement.clearBatch();
+			return true;
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+	
+	private static void closeQuietly(Statement statement)
+	{
+		try
+		{
+			statement.close();
+		}
+		catch (Exception e)
+		{
+			//
+		}
+	}
+	
+	private void giveBack(Pooled pooled)
+	{
+		boolean closed;
+		try
+		{
+			closed = pooled.connection.isClosed();
+		}
+		catch (SQLException e)
+		{
+			closed = true;
+		}
+	
+		synchronized (pool)
+		{
+			if (closed || url == null || open > maxSize)
+				close(pooled);
+			else
+			{
+				pooled.idleSince = System.nanoTime();
+				idle.addLast(pooled);
+			}
+			pool.notifyAll();
+		}
+	}
+	
+	/**
+	 * Closes connections that have been idle for longer than the idle timeout. Must hold the pool lock.
+	 */
+	private void evictIdle()
+	{
+		long cutoff = System.nanoTime() - idleTimeout * 1000000L;
+		Iterator<Pooled> iterator = idle.iterator();
+		while (iterator.hasNext())
+		{
+			Pooled pooled = iterator.next();
+			if (pooled.idleSince - cutoff >= 0L)
+				break; //the rest were returned more recently
+			iterator.remove();
+			close(pooled);
+		}
+	}
+	
+	/**
+	 * Closes a connection that's been taken out of the pool. Must hold the pool lock.
+	 */
+	private void close(Pooled pooled)
+	{
+		open--;
+		try
+		{
+			pooled.connection.close();
+		}
+		catch (Exception e)
+		{
+			//
+		}
+	}
+	
+	private static boolean isValid(Pooled pooled)
+	{
+		try
+		{
+			return pooled.connection.isValid(VALIDATE_TIMEOUT);
+		}
+		catch (SQLException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * A pooled connection, its statement cache and the time it was last given back.
+	 * The cache is only touched by whoever has the connection borrowed.
+	 */
+	private static final class Pooled
+	{
+		final Connection connection;
+		final StatementCache statements = new StatementCache();
+		long idleSince;
+	
+		Pooled(Connection connection)
+		{
+			this.connection = connection;
+			idleSince = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * A statement handed out by the pool; key is its cache key, or null if it isn't cached.
+	 */
+	private static final class Lease
+	{
+		final Pooled pooled;
+		final String key;
+		
+		Lease(Pooled pooled, String key)
+		{
+			this.pooled = pooled;
+			this.key = key;
+		}
+	}
+	
+	/**
+	 * A connection's prepared statements, least recently used first. The least recently used
+	 * statement is closed when the cache is full.
+	 */
+	private static final class StatementCache extends LinkedHashMap<String, PreparedStatement>
+	{
+		private static final long serialVersionUID = 4781305583219042217L;
+		
+		StatementCache()
+		{
+			super(16, 0.75f, true);
+		}
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest)
+		{
+			if (size() <= STATEMENT_CACHE_SIZE)
+				return false;
+			closeQuietly(eldest.getValue());
+			return true;
+		}
+	}
 }
@@ -1,15 +1,332 @@
 package wifindus;
 
-import java.util.HashMap;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 
 /**
- * A general-purpose subclass of HashMap for storing Objects keyed by strings.
+ * One row of a query's results, with its columns addressed by ordinal rather than by name.
  * <br><br>
- * Honestly, the only reason I made this class was because I was fucking sick
- * of typing <code>HashMap&lt;String, Object&gt;</code>.
+ * Numeric, boolean and timestamp columns are stored unboxed in a single <code>long[]</code>
+ * (doubles as their raw bits, timestamps as milliseconds), other values (strings, enums) in an
+ * <code>Object[]</code>, and SQL NULLs in a bitmap, so a row costs three allocations however many
+ * columns it has. Each table defines the ordinals of its columns as constants (e.g. {@link wifindus.eye.Device#COLUMN_LATITUDE})
+ * and selects them explicitly, in that order, so the read* methods can use JDBC column indices directly.
+ * <br><br>
+ * Reading a column with the wrong accessor for its type gives a meaningless value rather than an exception.
  * @author Mark 'marzer' Gillard
  */
-public class MySQLResultRow extends HashMap<String, Object>
+public final class MySQLResultRow
 {
-	private static final long serialVersionUID = 3072456621389628596L;
+	/**
+	 * The most columns a row can have.
+	 */
+	public static final int MAX_COLUMNS = 64;
+	private final long[] values;
+	private final Object[] objects;
+	private long nulls = 0L;
+	
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * Creates a new MySQLResultRow with every column NULL.
+	 * @param columns The number of columns.
+	 * @throws IllegalArgumentException if columns is less than 1 or greater than {@link #MAX_COLUMNS}.
+	 */
+	public MySQLResultRow(int columns)
+	{
+		if (columns < 1 || columns > MAX_COLUMNS)
+			throw new IllegalArgumentException("Parameter 'columns' must be between 1 and " + MAX_COLUMNS + " (inclusive).");
+		values = new long[columns];
+		objects = new Object[columns];
+		nulls = columns == MAX_COLUMNS ? -1L : (1L << columns) - 1L;
+	}
+	
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+	
+	/**
+	 * @return the number of columns in this row.
+	 */
+	public final int getColumnCount()
+	{
+		return values.length;
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return TRUE if the column is SQL NULL.
+	 */
+	public final boolean isNull(int column)
+	{
+		checkColumn(column);
+		return (nulls & (1L << column)) != 0L;
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as an int, or 0 if it is NULL.
+	 */
+	public final int getInt(int column)
+	{
+		checkColumn(column);
+		return (int)values[column];
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as a long, or 0 if it is NULL.
+	 */
+	public final long getLong(int column)
+	{
+		checkColumn(column);
+		return values[column];
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as a double, or 0.0 if it is NULL.
+	 */
+	public final double getDouble(int column)
+	{
+		checkColumn(column);
+		return Double.longBitsToDouble(values[column]);
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as a boolean, or FALSE if it is NULL.
+	 */
+	public final boolean getBoolean(int column)
+	{
+		checkColumn(column);
+		return values[column] != 0L;
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return a new Timestamp holding the column's value, or null if it is NULL.
+	 */
+	public final Timestamp getTimestamp(int column)
+	{
+		return isNull(column) ? null : new Timestamp(values[column]);
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as a String, or null if it is NULL.
+	 */
+	public final String getString(int column)
+	{
+		return (String)getObject(column);
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as an Object (for string and enum columns), or null if it is NULL.
+	 */
+	public final Object getObject(int column)
+	{
+		checkColumn(column);
+		return objects[column];
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as a Double, or null if it is NULL.
+	 */
+	public final Double getNullableDouble(int column)
+	{
+		return isNull(column) ? null : Double.valueOf(Double.longBitsToDouble(values[column]));
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @return the column's value as an Integer, or null if it is NULL.
+	 */
+	public final Integer getNullableInt(int column)
+	{
+		return isNull(column) ? null : Integer.valueOf((int)values[column]);
+	}
+	
+	/**
+	 * Compares a double column with a nullable value without boxing the column.
+	 * @param column The column's ordinal.
+	 * @param value The value to compare with.
+	 * @return TRUE if both are null, or both are not null and equal (within {@link MathHelper#equal(double, double)}).
+	 */
+	public final boolean matches(int column, Double value)
+	{
+		if (isNull(column))
+			return value == null;
+		return value != null && MathHelper.equal(value.doubleValue(), Double.longBitsToDouble(values[column]));
+	}
+	
+	/**
+	 * Sets a column to SQL NULL.
+	 * @param column The column's ordinal.
+	 */
+	public final void setNull(int column)
+	{
+		checkColumn(column);
+		values[column] = 0L;
+		objects[column] = null;
+		nulls |= 1L << column;
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @param value The column's new value.
+	 */
+	public final void setInt(int column, int value)
+	{
+		setLong(column, value);
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @param value The column's new value.
+	 */
+	public final void setLong(int column, long value)
+	{
+		checkColumn(column);
+		values[column] = value;
+		nulls &= ~(1L << column);
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @param value The column's new value.
+	 */
+	public final void setDouble(int column, double value)
+	{
+		setLong(column, Double.doubleToRawLongBits(value));
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @param value The column's new value.
+	 */
+	public final void setBoolean(int column, boolean value)
+	{
+		setLong(column, value ? 1L : 0L);
+	}
+	
+	/**
+	 * @param column The column's ordinal.
+	 * @param value The column's new value (for string and enum columns). Null sets the column to SQL NULL.
+	 */
+	public final void setObject(int column, Object value)
+	{
+		if (value == null)
+		{
+			setNull(column);
+			return;
+		}
+		checkColumn(column);
+		objects[column] = value;
+		nulls &= ~(1L << column);
+	}
+	
+	/**
+	 * Reads an integer column from the current row of a ResultSet.
+	 * @param resultSet The ResultSet, whose columns must be in this row's ordinal order.
+	 * @param column The column's ordinal.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public final void readInt(ResultSet resultSet, int column) throws SQLException
+	{
+		int value = resultSet.getInt(column + 1);
+		if (resultSet.wasNull())
+			setNull(column);
+		else
+			setLong(column, value);
+	}
+	
+	/**
+	 * Reads a floating-point or decimal column from the current row of a ResultSet.
+	 * @param resultSet The ResultSet, whose columns must be in this row's ordinal order.
+	 * @param column The column's ordinal.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public final void readDouble(ResultSet resultSet, int column) throws SQLException
+	{
+		double value = resultSet.getDouble(column + 1);
+		if (resultSet.wasNull())
+			setNull(column);
+		else
+			setDouble(column, value);
+	}
+	
+	/**
+	 * Reads a boolean (e.g. tinyint) column from the current row of a ResultSet.
+	 * @param resultSet The ResultSet, whose columns must be in this row's ordinal order.
+	 * @param column The column's ordinal.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public final void readBoolean(ResultSet resultSet, int column) throws SQLException
+	{
+		boolean value = resultSet.getBoolean(column + 1);
+		if (resultSet.wasNull())
+			setNull(column);
+		else
+			setBoolean(column, value);
+	}
+	
+	/**
+	 * Reads a datetime or timestamp column from the current row of a ResultSet.
+	 * @param resultSet The ResultSet, whose columns must be in this row's ordinal order.
+	 * @param column The column's ordinal.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public final void readTimestamp(ResultSet resultSet, int column) throws SQLException
+	{
+		Timestamp value = resultSet.getTimestamp(column + 1);
+		if (value == null)
+			setNull(column);
+		else
+			setLong(column, value.getTime());
+	}
+	
+	/**
+	 * Reads a string column from the current row of a ResultSet.
+	 * @param resultSet The ResultSet, whose columns must be in this row's ordinal order.
+	 * @param column The column's ordinal.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public final void readString(ResultSet resultSet, int column) throws SQLException
+	{
+		setObject(column, resultSet.getString(column + 1));
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder("MySQLResultRow[");
+		for (int i = 0; i < values.length; i++)
+		{
+			if (i > 0)
+				sb.append(", ");
+			if (isNull(i))
+				sb.append("NULL");
+			else if (objects[i] != null)
+				sb.append(objects[i]);
+			else
+				sb.append(values[i]);
+		}
+		return sb.append("]").toString();
+	}
+	
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+	
+	private void checkColumn(int column)
+	{
+		if (column < 0 || column >= values.length)
+			throw new IndexOutOfBoundsException("Column " + column + " is out of range (row has " + values.length + " columns).");
+	}
 }
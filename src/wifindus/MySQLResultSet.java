@@ -3,7 +3,7 @@ package wifindus;
 import java.util.HashMap;
 
 /**
- * A map of MySQLResultRows.
+ * A map of MySQLResultRows, keyed by each row's primary key (or by its index, for results without one).
  * @author Mark 'marzer' Gillard
  */
 public class MySQLResultSet extends HashMap< Object, MySQLResultRow >
@@ -13,26 +13,19 @@ public class MySQLResultSet extends HashMap< Object, MySQLResultRow >
 	/**
 	 * Puts a new row into the collection.
 	 * @param key The key at which to add the new row.
-	 * @param kvps A list of key-value pairs representing column names and values.
-	 * The even numbered elements in the list (0, 2, 4...) need to be strings containing the column names,
-	 * and the odd numbered elements (1, 3, 5...) are the contents of the column at the given row. 
+	 * @param row The row.
+	 * @return The row previously stored at the given key, or null if there wasn't one.
+	 * @throws NullPointerException if key or row are null.
 	 */
-	public void put(Object key, Object... kvps)
+	@Override
+	public MySQLResultRow put(Object key, MySQLResultRow row)
 	{
 		if (key == null)
 			throw new NullPointerException("Parameter 'key' cannot be null.");
-		if (kvps.length > 0 && (kvps.length % 2) != 0)
-			throw new IllegalArgumentException("Parameter 'kvps' must either be omitted, or have an even number of elements.");
-		
-		MySQLResultRow values = get(key);
-		if (values == null)
-		{
-			values = new MySQLResultRow();
-			put (key, values);
-		}
-		
-		for (int i = 0; i < kvps.length; i+=2)
-			values.put((String)kvps[i],kvps[i+1]);
+		if (row == null)
+			throw new NullPointerException("Parameter 'row' cannot be null.");
+	
+		return super.put(key, row);
 	}
-
-}
\ No newline at end of file
+	
+}
@@ -3,48 +3,710 @@ package wifindus;
 import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import wifindus.eye.Hash;
+
+/**
+ * A client update packet, parsed from either the WiFindUs pipe-delimited UDP text protocol
+ * (e.g. <code>ty:device|hash:a1B2c3D4|ts:1412345678|lat:-34.97|long:138.54</code>)
+ * or its compact binary equivalent. The format is detected per datagram from the first byte.
+ * <br><br>
+ * The binary format (v2) is, in order (multi-byte values big-endian):
+ * <ol>
+ * <li>Magic byte {@link #BINARY_MAGIC}; it has the high bit set, so it can never start a text packet.</li>
+ * <li>Type (1 byte): TYPE_DEVICE or TYPE_NODE.</li>
+ * <li>Hash (6 bytes): the encoded hash ID (see {@link Hash#encode(CharSequence)}).</li>
+ * <li>Timestamp (unsigned varint, 7 bits per byte, least significant group first).</li>
+ * <li>Field presence bitmap (2 bytes): a combination of the FIELD_* flags, excluding FIELD_HASH and FIELD_TIMESTAMP.</li>
+ * <li>One value for each flag present, in ascending flag order:
+ * latitude and longitude as 32-bit fixed-point (degrees * 10^7), the user ID as a zig-zag varint
+ * (-1 for nobody), the sequence number as an unsigned varint, the device type as a 1-byte index (0 = PHO, 1 = TAB, 2 = WAT, 3 = COM, 4 = OTH,
+ * or 255 followed by a 1-byte length and that many ASCII bytes), and everything else as a 32-bit float.</li>
+ * </ol>
+ * A typical device update with a position fix is about a third of the size of its text form.
+ * <br><br>
+ * One datagram may carry several records (e.g. a mesh node relaying the device updates it has heard):
+ * text records are separated by newlines, and binary records are simply concatenated, since their
+ * length can be worked out from their headers. Records of both formats may be mixed.
+ * {@link #findRecordEnd(ByteBuffer, int)} finds the boundaries; each record is then parsed on its own.
+ * <br><br>
+ * In either format, a value that couldn't be stored in its database column (not finite, out of range,
+ * or an unknown device type) is treated as if it wasn't there, so it can't cause a batch to be rejected.
+ * <br><br>
+ * Parsing is done in a single pass directly over the receive buffer. The well-known keys
+ * are decoded straight into primitive fields without building any intermediate Strings or
+ * map entries; anything else ends up in the {@link #getData()} map. ParsedUDPPackets can
+ * be reused by calling {@link #parse(ByteBuffer, InetSocketAddress)} again, so a long-lived
+ * pool of them makes the parse path allocation-free for well-formed traffic.
+ * @author Mark 'marzer' Gillard
+ */
 public class ParsedUDPPacket implements Serializable
 {
-	private static final Pattern PATTERN_SPLIT = Pattern.compile( "[ \t]*\\|[ \t]*" );
-	private static final Pattern PATTERN_KVP = Pattern.compile( "^([a-zA-Z0-9_\\-.]+)[ \t]*[:][ \t]*(.+)[ \t]*$" );
-	
+	/**
+	 * Packet type: the <code>ty</code> key was missing or unrecognized.
+	 */
+	public static final int TYPE_UNKNOWN = 0;
+
+	/**
+	 * Packet type: an update from a client device (<code>ty:device</code>).
+	 */
+	public static final int TYPE_DEVICE = 1;
+
+	/**
+	 * Packet type: an update from a mesh node (<code>ty:node</code>).
+	 */
+	public static final int TYPE_NODE = 2;
+
+	//field presence flags
+	/** Field flag: <code>hash</code> was present and well-formed. */
+	public static final int FIELD_HASH = 1;
+	/** Field flag: <code>ts</code> was present and numeric. */
+	public static final int FIELD_TIMESTAMP = 1 << 1;
+	/** Field flag: <code>lat</code> was present and numeric. */
+	public static final int FIELD_LATITUDE = 1 << 2;
+	/** Field flag: <code>long</code> was present and numeric. */
+	public static final int FIELD_LONGITUDE = 1 << 3;
+	/** Field flag: <code>alt</code> was present and numeric. */
+	public static final int FIELD_ALTITUDE = 1 << 4;
+	/** Field flag: <code>acc</code> was present and numeric. */
+	public static final int FIELD_ACCURACY = 1 << 5;
+	/** Field flag: <code>hum</code> was present and numeric. */
+	public static final int FIELD_HUMIDITY = 1 << 6;
+	/** Field flag: <code>pres</code> was present and numeric. */
+	public static final int FIELD_AIR_PRESSURE = 1 << 7;
+	/** Field flag: <code>temp</code> was present and numeric. */
+	public static final int FIELD_TEMPERATURE = 1 << 8;
+	/** Field flag: <code>lux</code> was present and numeric. */
+	public static final int FIELD_LIGHT_LEVEL = 1 << 9;
+	/** Field flag: <code>user</code> was present and not too large to store (see {@link #getUserID()}). */
+	public static final int FIELD_USER = 1 << 10;
+	/** Field flag: <code>dt</code> was present and one of the known device types. */
+	public static final int FIELD_DEVICE_TYPE = 1 << 11;
+	/** Field flag: <code>volt</code> was present and numeric. */
+	public static final int FIELD_VOLTAGE = 1 << 12;
+	/** Field flag: a smoothed location was attached by the server (see {@link #setSmoothedLocation(double, double, double)}). Never sent by clients. */
+	public static final int FIELD_SMOOTHED_LOCATION = 1 << 13;
+	/** Field flag: <code>seq</code> was present and numeric. */
+	public static final int FIELD_SEQUENCE = 1 << 14;
+
+	/**
+	 * The first byte of every binary (v2) packet.
+	 */
+	public static final byte BINARY_MAGIC = (byte)0xB2;
+
 	private static final long serialVersionUID = 8194196852269581979L;
+	private static final String[] DEVICE_TYPES = { "PHO", "TAB", "WAT", "COM", "OTH" };
+	private static final int BINARY_FIELDS = FIELD_LATITUDE | FIELD_LONGITUDE | FIELD_ALTITUDE | FIELD_ACCURACY
+		| FIELD_HUMIDITY | FIELD_AIR_PRESSURE | FIELD_TEMPERATURE | FIELD_LIGHT_LEVEL | FIELD_USER
+		| FIELD_DEVICE_TYPE | FIELD_VOLTAGE | FIELD_SEQUENCE;
+	private static final double FIXED_POINT_SCALE = 1e7;
+	//column limits (decimal(8,4) with a CHECK for accuracy, decimal(6,4) for voltage, decimal(9,2) for the rest)
+	private static final double MAX_ACCURACY = 9999.9999;
+	private static final double MAX_VOLTAGE = 100.0;
+	private static final double MAX_DECIMAL = 10000000.0;
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
 	private final Map<String, String> kvps = new HashMap<>();
+	private long hashKey = Hash.INVALID;
+	private transient String hash;
+	private int type;
+	private int fields;
+	private long timestamp;
+	private long sequence;
+	private double latitude, longitude, altitude, accuracy;
+	private double humidity, airPressure, temperature, lightLevel;
+	private double voltage;
+	private double smoothedLatitude, smoothedLongitude, smoothedAccuracy;
+	private long userID;
+	private String deviceType;
 	private InetAddress sourceAddress;
 	private int sourcePort;
+	private long receivedTime;
+	
+	//scratch outputs for the number parsers (saves boxing or returning wrapper objects)
+	private transient long parsedLong;
+	private transient double parsedDouble;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
 
+	/**
+	 * Creates an empty ParsedUDPPacket, ready to be filled by {@link #parse(ByteBuffer, InetSocketAddress)}.
+	 */
+	public ParsedUDPPacket()
+	{
+
+	}
+
+	/**
+	 * Parses a packet from a DatagramPacket.
+	 * @param packet The datagram to parse.
+	 * @throws NullPointerException if packet is null.
+	 * @throws IllegalArgumentException if the packet is empty or is not formatted correctly.
+	 */
 	public ParsedUDPPacket(DatagramPacket packet)
 	{
 		//basic sanity checking
 		if (packet == null)
 			throw new NullPointerException("Parameter 'packet' cannot be null.");
-		String packetSentence = new String(packet.getData()).trim();
-		if (packetSentence.isEmpty())
-			throw new IllegalArgumentException("Parameter 'packet' cannot be empty.");
-		
-		//split string on bar character '|'
-		String[] tokens = PATTERN_SPLIT.split(packetSentence);
-		if (tokens.length <= 0)
+		if (!parse(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()),
+				(InetSocketAddress)packet.getSocketAddress()))
 			throw new IllegalArgumentException("Parameter 'packet' is not formatted correctly.");
-	
-		//parse rest of arguments into map
-		for (int i = 0; i < tokens.length; i++)
+	}
+
+	/**
+	 * Parses a packet directly from a receive buffer (e.g. one filled by a DatagramChannel),
+	 * without first copying it out into a byte array.
+	 * @param data The buffer containing the datagram. Bytes are read from its position up to its limit;
+	 * the buffer's position is left unchanged, so it may be released back to a pool as soon as this returns.
+	 * @param source The address the datagram was received from.
+	 * @throws NullPointerException if either parameter is null.
+	 * @throws IllegalArgumentException if the buffer is empty or is not formatted correctly.
+	 */
+	public ParsedUDPPacket(ByteBuffer data, InetSocketAddress source)
+	{
+		if (!parse(data, source))
+			throw new IllegalArgumentException("Parameter 'data' is not formatted correctly.");
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Clears this packet and re-fills it by parsing a receive buffer.
+	 * @param data The buffer containing the datagram. Bytes are read from its position up to its limit;
+	 * the buffer's position is left unchanged, so it may be released back to a pool as soon as this returns.
+	 * @param source The address the datagram was received from.
+	 * @return TRUE if at least one key-value pair (or a complete binary packet) was parsed,
+	 * FALSE if the buffer was empty or malformed.
+	 * @throws NullPointerException if either parameter is null.
+	 */
+	public final boolean parse(ByteBuffer data, InetSocketAddress source)
+	{
+		if (data == null)
+			throw new NullPointerException("Parameter 'data' cannot be null.");
+		if (source == null)
+			throw new NullPointerException("Parameter 'source' cannot be null.");
+
+		reset();
+		sourceAddress = source.getAddress();
+		sourcePort = source.getPort();
+
+		int end = data.limit();
+		int i = data.position();
+		if (i < end && data.get(i) == BINARY_MAGIC)
+		{
+			if (data.order() != ByteOrder.BIG_ENDIAN)
+				data = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+			if (parseBinary(data, i + 1, end))
+				return true;
+			reset();
+			return false;
+		}
+		boolean foundAny = false;
+		while (i < end)
 		{
-			//check for match
-			Matcher argMatch = PATTERN_KVP.matcher(tokens[i]);
-			if (!argMatch.find())
+			//skip separators and whitespace
+			byte b = data.get(i);
+			if (b == '|' || isWhitespace(b))
+			{
+				i++;
+				continue;
+			}
+
+			//key
+			int keyStart = i;
+			while (i < end && isKeyChar(data.get(i)))
+				i++;
+			int keyEnd = i;
+			while (i < end && isWhitespace(data.get(i)))
+				i++;
+
+			//malformed token; skip to the next separator
+			if (keyEnd == keyStart || i >= end || data.get(i) != ':')
+			{
+				while (i < end && data.get(i) != '|')
+					i++;
+				continue;
+			}
+			i++;
+
+			//value
+			while (i < end && isWhitespace(data.get(i)))
+				i++;
+			int valueStart = i;
+			while (i < end && data.get(i) != '|')
+				i++;
+			int valueEnd = i;
+			while (valueEnd > valueStart && isWhitespace(data.get(valueEnd-1)))
+				valueEnd--;
+			if (valueEnd == valueStart)
 				continue;
-			kvps.put(argMatch.group(1).toLowerCase(), argMatch.group(2).replace("%BAR%", "|").replace("%COLON%", ":"));
+
+			assign(data, keyStart, keyEnd, valueStart, valueEnd);
+			foundAny = true;
+		}
+		return foundAny;
+	}
+
+	/**
+	 * Finds the end of the record starting at a given index, for walking datagrams that carry more than one.
+	 * A text record runs until the next newline; a binary record's length is read from its header.
+	 * @param data The buffer containing the datagram. Its position and limit are not changed.
+	 * @param start The absolute index of the first byte of the record.
+	 * @return The absolute index just past the end of the record (where the next one, if any, begins),
+	 * or -1 if the record is binary and truncated or malformed, meaning the next record can't be found.
+	 * @throws NullPointerException if data is null.
+	 */
+	public static final int findRecordEnd(ByteBuffer data, int start)
+	{
+		if (data == null)
+			throw new NullPointerException("Parameter 'data' cannot be null.");
+		int end = data.limit();
+		if (start >= end || data.get(start) != BINARY_MAGIC)
+		{
+			int i = start;
+			while (i < end && data.get(i) != '\n')
+				i++;
+			return i;
+		}
+
+		//magic, type and hash
+		int i = start + 8;
+		//timestamp
+		i = skipVarint(data, i, end);
+		if (i < 0 || end - i < 2)
+			return -1;
+		//fields
+		int present = ((data.get(i) & 0xFF) << 8) | (data.get(i + 1) & 0xFF);
+		i += 2;
+		if ((present & ~BINARY_FIELDS) != 0)
+			return -1;
+		i += 4 * Integer.bitCount(present & ~(FIELD_USER | FIELD_DEVICE_TYPE | FIELD_VOLTAGE | FIELD_SEQUENCE));
+		if ((present & FIELD_USER) != 0)
+		{
+			i = skipVarint(data, i, end);
+			if (i < 0)
+				return -1;
+		}
+		if ((present & FIELD_DEVICE_TYPE) != 0)
+		{
+			if (i >= end)
+				return -1;
+			int index = data.get(i++) & 0xFF;
+			if (index == 255)
+			{
+				if (i >= end)
+					return -1;
+				i += 1 + (data.get(i) & 0xFF);
+			}
+		}
+		if ((present & FIELD_VOLTAGE) != 0)
+			i += 4;
+		if ((present & FIELD_SEQUENCE) != 0)
+		{
+			i = skipVarint(data, i, end);
+			if (i < 0)
+				return -1;
 		}
-		
-		//network layer information
-		sourceAddress = packet.getAddress();
-		sourcePort = packet.getPort();
+		return i <= end ? i : -1;
+	}
+
+	/**
+	 * Reads just the sender's hash out of a record without parsing the rest of it, so that
+	 * traffic can be filtered per sender before paying for a full parse.
+	 * @param data The buffer containing the datagram. Its position and limit are not changed.
+	 * @param start The absolute index of the first byte of the record.
+	 * @param end The absolute index just past the end of the record (see {@link #findRecordEnd(ByteBuffer, int)}).
+	 * @return The hash in the same form as {@link #getHashKey()}, or Hash.INVALID if the record doesn't have a valid one.
+	 * @throws NullPointerException if data is null.
+	 */
+	public static final long peekHash(ByteBuffer data, int start, int end)
+	{
+		if (data == null)
+			throw new NullPointerException("Parameter 'data' cannot be null.");
+
+		//binary: fixed position after magic and type
+		if (start < end && data.get(start) == BINARY_MAGIC)
+		{
+			if (end - start < 8)
+				return Hash.INVALID;
+			long key = 0L;
+			for (int i = start + 2; i < start + 8; i++)
+				key = (key << 8) | (data.get(i) & 0xFF);
+			return Hash.isValid(key) ? key : Hash.INVALID;
+		}
+
+		//text: same tokenizing as parse(), but only the hash key is looked at
+		int i = start;
+		while (i < end)
+		{
+			byte b = data.get(i);
+			if (b == '|' || isWhitespace(b))
+			{
+				i++;
+				continue;
+			}
+			int keyStart = i;
+			while (i < end && isKeyChar(data.get(i)))
+				i++;
+			int keyEnd = i;
+			while (i < end && isWhitespace(data.get(i)))
+				i++;
+			if (keyEnd - keyStart != 4 || i >= end || data.get(i) != ':' || !keyEquals(data, keyStart, "hash"))
+			{
+				while (i < end && data.get(i) != '|')
+					i++;
+				continue;
+			}
+			i++;
+			while (i < end && isWhitespace(data.get(i)))
+				i++;
+			int valueStart = i;
+			while (i < end && data.get(i) != '|')
+				i++;
+			int valueEnd = i;
+			while (valueEnd > valueStart && isWhitespace(data.get(valueEnd-1)))
+				valueEnd--;
+			return Hash.encode(data, valueStart, valueEnd - valueStart);
+		}
+		return Hash.INVALID;
+	}
+
+	/**
+	 * Writes this packet's well-known fields out in the binary (v2) format. Unknown keys
+	 * (i.e. the contents of {@link #getData()}) are not written.
+	 * @param out The buffer to write to, starting at its position. The position is advanced past the packet.
+	 * @return TRUE if the packet was written, FALSE if it has no hash or timestamp, its type is unknown,
+	 * or out did not have enough room (in which case out's position is left unchanged).
+	 * @throws NullPointerException if out is null.
+	 */
+	public final boolean writeBinary(ByteBuffer out)
+	{
+		if (out == null)
+			throw new NullPointerException("Parameter 'out' cannot be null.");
+		if (type == TYPE_UNKNOWN || !has(FIELD_HASH | FIELD_TIMESTAMP) || timestamp < 0L)
+			return false;
+
+		int start = out.position();
+		try
+		{
+			out.put(BINARY_MAGIC);
+			out.put((byte)type);
+			for (int shift = 40; shift >= 0; shift -= 8)
+				out.put((byte)(hashKey >>> shift));
+			putVarint(out, timestamp);
+			int present = fields & BINARY_FIELDS;
+			out.putShort((short)present);
+			if ((present & FIELD_LATITUDE) != 0)
+				out.putInt((int)Math.round(latitude * FIXED_POINT_SCALE));
+			if ((present & FIELD_LONGITUDE) != 0)
+				out.putInt((int)Math.round(longitude * FIXED_POINT_SCALE));
+			if ((present & FIELD_ALTITUDE) != 0)
+				out.putFloat((float)altitude);
+			if ((present & FIELD_ACCURACY) != 0)
+				out.putFloat((float)accuracy);
+			if ((present & FIELD_HUMIDITY) != 0)
+				out.putFloat((float)humidity);
+			if ((present & FIELD_AIR_PRESSURE) != 0)
+				out.putFloat((float)airPressure);
+			if ((present & FIELD_TEMPERATURE) != 0)
+				out.putFloat((float)temperature);
+			if ((present & FIELD_LIGHT_LEVEL) != 0)
+				out.putFloat((float)lightLevel);
+			if ((present & FIELD_USER) != 0)
+				putVarint(out, (userID << 1) ^ (userID >> 63));
+			if ((present & FIELD_DEVICE_TYPE) != 0)
+			{
+				int index = 0;
+				while (index < DEVICE_TYPES.length && !DEVICE_TYPES[index].equals(deviceType))
+					index++;
+				if (index < DEVICE_TYPES.length)
+					out.put((byte)index);
+				else
+				{
+					int length = Math.min(deviceType.length(), 255);
+					out.put((byte)255);
+					out.put((byte)length);
+					for (int i = 0; i < length; i++)
+						out.put((byte)deviceType.charAt(i));
+				}
+			}
+			if ((present & FIELD_VOLTAGE) != 0)
+				out.putFloat((float)voltage);
+			if ((present & FIELD_SEQUENCE) != 0)
+				putVarint(out, sequence);
+		}
+		catch (BufferOverflowException e)
+		{
+			out.position(start);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Clears all parsed data from this packet.
+	 */
+	public final void reset()
+	{
+		kvps.clear();
+		hash = null;
+		hashKey = Hash.INVALID;
+		type = TYPE_UNKNOWN;
+		fields = 0;
+		timestamp = 0L;
+		sequence = 0L;
+		latitude = longitude = altitude = accuracy = 0.0;
+		humidity = airPressure = temperature = lightLevel = 0.0;
+		voltage = 0.0;
+		smoothedLatitude = smoothedLongitude = smoothedAccuracy = 0.0;
+		userID = -1L;
+		deviceType = null;
+		sourceAddress = null;
+		sourcePort = 0;
+		receivedTime = 0L;
+	}
+
+	/**
+	 * Gets the packet's type, from the <code>ty</code> key.
+	 * @return One of TYPE_DEVICE, TYPE_NODE or TYPE_UNKNOWN.
+	 */
+	public final int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * Gets the set of well-known fields that were present in the packet.
+	 * @return A bitwise combination of the FIELD_* flags.
+	 */
+	public final int getFields()
+	{
+		return fields;
+	}
+
+	/**
+	 * Tests if a well-known field was present in the packet.
+	 * @param field One (or a bitwise combination) of the FIELD_* flags.
+	 * @return TRUE if all of the given fields were present.
+	 */
+	public final boolean has(int field)
+	{
+		return (fields & field) == field;
+	}
+
+	/**
+	 * Marks well-known fields as absent, so that later stages ignore their values
+	 * (e.g. to avoid re-writing values that haven't changed). FIELD_HASH and FIELD_TIMESTAMP cannot be removed.
+	 * @param field One (or a bitwise combination) of the FIELD_* flags.
+	 */
+	public final void remove(int field)
+	{
+		fields &= ~(field & ~(FIELD_HASH | FIELD_TIMESTAMP));
+	}
+
+	/**
+	 * Gets the sending device or node's hash.
+	 * @return The 8-character hash ID, or null if the packet did not contain a well-formed hash.
+	 */
+	public final String getHash()
+	{
+		if (hash == null && (fields & FIELD_HASH) != 0)
+			hash = Hash.decode(hashKey);
+		return hash;
+	}
+
+	/**
+	 * Gets the sending device or node's hash in its encoded form (see {@link Hash#encode(CharSequence)}).
+	 * Unlike {@link #getHash()} this never allocates, so it's the one to use for map lookups.
+	 * @return The encoded hash ID, or Hash.INVALID if the packet did not contain a well-formed hash.
+	 */
+	public final long getHashKey()
+	{
+		return hashKey;
+	}
+
+	/**
+	 * @return the sender's timestamp (<code>ts</code>); only meaningful if FIELD_TIMESTAMP is present.
+	 */
+	public final long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * Gets the sender's sequence number (<code>seq</code>), which senders that support it increase by one
+	 * for every update they send, so that the server can tell how many never arrived.
+	 * @return The sequence number (never negative); only meaningful if FIELD_SEQUENCE is present.
+	 */
+	public final long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * @return the latitude (<code>lat</code>); only meaningful if FIELD_LATITUDE is present.
+	 */
+	public final double getLatitude()
+	{
+		return latitude;
+	}
+
+	/**
+	 * @return the longitude (<code>long</code>); only meaningful if FIELD_LONGITUDE is present.
+	 */
+	public final double getLongitude()
+	{
+		return longitude;
+	}
+
+	/**
+	 * @return the altitude (<code>alt</code>); only meaningful if FIELD_ALTITUDE is present.
+	 */
+	public final double getAltitude()
+	{
+		return altitude;
+	}
+
+	/**
+	 * @return the horizontal accuracy (<code>acc</code>); only meaningful if FIELD_ACCURACY is present.
+	 */
+	public final double getAccuracy()
+	{
+		return accuracy;
+	}
+
+	/**
+	 * @return the relative humidity (<code>hum</code>); only meaningful if FIELD_HUMIDITY is present.
+	 */
+	public final double getHumidity()
+	{
+		return humidity;
+	}
+
+	/**
+	 * @return the air pressure (<code>pres</code>); only meaningful if FIELD_AIR_PRESSURE is present.
+	 */
+	public final double getAirPressure()
+	{
+		return airPressure;
+	}
+
+	/**
+	 * @return the temperature (<code>temp</code>); only meaningful if FIELD_TEMPERATURE is present.
+	 */
+	public final double getTemperature()
+	{
+		return temperature;
+	}
+
+	/**
+	 * @return the light level (<code>lux</code>); only meaningful if FIELD_LIGHT_LEVEL is present.
+	 */
+	public final double getLightLevel()
+	{
+		return lightLevel;
+	}
+
+	/**
+	 * @return the node's power source voltage (<code>volt</code>); only meaningful if FIELD_VOLTAGE is present.
+	 */
+	public final double getVoltage()
+	{
+		return voltage;
+	}
+
+	/**
+	 * @return the smoothed latitude; only meaningful if FIELD_SMOOTHED_LOCATION is present.
+	 */
+	public final double getSmoothedLatitude()
+	{
+		return smoothedLatitude;
+	}
+
+	/**
+	 * @return the smoothed longitude; only meaningful if FIELD_SMOOTHED_LOCATION is present.
+	 */
+	public final double getSmoothedLongitude()
+	{
+		return smoothedLongitude;
+	}
+
+	/**
+	 * @return the estimated accuracy of the smoothed location, in metres; only meaningful if FIELD_SMOOTHED_LOCATION is present.
+	 */
+	public final double getSmoothedAccuracy()
+	{
+		return smoothedAccuracy;
+	}
+
+	/**
+	 * Attaches a server-side estimate of the sender's location, to be stored alongside the raw fix.
+	 * It is not part of either wire format.
+	 * @param latitude The smoothed latitude.
+	 * @param longitude The smoothed longitude.
+	 * @param accuracy The estimate's accuracy, in metres.
+	 * @return TRUE if the estimate was attached, FALSE if any part of it was non-finite or out of range (and so was ignored).
+	 */
+	public final boolean setSmoothedLocation(double latitude, double longitude, double accuracy)
+	{
+		if (!isStorable(FIELD_LATITUDE, latitude) || !isStorable(FIELD_LONGITUDE, longitude)
+			|| !isStorable(FIELD_ACCURACY, accuracy))
+			return false;
+		smoothedLatitude = latitude;
+		smoothedLongitude = longitude;
+		smoothedAccuracy = accuracy;
+		fields |= FIELD_SMOOTHED_LOCATION;
+		return true;
+	}
+
+	/**
+	 * @return the wall-clock time the packet was received by the server, in milliseconds since the epoch,
+	 * or 0 if it was never set (see {@link #setReceivedTime(long)}).
+	 */
+	public final long getReceivedTime()
+	{
+		return receivedTime;
+	}
+
+	/**
+	 * Records when the packet was received by the server. It is not part of either wire format,
+	 * and is cleared by {@link #parse(ByteBuffer, InetSocketAddress)}, so it must be set afterwards.
+	 * @param receivedTime The value of System.currentTimeMillis() when the packet arrived.
+	 */
+	public final void setReceivedTime(long receivedTime)
+	{
+		this.receivedTime = receivedTime;
+	}
+
+	/**
+	 * Gets the ID of the user logged in to the sending device (<code>user</code>).
+	 * @return The user ID, or -1 if the value was negative or not a number (i.e. nobody is logged in).
+	 * Only meaningful if FIELD_USER is present.
+	 */
+	public final long getUserID()
+	{
+		return userID;
+	}
+
+	/**
+	 * Gets the sending device's type key (<code>dt</code>).
+	 * @return An upper-case device type database key (e.g. "PHO"), or null if FIELD_DEVICE_TYPE is not present.
+	 */
+	public final String getDeviceType()
+	{
+		return deviceType;
 	}
 
 	/**
@@ -64,10 +726,569 @@ public class ParsedUDPPacket implements Serializable
 	}
 
 	/**
+	 * Gets any key-value pairs that are not one of the well-known keys read into dedicated fields.
+	 * Keys are lower-case; values have had <code>%BAR%</code> and <code>%COLON%</code> unescaped.
 	 * @return the kvps
 	 */
 	public final Map<String,String> getData()
 	{
 		return kvps;
 	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private void assign(ByteBuffer data, int keyStart, int keyEnd, int valueStart, int valueEnd)
+	{
+		//match well-known keys by length then content
+		switch (keyEnd - keyStart)
+		{
+			case 2:
+				if (keyEquals(data, keyStart, "ty"))
+				{
+					if (valueEquals(data, valueStart, valueEnd, "device"))
+						type = TYPE_DEVICE;
+					else if (valueEquals(data, valueStart, valueEnd, "node"))
+						type = TYPE_NODE;
+					return;
+				}
+				if (keyEquals(data, keyStart, "ts"))
+				{
+					if (parseLong(data, valueStart, valueEnd))
+					{
+						timestamp = parsedLong;
+						fields |= FIELD_TIMESTAMP;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "dt"))
+				{
+					deviceType = matchDeviceType(data, valueStart, valueEnd);
+					if (deviceType != null)
+						fields |= FIELD_DEVICE_TYPE;
+					return;
+				}
+				break;
+			case 3:
+				if (keyEquals(data, keyStart, "lat"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_LATITUDE))
+					{
+						latitude = parsedDouble;
+						fields |= FIELD_LATITUDE;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "alt"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_ALTITUDE))
+					{
+						altitude = parsedDouble;
+						fields |= FIELD_ALTITUDE;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "acc"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_ACCURACY))
+					{
+						accuracy = parsedDouble;
+						fields |= FIELD_ACCURACY;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "hum"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_HUMIDITY))
+					{
+						humidity = parsedDouble;
+						fields |= FIELD_HUMIDITY;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "lux"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_LIGHT_LEVEL))
+					{
+						lightLevel = parsedDouble;
+						fields |= FIELD_LIGHT_LEVEL;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "seq"))
+				{
+					if (parseLong(data, valueStart, valueEnd) && parsedLong >= 0L)
+					{
+						sequence = parsedLong;
+						fields |= FIELD_SEQUENCE;
+					}
+					return;
+				}
+				break;
+			case 4:
+				if (keyEquals(data, keyStart, "hash"))
+				{
+					hashKey = Hash.encode(data, valueStart, valueEnd - valueStart);
+					if (hashKey != Hash.INVALID)
+						fields |= FIELD_HASH;
+					return;
+				}
+				if (keyEquals(data, keyStart, "long"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_LONGITUDE))
+					{
+						longitude = parsedDouble;
+						fields |= FIELD_LONGITUDE;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "pres"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_AIR_PRESSURE))
+					{
+						airPressure = parsedDouble;
+						fields |= FIELD_AIR_PRESSURE;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "temp"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_TEMPERATURE))
+					{
+						temperature = parsedDouble;
+						fields |= FIELD_TEMPERATURE;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "volt"))
+				{
+					if (parseField(data, valueStart, valueEnd, FIELD_VOLTAGE))
+					{
+						voltage = parsedDouble;
+						fields |= FIELD_VOLTAGE;
+					}
+					return;
+				}
+				if (keyEquals(data, keyStart, "user"))
+				{
+					userID = parseLong(data, valueStart, valueEnd) && parsedLong >= 0L ? parsedLong : -1L;
+					if (userID <= Integer.MAX_VALUE)
+						fields |= FIELD_USER;
+					return;
+				}
+				break;
+		}
+
+		//unknown key; this is the slow path
+		kvps.put(decode(data, keyStart, keyEnd).toLowerCase(),
+			decode(data, valueStart, valueEnd).replace("%BAR%", "|").replace("%COLON%", ":"));
+	}
+
+	private boolean parseBinary(ByteBuffer data, int i, int end)
+	{
+		//type and hash
+		if (end - i < 7)
+			return false;
+		byte typeByte = data.get(i++);
+		if (typeByte != TYPE_DEVICE && typeByte != TYPE_NODE)
+			return false;
+		long key = 0L;
+		for (int j = 0; j < 6; j++)
+			key = (key << 8) | (data.get(i++) & 0xFF);
+		if (!Hash.isValid(key))
+			return false;
+
+		//timestamp
+		i = getVarint(data, i, end);
+		if (i < 0)
+			return false;
+		long ts = parsedLong;
+
+		//fields
+		if (end - i < 2)
+			return false;
+		int present = data.getShort(i) & 0xFFFF;
+		i += 2;
+		if ((present & ~BINARY_FIELDS) != 0)
+			return false;
+		//values that can't be stored are dropped (just that field, like a malformed text value)
+		int rejected = 0;
+		if ((present & FIELD_LATITUDE) != 0)
+		{
+			if (end - i < 4)
+				return false;
+			latitude = data.getInt(i) / FIXED_POINT_SCALE;
+			if (!isStorable(FIELD_LATITUDE, latitude))
+				rejected |= FIELD_LATITUDE;
+			i += 4;
+		}
+		if ((present & FIELD_LONGITUDE) != 0)
+		{
+			if (end - i < 4)
+				return false;
+			longitude = data.getInt(i) / FIXED_POINT_SCALE;
+			if (!isStorable(FIELD_LONGITUDE, longitude))
+				rejected |= FIELD_LONGITUDE;
+			i += 4;
+		}
+		if ((present & (FIELD_ALTITUDE | FIELD_ACCURACY | FIELD_HUMIDITY | FIELD_AIR_PRESSURE
+			| FIELD_TEMPERATURE | FIELD_LIGHT_LEVEL)) != 0)
+		{
+			int floats = Integer.bitCount(present & (FIELD_ALTITUDE | FIELD_ACCURACY | FIELD_HUMIDITY
+				| FIELD_AIR_PRESSURE | FIELD_TEMPERATURE | FIELD_LIGHT_LEVEL));
+			if (end - i < floats * 4)
+				return false;
+			if ((present & FIELD_ALTITUDE) != 0)
+			{
+				altitude = data.getFloat(i);
+				if (!isStorable(FIELD_ALTITUDE, altitude))
+					rejected |= FIELD_ALTITUDE;
+				i += 4;
+			}
+			if ((present & FIELD_ACCURACY) != 0)
+			{
+				accuracy = data.getFloat(i);
+				if (!isStorable(FIELD_ACCURACY, accuracy))
+					rejected |= FIELD_ACCURACY;
+				i += 4;
+			}
+			if ((present & FIELD_HUMIDITY) != 0)
+			{
+				humidity = data.getFloat(i);
+				if (!isStorable(FIELD_HUMIDITY, humidity))
+					rejected |= FIELD_HUMIDITY;
+				i += 4;
+			}
+			if ((present & FIELD_AIR_PRESSURE) != 0)
+			{
+				airPressure = data.getFloat(i);
+				if (!isStorable(FIELD_AIR_PRESSURE, airPressure))
+					rejected |= FIELD_AIR_PRESSURE;
+				i += 4;
+			}
+			if ((present & FIELD_TEMPERATURE) != 0)
+			{
+				temperature = data.getFloat(i);
+				if (!isStorable(FIELD_TEMPERATURE, temperature))
+					rejected |= FIELD_TEMPERATURE;
+				i += 4;
+			}
+			if ((present & FIELD_LIGHT_LEVEL) != 0)
+			{
+				lightLevel = data.getFloat(i);
+				if (!isStorable(FIELD_LIGHT_LEVEL, lightLevel))
+					rejected |= FIELD_LIGHT_LEVEL;
+				i += 4;
+			}
+		}
+		if ((present & FIELD_USER) != 0)
+		{
+			i = getVarint(data, i, end);
+			if (i < 0)
+				return false;
+			long id = (parsedLong >>> 1) ^ -(parsedLong & 1L);
+			userID = id >= 0L ? id : -1L;
+			if (userID > Integer.MAX_VALUE)
+				rejected |= FIELD_USER;
+		}
+		if ((present & FIELD_DEVICE_TYPE) != 0)
+		{
+			if (i >= end)
+				return false;
+			int index = data.get(i++) & 0xFF;
+			if (index < DEVICE_TYPES.length)
+				deviceType = DEVICE_TYPES[index];
+			else if (index == 255 && i < end)
+			{
+				int length = data.get(i++) & 0xFF;
+				if (length == 0 || end - i < length)
+					return false;
+				//(only the well-known types can be stored)
+				String name = decode(data, i, i + length).toUpperCase();
+				deviceType = null;
+				for (String known : DEVICE_TYPES)
+					if (known.equals(name))
+						deviceType = known;
+				if (deviceType == null)
+					rejected |= FIELD_DEVICE_TYPE;
+				i += length;
+			}
+			else
+				return false;
+		}
+		if ((present & FIELD_VOLTAGE) != 0)
+		{
+			if (end - i < 4)
+				return false;
+			voltage = data.getFloat(i);
+			if (!isStorable(FIELD_VOLTAGE, voltage))
+				rejected |= FIELD_VOLTAGE;
+			i += 4;
+		}
+		if ((present & FIELD_SEQUENCE) != 0)
+		{
+			i = getVarint(data, i, end);
+			if (i < 0 || parsedLong < 0L)
+				return false;
+			sequence = parsedLong;
+		}
+		if (i != end)
+			return false;
+
+		type = typeByte;
+		hashKey = key;
+		timestamp = ts;
+		fields = (present & ~rejected) | FIELD_HASH | FIELD_TIMESTAMP;
+		return true;
+	}
+
+	/**
+	 * Reads an unsigned varint into parsedLong.
+	 * @return The index following the varint, or -1 if it was truncated or too long.
+	 */
+	private int getVarint(ByteBuffer data, int i, int end)
+	{
+		long value = 0L;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			if (i >= end)
+				return -1;
+			byte b = data.get(i++);
+			value |= (long)(b & 0x7F) << shift;
+			if (b >= 0)
+			{
+				parsedLong = value;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int skipVarint(ByteBuffer data, int i, int end)
+	{
+		for (int bytes = 0; bytes < 10; bytes++)
+		{
+			if (i >= end)
+				return -1;
+			if (data.get(i++) >= 0)
+				return i;
+		}
+		return -1;
+	}
+
+	private static void putVarint(ByteBuffer out, long value)
+	{
+		while ((value & ~0x7FL) != 0L)
+		{
+			out.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte)value);
+	}
+
+	private boolean parseLong(ByteBuffer data, int start, int end)
+	{
+		boolean negative = false;
+		int i = start;
+		if (data.get(i) == '-' || data.get(i) == '+')
+			negative = data.get(i++) == '-';
+		if (i >= end || end - i > 18)
+			return false;
+
+		long value = 0L;
+		for (; i < end; i++)
+		{
+			int digit = data.get(i) - '0';
+			if (digit < 0 || digit > 9)
+				return false;
+			value = value * 10L + digit;
+		}
+		parsedLong = negative ? -value : value;
+		return true;
+	}
+
+	/**
+	 * Parses a decimal number of the form [+-]digits[.digits][(e|E)[+-]digits].
+	 * Values with up to 15 significant digits are correctly rounded; longer mantissas
+	 * (up to 18 digits) are within one ulp, which is well below the precision of any sensor.
+	 * Anything the fast path can't handle falls back to Double.parseDouble().
+	 */
+	private boolean parseDouble(ByteBuffer data, int start, int end)
+	{
+		boolean negative = false;
+		int i = start;
+		if (data.get(i) == '-' || data.get(i) == '+')
+			negative = data.get(i++) == '-';
+
+		//mantissa
+		long mantissa = 0L;
+		int digits = 0;
+		int scale = 0;
+		boolean seenPoint = false;
+		boolean seenDigit = false;
+		for (; i < end; i++)
+		{
+			byte b = data.get(i);
+			if (b == '.')
+			{
+				if (seenPoint)
+					return false;
+				seenPoint = true;
+				continue;
+			}
+			int digit = b - '0';
+			if (digit < 0 || digit > 9)
+				break;
+			seenDigit = true;
+
+			//skip leading zeroes; they don't count towards precision
+			if (mantissa == 0L && digit == 0)
+			{
+				if (seenPoint)
+					scale--;
+				continue;
+			}
+
+			//too many digits; let the JDK deal with it
+			if (++digits > 18)
+				return parseDoubleSlow(data, start, end);
+			mantissa = mantissa * 10L + digit;
+			if (seenPoint)
+				scale--;
+		}
+		if (!seenDigit)
+			return false;
+
+		//exponent
+		if (i < end)
+		{
+			byte b = data.get(i);
+			if (b != 'e' && b != 'E')
+				return false;
+			if (++i >= end)
+				return false;
+			boolean negativeExponent = false;
+			if (data.get(i) == '-' || data.get(i) == '+')
+				negativeExponent = data.get(i++) == '-';
+			if (i >= end || end - i > 3)
+				return false;
+			int exponent = 0;
+			for (; i < end; i++)
+			{
+				int digit = data.get(i) - '0';
+				if (digit < 0 || digit > 9)
+					return false;
+				exponent = exponent * 10 + digit;
+			}
+			scale += negativeExponent ? -exponent : exponent;
+		}
+
+		//combine
+		double value = (double)mantissa;
+		if (mantissa != 0L && scale != 0)
+		{
+			if (scale < -22 || scale > 22)
+				return parseDoubleSlow(data, start, end);
+			value = scale < 0 ? value / POWERS_OF_TEN[-scale] : value * POWERS_OF_TEN[scale];
+		}
+		parsedDouble = negative ? -value : value;
+		return true;
+	}
+
+	/**
+	 * Parses a number into parsedDouble, checking that it will fit the column its field is stored in.
+	 */
+	private boolean parseField(ByteBuffer data, int start, int end, int field)
+	{
+		return parseDouble(data, start, end) && isStorable(field, parsedDouble);
+	}
+
+	/**
+	 * Checks a value against the type and CHECK constraint of the column its field is stored in
+	 * (see wfu_init.sql), so that one bad reading can't cause the database to reject a whole batch.
+	 * @param field One of the FIELD_* flags for a numeric field.
+	 * @param value The value.
+	 * @return TRUE if the value is finite and in range.
+	 */
+	private static boolean isStorable(int field, double value)
+	{
+		if (Double.isNaN(value) || Double.isInfinite(value))
+			return false;
+		switch (field)
+		{
+			case FIELD_LATITUDE: return value >= -90.0 && value <= 90.0;
+			case FIELD_LONGITUDE: return value >= -180.0 && value <= 180.0;
+			case FIELD_ACCURACY: return value >= 0.0 && value <= MAX_ACCURACY;
+			case FIELD_VOLTAGE: return value > -MAX_VOLTAGE && value < MAX_VOLTAGE;
+			default: return value > -MAX_DECIMAL && value < MAX_DECIMAL;
+		}
+	}
+
+	private boolean parseDoubleSlow(ByteBuffer data, int start, int end)
+	{
+		try
+		{
+			parsedDouble = Double.parseDouble(decode(data, start, end));
+			return !Double.isNaN(parsedDouble) && !Double.isInfinite(parsedDouble);
+		}
+		catch (NumberFormatException e)
+		{
+			return false;
+		}
+	}
+
+	private static String matchDeviceType(ByteBuffer data, int start, int end)
+	{
+		for (String type : DEVICE_TYPES)
+			if (valueEquals(data, start, end, type))
+				return type;
+		return null;
+	}
+
+	private static boolean keyEquals(ByteBuffer data, int start, String key)
+	{
+		for (int i = 0; i < key.length(); i++)
+			if (toLower(data.get(start + i)) != key.charAt(i))
+				return false;
+		return true;
+	}
+
+	private static boolean valueEquals(ByteBuffer data, int start, int end, String value)
+	{
+		if (end - start != value.length())
+			return false;
+		for (int i = 0; i < value.length(); i++)
+			if (toLower(data.get(start + i)) != toLower((byte)value.charAt(i)))
+				return false;
+		return true;
+	}
+
+	private static String decode(ByteBuffer data, int start, int end)
+	{
+		char[] chars = new char[end - start];
+		for (int i = start; i < end; i++)
+			chars[i - start] = (char)(data.get(i) & 0xFF);
+		return new String(chars);
+	}
+
+	private static int toLower(byte b)
+	{
+		return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+	}
+
+	private static boolean isWhitespace(byte b)
+	{
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == 0;
+	}
+
+	private static boolean isAlphanumeric(byte b)
+	{
+		return (b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+	}
+
+	private static boolean isKeyChar(byte b)
+	{
+		return isAlphanumeric(b) || b == '_' || b == '-' || b == '.';
+	}
 }
@@ -0,0 +1,151 @@
+package wifindus;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free, multi-producer/multi-consumer FIFO queue backed by a fixed-size array.
+ * Neither offer() nor poll() block or allocate; a full buffer simply rejects new items, leaving
+ * it up to the caller to decide what to do with them (count them, drop them, retry, etc.).
+ * <br><br>
+ * Based on Dmitry Vyukov's bounded MPMC queue: each slot carries a sequence number that tells
+ * producers and consumers whose 'turn' it is, so the only contended state is the head and tail counters.
+ * @author Mark 'marzer' Gillard
+ * @param <T> The type of item stored in the buffer.
+ */
+public class RingBuffer<T>
+{
+	private final AtomicReferenceArray<T> items;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong(0);
+	private final AtomicLong tail = new AtomicLong(0);
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new RingBuffer.
+	 * @param capacity The minimum number of items the buffer must be able to hold.
+	 * This will be rounded up to the next power of two.
+	 * @throws IllegalArgumentException if capacity is less than 1 or greater than 2^30.
+	 */
+	public RingBuffer(int capacity)
+	{
+		if (capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Parameter 'capacity' must be between 1 and 2^30 (inclusive).");
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		mask = size - 1;
+		items = new AtomicReferenceArray<>(size);
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			sequences.set(i, i);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Adds an item to the tail of the buffer.
+	 * @param item The item to add.
+	 * @return TRUE if the item was added, FALSE if the buffer was full.
+	 * @throws NullPointerException if item is null.
+	 */
+	public final boolean offer(T item)
+	{
+		if (item == null)
+			throw new NullPointerException("Parameter 'item' cannot be null.");
+
+		long position = tail.get();
+		while (true)
+		{
+			int index = (int)(position & mask);
+			long difference = sequences.get(index) - position;
+
+			//slot is free for this position; try to claim it
+			if (difference == 0)
+			{
+				if (tail.compareAndSet(position, position + 1))
+				{
+					items.lazySet(index, item);
+					sequences.lazySet(index, position + 1);
+					return true;
+				}
+			}
+			//slot still holds an item from the previous lap; we're full
+			else if (difference < 0)
+				return false;
+
+			//another producer got there first
+			position = tail.get();
+		}
+	}
+
+	/**
+	 * Removes an item from the head of the buffer.
+	 * @return The item at the head of the buffer, or null if the buffer was empty.
+	 */
+	public final T poll()
+	{
+		long position = head.get();
+		while (true)
+		{
+			int index = (int)(position & mask);
+			long difference = sequences.get(index) - (position + 1);
+
+			//slot has been published for this position; try to claim it
+			if (difference == 0)
+			{
+				if (head.compareAndSet(position, position + 1))
+				{
+					T item = items.get(index);
+					items.lazySet(index, null);
+					sequences.lazySet(index, position + mask + 1);
+					return item;
+				}
+			}
+			//slot hasn't been written yet; we're empty
+			else if (difference < 0)
+				return null;
+
+			//another consumer got there first
+			position = head.get();
+		}
+	}
+
+	/**
+	 * Gets the approximate number of items currently in the buffer.
+	 * Since producers and consumers may be active concurrently, this is only a snapshot.
+	 * @return A value between 0 and capacity() (inclusive).
+	 */
+	public final int size()
+	{
+		long size = tail.get() - head.get();
+		return (int)Math.max(0, Math.min(size, mask + 1));
+	}
+
+	/**
+	 * Tests if the buffer is currently empty.
+	 * @return TRUE if there were no items in the buffer at the time of the call.
+	 */
+	public final boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	/**
+	 * Gets the maximum number of items this buffer can hold.
+	 * @return The buffer's capacity (always a power of two).
+	 */
+	public final int capacity()
+	{
+		return mask + 1;
+	}
+}
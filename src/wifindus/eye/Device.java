@@ -62,8 +62,35 @@ public class Device extends EventObject<DeviceEventListener> implements MySQLUpd
 		Other
 	}
 	
+	/**
+	 * The columns of the Devices table read by {@link #updateFromMySQL(MySQLResultRow)}, in ordinal order
+	 * (a row's column N is <code>COLUMNS[N]</code>).
+	 */
+	public static final String[] COLUMNS = { "hash", "deviceType", "address", "latitude", "longitude", "altitude",
+		"accuracy", "humidity", "airPressure", "temperature", "lightLevel", "smoothedLatitude", "smoothedLongitude",
+		"smoothedAccuracy", "lastUpdate", "respondingIncidentID", "userID", "rowVersion" };
+	public static final int COLUMN_HASH = 0;
+	public static final int COLUMN_TYPE = 1;
+	public static final int COLUMN_ADDRESS = 2;
+	public static final int COLUMN_LATITUDE = 3;
+	public static final int COLUMN_LONGITUDE = 4;
+	public static final int COLUMN_ALTITUDE = 5;
+	public static final int COLUMN_ACCURACY = 6;
+	public static final int COLUMN_HUMIDITY = 7;
+	public static final int COLUMN_AIR_PRESSURE = 8;
+	public static final int COLUMN_TEMPERATURE = 9;
+	public static final int COLUMN_LIGHT_LEVEL = 10;
+	public static final int COLUMN_SMOOTHED_LATITUDE = 11;
+	public static final int COLUMN_SMOOTHED_LONGITUDE = 12;
+	public static final int COLUMN_SMOOTHED_ACCURACY = 13;
+	public static final int COLUMN_LAST_UPDATE = 14;
+	public static final int COLUMN_RESPONDING_INCIDENT_ID = 15;
+	public static final int COLUMN_USER_ID = 16;
+	public static final int COLUMN_ROW_VERSION = 17;
+	
 	//properties
 	private String hash = "";
+	private long hashKey = Hash.INVALID;
 	private Type type = Type.Other;
 	private InetAddress address = null;
 	private Location location = Location.EMPTY;
@@ -116,7 +143,8 @@ public class Device extends EventObject<DeviceEventListener> implements MySQLUpd
 		
 		if (hash == null)
 			throw new NullPointerException("Parameter 'hash' cannot be null.");
-		if (!Hash.isValid(hash))
+		hashKey = Hash.encode(hash);
+		if (hashKey == Hash.INVALID)
 			throw new IllegalArgumentException("Parameter 'hash' is not a valid WFU device hash ("+hash+").");
 		if (type == Type.Computer)
 			throw new UnsupportedOperationException("Parameter 'type' does not currently support Type.Computer.");
@@ -154,6 +182,15 @@ public class Device extends EventObject<DeviceEventListener> implements MySQLUpd
 	{
 		return hash;
 	}
+	
+	/**
+	 * Gets this Device's Hash in its encoded form.
+	 * @return A non-negative long uniquely identifying this Device (see {@link Hash#encode(CharSequence)}).
+	 */
+	public final long getHashKey()
+	{
+		return hashKey;
+	}
 
 	/**
 	 * Gets this Device's Type.
@@ -266,37 +303,47 @@ public class Device extends EventObject<DeviceEventListener> implements MySQLUpd
 	{
 		if (resultRow == null)
 			throw new NullPointerException("Parameter 'resultRow' cannot be null.");
-		if (!((String)resultRow.get("hash")).equals(getHash()))
+		if (!getHash().equals(resultRow.getString(COLUMN_HASH)))
 			throw new IllegalArgumentException("Parameter 'resultRow' does not have the same primary key as this object.");
 		
 		//update location data
-		Location loc = new Location(
-				(Double)resultRow.get("latitude"),
-				(Double)resultRow.get("longitude"),
-				(Double)resultRow.get("accuracy"),
-				(Double)resultRow.get("altitude"));
-		if (!loc.equals(location))
+		//(prefer the server's smoothed estimate, if it's providing one)
+		//(only allocating a new Location if something has changed)
+		boolean smoothed = !resultRow.isNull(COLUMN_SMOOTHED_LATITUDE) && !resultRow.isNull(COLUMN_SMOOTHED_LONGITUDE);
+		int latitude = smoothed ? COLUMN_SMOOTHED_LATITUDE : COLUMN_LATITUDE;
+		int longitude = smoothed ? COLUMN_SMOOTHED_LONGITUDE : COLUMN_LONGITUDE;
+		int accuracy = smoothed ? COLUMN_SMOOTHED_ACCURACY : COLUMN_ACCURACY;
+		if (!resultRow.matches(latitude, location.getLatitude())
+			|| !resultRow.matches(longitude, location.getLongitude())
+			|| !resultRow.matches(accuracy, location.getAccuracy())
+			|| !resultRow.matches(COLUMN_ALTITUDE, location.getAltitude()))
 		{
 			Location old = location;
-			location = loc;
+			location = new Location(
+				resultRow.getNullableDouble(latitude),
+				resultRow.getNullableDouble(longitude),
+				resultRow.getNullableDouble(accuracy),
+				resultRow.getNullableDouble(COLUMN_ALTITUDE));
 			fireEvent("location", old, location);
 		}
 		
 		//update atmosphere data
-		Atmosphere atmos = new Atmosphere(
-				(Double)resultRow.get("humidity"),
-				(Double)resultRow.get("airPressure"),
-				(Double)resultRow.get("temperature"),
-				(Double)resultRow.get("lightLevel"));
-		if (!atmos.equals(atmosphere))
+		if (!resultRow.matches(COLUMN_HUMIDITY, atmosphere.getHumidity())
+			|| !resultRow.matches(COLUMN_AIR_PRESSURE, atmosphere.getAirPressure())
+			|| !resultRow.matches(COLUMN_TEMPERATURE, atmosphere.getTemperature())
+			|| !resultRow.matches(COLUMN_LIGHT_LEVEL, atmosphere.getLightLevel()))
 		{
 			Atmosphere old = atmosphere;
-			atmosphere = atmos;
+			atmosphere = new Atmosphere(
+				resultRow.getNullableDouble(COLUMN_HUMIDITY),
+				resultRow.getNullableDouble(COLUMN_AIR_PRESSURE),
+				resultRow.getNullableDouble(COLUMN_TEMPERATURE),
+				resultRow.getNullableDouble(COLUMN_LIGHT_LEVEL));
 			fireEvent("atmosphere", old, atmosphere);
 		}
 	
 		//internet address
-		String addressString = (String)resultRow.get("address");
+		String addressString = resultRow.getString(COLUMN_ADDRESS);
 		InetAddress newAddress = null;
 		if (addressString != null && !addressString.isEmpty())
 		{
@@ -318,10 +365,9 @@ public class Device extends EventObject<DeviceEventListener> implements MySQLUpd
 		}
 		
 		//lastUpdate
-		Timestamp ts = (Timestamp)resultRow.get("lastUpdate");
-		if (ts != null && !lastUpdate.equals(ts))
+		if (!resultRow.isNull(COLUMN_LAST_UPDATE) && lastUpdate.getTime() != resultRow.getLong(COLUMN_LAST_UPDATE))
 		{
-			lastUpdate = ts;
+			lastUpdate = resultRow.getTimestamp(COLUMN_LAST_UPDATE);
 			fireEvent("updated");
 		}
 	}
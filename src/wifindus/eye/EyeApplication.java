@@ -5,19 +5,31 @@ import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.io.File;
 import java.net.InetAddress;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,6 +40,7 @@ import wifindus.ConfigFile;
 import wifindus.Debugger;
 import wifindus.DebuggerFrame;
 import wifindus.HighResolutionTimerListener;
+import wifindus.LongHashMap;
 import wifindus.MySQLResultRow;
 import wifindus.MySQLResultSet;
 
@@ -54,10 +67,15 @@ public abstract class EyeApplication extends JFrame
 	private volatile long lastNanoTime;
 	
 	//database structures
-	private transient volatile ConcurrentHashMap<String,Device> devices = new ConcurrentHashMap<>();
-	private transient volatile ConcurrentHashMap<String,Node> nodes = new ConcurrentHashMap<>();
+	//keyed by encoded hash; guarded by their own monitors
+	private transient final LongHashMap<Device> devices = new LongHashMap<>(256);
+	private transient final LongHashMap<Node> nodes = new LongHashMap<>(256);
 	private transient volatile ConcurrentHashMap<Integer,Incident> incidents = new ConcurrentHashMap<>();
 	private transient volatile ConcurrentHashMap<Integer,User> users = new ConcurrentHashMap<>();
+	//deletions from the last DeletedRows fetch, keyed by "table/key", with the newest time of deletion
+	//seen for each; delta fetches overlap, so these turn up again and mustn't be applied twice
+	//(only touched from the update worker's process())
+	private transient Map<String,Long> appliedDeletions = new HashMap<>();
 	
 
 	/////////////////////////////////////////////////////////////////////
@@ -153,11 +171,7 @@ public abstract class EyeApplication extends JFrame
 		config = new ConfigFile(configFiles);
 		//ensure required keys are present and valid, enforce defaults if not
 		//mysql
-		config.defaultString("mysql.username", "root");
-		config.defaultString("mysql.address", "localhost");
-		config.defaultInt("mysql.port", 3306, 1024, 65535);
-		config.defaultString("mysql.database", "wfu_eye_db");
-		config.defaultInt("mysql.update_interval", 1000, 100, 30000);
+		EyeMySQLConnection.defaultConfig(config);
 		//ui stuff
 		config.defaultInt("ui.update_fps", 60);
 		//output config
@@ -168,11 +182,7 @@ public abstract class EyeApplication extends JFrame
 				+ config.getString("mysql.address") + ":" + config.getInt("mysql.port") + "...");
 		try
 		{			
-			mysql.connect(config.getString("mysql.address"),
-					config.getInt("mysql.port"),
-					config.getString("mysql.database"),
-					config.getString("mysql.username"),
-					config.getString("mysql.password"));
+			mysql.connect(config);
 			Debugger.i("Connected OK.");
 		}
 		catch (Exception e)
@@ -187,7 +197,8 @@ public abstract class EyeApplication extends JFrame
 		//create and launch mysql worker task
 		if (spawnSQLThread)
 		{
-			MySQLUpdateWorker mysqlWorker = new MySQLUpdateWorker(config.getInt("mysql.update_interval"));
+			MySQLUpdateWorker mysqlWorker = new MySQLUpdateWorker(config.getInt("mysql.update_interval"),
+				config.getInt("mysql.tombstone_retention"), config.getInt("mysql.pool_size"));
 			mysqlWorker.execute();
 		}
 		
@@ -234,7 +245,10 @@ public abstract class EyeApplication extends JFrame
 	 */
 	public final ArrayList<Device> getDevices()
 	{
-		return new ArrayList<Device>(devices.values());
+		synchronized(devices)
+		{
+			return devices.copyValuesTo(new ArrayList<Device>(devices.size()));
+		}
 	}
 	
 	/**
@@ -256,7 +270,10 @@ public abstract class EyeApplication extends JFrame
 	 */
 	public final ArrayList<Node> getNodes()
 	{
-		return new ArrayList<Node>(nodes.values());
+		synchronized(nodes)
+		{
+			return nodes.copyValuesTo(new ArrayList<Node>(nodes.size()));
+		}
 	}
 	
 	/**
@@ -315,6 +332,30 @@ public abstract class EyeApplication extends JFrame
 		Debugger.v(node + " created");
 	}
 	
+	@Override
+	public void deviceDeleted(Device device)
+	{
+		Debugger.v(device + " deleted");
+	}
+	
+	@Override
+	public void userDeleted(User user)
+	{
+		Debugger.v(user + " deleted");
+	}
+	
+	@Override
+	public void incidentDeleted(Incident incident)
+	{
+		Debugger.v(incident + " deleted");
+	}
+	
+	@Override
+	public void nodeDeleted(Node node)
+	{
+		Debugger.v(node + " deleted");
+	}
+	
 	@Override
 	public void deviceInUse(Device device, User user)
 	{
@@ -410,19 +451,18 @@ public abstract class EyeApplication extends JFrame
 		
 		//manipulate database
 		int generatedID = -1;
-		Statement statement = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		try
 		{
-			statement = mysql.createStatement();
-			statement.executeUpdate("INSERT INTO Incidents "
+			statement = mysql.prepareStatement("INSERT INTO Incidents "
 					+ "(incidentType, latitude, longitude, created) "
-					+ "VALUES ("
-						+"'"+Incident.getDatabaseKeyFromType(type)+"', "
-						+location.getLatitude()+", "
-						+location.getLongitude()+", "
-						+"NOW())"
+					+ "VALUES (?, ?, ?, NOW())"
 					, Statement.RETURN_GENERATED_KEYS);
+			statement.setString(1, Incident.getDatabaseKeyFromType(type));
+			statement.setDouble(2, location.getLatitude().doubleValue());
+			statement.setDouble(3, location.getLongitude().doubleValue());
+			statement.executeUpdate();
 			
 			resultSet = statement.getGeneratedKeys();
 			if (resultSet.next())
@@ -475,19 +515,19 @@ public abstract class EyeApplication extends JFrame
 		
 		//manipulate database
 		int generatedID = -1;
-		Statement statement = null;
+		PreparedStatement statement = null;
 		ResultSet resultSet = null;
 		try
 		{
-			statement = mysql.createStatement();
-			statement.executeUpdate("INSERT INTO Users "
+			statement = mysql.prepareStatement("INSERT INTO Users "
 					+ "(nameFirst, nameMiddle, nameLast, personnelType) "
-					+ "VALUES ("
-						+"'"+nameFirst+"', "
-						+"'"+nameMiddle+"', "
-						+"'"+nameLast+"', "
-						+"'"+Incident.getDatabaseKeyFromType(responderType)+"')"
+					+ "VALUES (?, ?, ?, ?)"
 					, Statement.RETURN_GENERATED_KEYS);
+			statement.setString(1, nameFirst);
+			statement.setString(2, nameMiddle);
+			statement.setString(3, nameLast);
+			statement.setString(4, Incident.getDatabaseKeyFromType(responderType));
+			statement.executeUpdate();
 			
 			resultSet = statement.getGeneratedKeys();
 			if (resultSet.next())
@@ -543,13 +583,16 @@ public abstract class EyeApplication extends JFrame
 		}
 		
 		//manipulate database
-		Statement statement = null;
+		PreparedStatement statement = null;
 		try
 		{
-			statement = mysql.createStatement();
-			statement.executeUpdate("UPDATE Devices SET "
-					+ "respondingIncidentID="+(incident==null ? "NULL" : incident.getID())+" "
-					+ "WHERE hash='"+device.getHash()+"'");
+			statement = mysql.prepareStatement("UPDATE Devices SET respondingIncidentID=? WHERE hash=?");
+			if (incident == null)
+				statement.setNull(1, Types.INTEGER);
+			else
+				statement.setInt(1, incident.getID());
+			statement.setString(2, device.getHash());
+			statement.executeUpdate();
 		}
 		catch (SQLException e)
 		{
@@ -593,25 +636,33 @@ public abstract class EyeApplication extends JFrame
 		}
 		
 		//manipulate database
-		Statement statement = null;
+		//(each statement is released as soon as it's done so that only one pooled connection is held at a time)
+		PreparedStatement statement = null;
 		try
 		{
-			statement = mysql.createStatement();
-			
 			if (respondingUsers.size() > 0)
 			{
-				String archivedRespondersQuery = "INSERT INTO PastIncidentResponders (userID, incidentID) VALUES ";
-				for (int i = 0; i < respondingUsers.size(); i++)
-					archivedRespondersQuery += (i > 0 ? ",":"") + "(" + respondingUsers.get(i).getID() +","+incident.getID()+")";
-				statement.executeUpdate(archivedRespondersQuery);
+				statement = mysql.prepareStatement("INSERT INTO PastIncidentResponders (userID, incidentID) VALUES (?, ?)");
+				for (User user : respondingUsers)
+				{
+					statement.setInt(1, user.getID());
+					statement.setInt(2, incident.getID());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				mysql.release(statement);
+				statement = null;
 			}
 			
-			statement.executeUpdate("UPDATE Devices SET "
-					+ "respondingIncidentID=NULL "
-					+ "WHERE respondingIncidentID="+incident.getID());
-			statement.executeUpdate("UPDATE Incidents SET "
-					+ "archived=1,archivedTime=NOW() "
-					+ "WHERE id="+incident.getID());
+			statement = mysql.prepareStatement("UPDATE Devices SET respondingIncidentID=NULL WHERE respondingIncidentID=?");
+			statement.setInt(1, incident.getID());
+			statement.executeUpdate();
+			mysql.release(statement);
+			statement = null;
+			
+			statement = mysql.prepareStatement("UPDATE Incidents SET archived=1,archivedTime=NOW() WHERE id=?");
+			statement.setInt(1, incident.getID());
+			statement.executeUpdate();
 		}
 		catch (SQLException e)
 		{
@@ -651,13 +702,13 @@ public abstract class EyeApplication extends JFrame
 			return true;
 		
 		//manipulate database
-		Statement statement = null;
+		PreparedStatement statement = null;
 		try
 		{
-			statement = mysql.createStatement();
-			statement.executeUpdate("UPDATE Incidents SET "
-					+ "description='"+description+"' "
-					+ "WHERE id="+incident.getID());
+			statement = mysql.prepareStatement("UPDATE Incidents SET description=? WHERE id=?");
+			statement.setString(1, description);
+			statement.setInt(2, incident.getID());
+			statement.executeUpdate();
 		}
 		catch (SQLException e)
 		{
@@ -691,13 +742,16 @@ public abstract class EyeApplication extends JFrame
 			return true;
 		
 		//manipulate database
-		Statement statement = null;
+		PreparedStatement statement = null;
 		try
 		{
-			statement = mysql.createStatement();
-			statement.executeUpdate("UPDATE Incidents SET "
-					+ "reportingUserID="+(reportingUser == null ? "NULL" : reportingUser.getID())+" "
-					+ "WHERE id="+incident.getID());
+			statement = mysql.prepareStatement("UPDATE Incidents SET reportingUserID=? WHERE id=?");
+			if (reportingUser == null)
+				statement.setNull(1, Types.INTEGER);
+			else
+				statement.setInt(1, reportingUser.getID());
+			statement.setInt(2, incident.getID());
+			statement.executeUpdate();
 		}
 		catch (SQLException e)
 		{
@@ -856,82 +910,118 @@ public abstract class EyeApplication extends JFrame
 	
 	private class MySQLUpdateWorker extends SwingWorker<Void, Object[]>
 	{
+		//delta fetches reach back this far before the last sync, to catch rows whose
+		//transactions were still open (and so not yet visible) when the last sync read them
+		private static final long OVERLAP = 2000L;
+		//old DeletedRows entries are pruned this often
+		private static final long PRUNE_INTERVAL = 3600000L;
 		private int interval = 1000;
+		private long retention = 86400000L;
+		private int fetchThreads = 1;
+		private Timestamp watermark = null;
+		private long lastPrune = 0L;
 		
-		public MySQLUpdateWorker(int interval)
+		public MySQLUpdateWorker(int interval, int retention, int poolSize)
 		{
 			this.interval = interval;
+			this.retention = retention * 3600000L;
+			//one connection is left free for the UI's own writes, and there's
+			//no point in having more threads than there are tables to fetch
+			fetchThreads = Math.max(1, Math.min(5, poolSize - 1));
 		}
 		
 		@Override
 		protected Void doInBackground() throws Exception
 		{
-			while (!abortThreads)
+			ExecutorService fetcher = Executors.newFixedThreadPool(fetchThreads, new ThreadFactory()
 			{
-				//users
-				try
-				{
-					publish(new Object[] { "Users", mysql.fetchUsers() });
-					Thread.sleep(50);
-				}
-				catch (SQLException e)
-				{
-					Debugger.ex(e);
-				}
-				if (abortThreads)
-					break;
+				private int count = 0;
 				
-				//incidents
-				try
-				{
-					publish(new Object[] { "Incidents", mysql.fetchIncidents() });
-					Thread.sleep(50);
-				}
-				catch (SQLException e)
+				@Override
+				public Thread newThread(Runnable r)
 				{
-					Debugger.ex(e);
+					Thread thread = new Thread(r, "MySQL fetch " + (++count));
+					thread.setDaemon(true);
+					return thread;
 				}
-				if (abortThreads)
-					break;
-				
-				//archived incident users
+			});
+			try
+			{
+				sync(fetcher);
+			}
+			finally
+			{
+				fetcher.shutdownNow();
+			}
+			return null;
+		}
+		
+		private void sync(ExecutorService fetcher) throws InterruptedException
+		{
+			while (!abortThreads)
+			{
+				//work out what to fetch; only rows changed since the last complete sync are needed, unless
+				//there hasn't been one, or it was so long ago that its deletions may have been pruned
+				Timestamp now = null;
 				try
 				{
-					publish(new Object[] { "PastIncidentResponders", mysql.fetchPastIncidentResponders() });
-					Thread.sleep(50);
+					now = mysql.fetchDatabaseTime();
 				}
 				catch (SQLException e)
 				{
 					Debugger.ex(e);
 				}
-				if (abortThreads)
-					break;
+				Timestamp since = null;
+				if (now != null && watermark != null && now.getTime() - watermark.getTime() < retention)
+					since = new Timestamp(watermark.getTime() - OVERLAP);
+				boolean complete = now != null;
 				
-				//devices
-				try
-				{
-					publish(new Object[] { "Devices", mysql.fetchDevices() });
-					Thread.sleep(50);
-				}
-				catch (SQLException e)
-				{
-					Debugger.ex(e);
-				}
+				//start every fetch at once, each on its own pooled connection
+				//(known keys are snapshotted first, so anything created locally while the fetches
+				//are running isn't mistaken for something the database has deleted)
+				Set<Object> knownUsers = since == null ? new HashSet<Object>(users.keySet()) : null;
+				Set<Object> knownIncidents = since == null ? new HashSet<Object>(incidents.keySet()) : null;
+				Set<Object> knownDevices = since == null ? getDeviceHashes() : null;
+				Set<Object> knownNodes = since == null ? getNodeHashes() : null;
+				Future<MySQLResultSet> deletionsFetch = since == null ? null : fetcher.submit(new TableFetch("DeletedRows", since));
+				Future<MySQLResultSet> usersFetch = fetcher.submit(new TableFetch("Users", since));
+				Future<MySQLResultSet> incidentsFetch = fetcher.submit(new TableFetch("Incidents", since));
+				Future<MySQLResultSet> respondersFetch = fetcher.submit(new TableFetch("PastIncidentResponders", since));
+				Future<MySQLResultSet> devicesFetch = fetcher.submit(new TableFetch("Devices", since));
+				Future<MySQLResultSet> nodesFetch = fetcher.submit(new TableFetch("Nodes", since));
+				
+				//publish them in dependency order, each as soon as it and everything before it has arrived:
+				//deletions first (so a row deleted and re-added is re-added after being removed), users before the
+				//devices and incidents that link to them, and incidents before their archived responders
+				//(process() handles chunks in the order they were published)
+				complete &= publishFetch("DeletedRows", deletionsFetch, null);
+				complete &= publishFetch("Users", usersFetch, knownUsers);
+				complete &= publishFetch("Incidents", incidentsFetch, knownIncidents);
+				complete &= publishFetch("PastIncidentResponders", respondersFetch, null);
+				complete &= publishFetch("Devices", devicesFetch, knownDevices);
+				complete &= publishFetch("Nodes", nodesFetch, knownNodes);
 				if (abortThreads)
 					break;
 				
-				//nodes
-				try
-				{
-					publish(new Object[] { "Nodes", mysql.fetchNodes() });
-					Thread.sleep(50);
-				}
-				catch (SQLException e)
+				//move the watermark on only if everything was fetched; otherwise start again from scratch
+				//(this also covers databases created before rowVersion and DeletedRows existed)
+				watermark = complete ? now : null;
+				
+				//prune deletions nobody needs any more
+				if (complete && System.currentTimeMillis() - lastPrune >= PRUNE_INTERVAL)
 				{
-					Debugger.ex(e);
+					lastPrune = System.currentTimeMillis();
+					try
+					{
+						int pruned = mysql.pruneDeletions(new Timestamp(now.getTime() - retention));
+						if (pruned > 0)
+							Debugger.v("Pruned " + pruned + " old entries from DeletedRows");
+					}
+					catch (SQLException e)
+					{
+						Debugger.ex(e);
+					}
 				}
-				if (abortThreads)
-					break;
 
 				//sleep for the interval, but do so in short chunks
 				//so that we can terminate quickly if necessary
@@ -942,7 +1032,37 @@ public abstract class EyeApplication extends JFrame
 					counter += 50;
 				}
 			}
-			return null;
+		}
+		
+		/**
+		 * Waits for a fetch to finish and publishes its results.
+		 * @return FALSE if the fetch failed (or was abandoned), TRUE otherwise.
+		 */
+		private boolean publishFetch(String table, Future<MySQLResultSet> fetch, Set<Object> known) throws InterruptedException
+		{
+			if (fetch == null)
+				return true;
+			if (abortThreads)
+			{
+				fetch.cancel(false);
+				return false;
+			}
+			try
+			{
+				publish(new Object[] { table, fetch.get(), known });
+				return true;
+			}
+			catch (ExecutionException e)
+			{
+				Throwable cause = e.getCause();
+				if (cause instanceof SQLException)
+					Debugger.ex((SQLException)cause);
+				else if (cause instanceof Exception)
+					Debugger.ex((Exception)cause);
+				else
+					Debugger.ex(e);
+				return false;
+			}
 		}
 		
 		@Override
@@ -952,20 +1072,53 @@ public abstract class EyeApplication extends JFrame
 			{
 				String table = (String)kvp[0];
 				MySQLResultSet results = (MySQLResultSet)kvp[1];
+				@SuppressWarnings("unchecked")
+				Set<Object> known = (Set<Object>)kvp[2];
 				
 				switch (table)
 				{
-					case "Users": processUsers(results); break;
-					case "Devices": processDevices(results); break;
-					case "Nodes": processNodes(results); break;
-					case "Incidents": processIncidents(results); break;
+					case "Users": processUsers(results, known); break;
+					case "Devices": processDevices(results, known); break;
+					case "Nodes": processNodes(results, known); break;
+					case "Incidents": processIncidents(results, known); break;
 					case "PastIncidentResponders": processPastIncidentResponders(results); break;
+					case "DeletedRows": processDeletions(results); break;
 					
 				}
 			}
 		}
 	};
 	
+	/**
+	 * Fetches one table's rows on whichever pooled connection is free.
+	 */
+	private class TableFetch implements Callable<MySQLResultSet>
+	{
+		private final String table;
+		private final Timestamp since;
+		
+		public TableFetch(String table, Timestamp since)
+		{
+			this.table = table;
+			this.since = since;
+		}
+		
+		@Override
+		public MySQLResultSet call() throws SQLException
+		{
+			switch (table)
+			{
+				case "Users": return mysql.fetchUsers(since);
+				case "Devices": return mysql.fetchDevices(since);
+				case "Nodes": return mysql.fetchNodes(since);
+				case "Incidents": return mysql.fetchIncidents(since);
+				case "PastIncidentResponders": return mysql.fetchPastIncidentResponders(since);
+				case "DeletedRows": return mysql.fetchDeletions(since);
+			}
+			throw new IllegalArgumentException("Unknown table '" + table + "'.");
+		}
+	}
+	
 	private void processPastIncidentResponders(MySQLResultSet results)
 	{
 		//check and cache ID's for performance if we have a lot
@@ -974,25 +1127,26 @@ public abstract class EyeApplication extends JFrame
 		Incident incident = null;
 		
 		//process entries from database
-		for (Map.Entry< Object, MySQLResultRow > entry : results.entrySet())
+		//(rows are keyed by their order in the results)
+		for (int i = 0; i < results.size(); i++)
 		{
 			//get integer
-			Integer newID = (Integer)entry.getValue().get("incidentID");
-			if (newID == null)
+			MySQLResultRow row = results.get(i);
+			if (row.isNull(EyeMySQLConnection.RESPONDER_INCIDENT_ID))
 				continue;
-			if (id == -1 || incident == null || newID.intValue() != id)
+			int newID = row.getInt(EyeMySQLConnection.RESPONDER_INCIDENT_ID);
+			if (id == -1 || incident == null || newID != id)
 			{
-				id = newID.intValue();
+				id = newID;
 				incident = incidents.get(newID);
 			}
 			if (incident == null || !incident.isArchived())
 				continue;
 			
 			//get the user
-			Integer userID = (Integer)entry.getValue().get("userID");
-			if (userID == null)
+			if (row.isNull(EyeMySQLConnection.RESPONDER_USER_ID))
 				continue;
-			User responder = users.get(userID);
+			User responder = users.get(row.getInt(EyeMySQLConnection.RESPONDER_USER_ID));
 			
 			//assign user to incident
 			if (responder != null)
@@ -1000,8 +1154,9 @@ public abstract class EyeApplication extends JFrame
 		}
 	}
 	
-	private void processUsers(MySQLResultSet results)
+	private void processUsers(MySQLResultSet results, Set<Object> known)
 	{
+		dropDeleted("Users", results, User.COLUMN_ROW_VERSION);
 		for (Map.Entry< Object, MySQLResultRow > entry : results.entrySet())
 		{
 			Integer id = (Integer)entry.getKey();
@@ -1010,68 +1165,178 @@ public abstract class EyeApplication extends JFrame
 				addNewUser(id, user = new User(entry.getValue(), this));
 			user.updateFromMySQL(entry.getValue());
 		}
+		
+		//full sync: anything we had that the database doesn't must have been deleted
+		if (known != null)
+		{
+			for (Object id : known)
+				if (!results.containsKey(id))
+					removeUser((Integer)id);
+		}
 	}
 	
-	private void processDevices(MySQLResultSet results)
+	private void processDevices(MySQLResultSet results, Set<Object> known)
 	{
+		dropDeleted("Devices", results, Device.COLUMN_ROW_VERSION);
+		
 		//update devices
 		for (Map.Entry< Object, MySQLResultRow > entry : results.entrySet())
 		{
 			//properties
 			String hash = (String)entry.getKey();
-			Device device = devices.get(hash);
+			MySQLResultRow row = entry.getValue();
+			Device device;
+			synchronized(devices)
+			{
+				device = devices.get(Hash.encode(hash));
+			}
 			if (device == null)
-				addNewDevice(hash, device = new Device(hash, (Device.Type)(entry.getValue().get("deviceType")), this));
-			device.updateFromMySQL(entry.getValue());
+				addNewDevice(hash, device = new Device(hash, (Device.Type)row.getObject(Device.COLUMN_TYPE), this));
+			device.updateFromMySQL(row);
 			
 			//linked user
-			Integer userKey = (Integer)(entry.getValue().get("userID"));
-			device.updateUser(userKey == null ? null : users.get(userKey));
+			device.updateUser(row.isNull(Device.COLUMN_USER_ID)
+				? null : users.get(row.getInt(Device.COLUMN_USER_ID)));
 			
 			//linked incident
-			Integer incidentKey = (Integer)(entry.getValue().get("respondingIncidentID"));
-			device.updateIncident(incidentKey == null ? null : incidents.get(incidentKey));
+			device.updateIncident(row.isNull(Device.COLUMN_RESPONDING_INCIDENT_ID)
+				? null : incidents.get(row.getInt(Device.COLUMN_RESPONDING_INCIDENT_ID)));
+		}
+		
+		//full sync: anything we had that the database doesn't must have been deleted
+		if (known != null)
+		{
+			for (Object hash : known)
+				if (!results.containsKey(hash))
+					removeDevice((String)hash);
 		}
 	}
 	
-	private void processNodes(MySQLResultSet results)
+	private void processNodes(MySQLResultSet results, Set<Object> known)
 	{
+		dropDeleted("Nodes", results, Node.COLUMN_ROW_VERSION);
 		for (Map.Entry< Object, MySQLResultRow > entry : results.entrySet())
 		{
 			String hash = (String)entry.getKey();
-			Node node = nodes.get(hash);
+			Node node;
+			synchronized(nodes)
+			{
+				node = nodes.get(Hash.encode(hash));
+			}
 			if (node == null)
 				addNewNode(hash, node = new Node(hash, this));
 			node.updateFromMySQL(entry.getValue());	
 		}
+		
+		//full sync: anything we had that the database doesn't must have been deleted
+		if (known != null)
+		{
+			for (Object hash : known)
+				if (!results.containsKey(hash))
+					removeNode((String)hash);
+		}
 	}
 	
-	private void processIncidents(MySQLResultSet results)
+	private void processIncidents(MySQLResultSet results, Set<Object> known)
 	{
+		dropDeleted("Incidents", results, Incident.COLUMN_ROW_VERSION);
+		
 		//process incidents
 		for (Map.Entry< Object, MySQLResultRow > entry : results.entrySet())
 		{
 			Integer id = (Integer)entry.getKey();
+			MySQLResultRow row = entry.getValue();
 			Incident incident = incidents.get(id);
 			if (incident == null)
 			{
 				addNewIncident(id, incident = new Incident(id.intValue(),
-					(Incident.Type)(entry.getValue().get("incidentType")),
+					(Incident.Type)row.getObject(Incident.COLUMN_TYPE),
 					new Location(
-						(Double)entry.getValue().get("latitude"),
-						(Double)entry.getValue().get("longitude"),
-						(Double)entry.getValue().get("accuracy"),
-						(Double)entry.getValue().get("altitude")
+						row.getNullableDouble(Incident.COLUMN_LATITUDE),
+						row.getNullableDouble(Incident.COLUMN_LONGITUDE),
+						row.getNullableDouble(Incident.COLUMN_ACCURACY),
+						row.getNullableDouble(Incident.COLUMN_ALTITUDE)
 					),
-					(Timestamp)(entry.getValue().get("created")),
+					row.getTimestamp(Incident.COLUMN_CREATED),
 					this));
 
 			}
-			incident.updateFromMySQL(entry.getValue());
+			incident.updateFromMySQL(row);
 			
 			//reporting user
-			Integer userKey = (Integer)(entry.getValue().get("reportingUserID"));
-			incident.updateReportingUser(userKey == null ? null : users.get(userKey));
+			incident.updateReportingUser(row.isNull(Incident.COLUMN_REPORTING_USER_ID)
+				? null : users.get(row.getInt(Incident.COLUMN_REPORTING_USER_ID)));
+		}
+		
+		//full sync: anything we had that the database doesn't must have been deleted
+		if (known != null)
+		{
+			for (Object id : known)
+				if (!results.containsKey(id))
+					removeIncident((Integer)id);
+		}
+	}
+	
+	private void processDeletions(MySQLResultSet results)
+	{
+		//rows are keyed by their order of deletion
+		//(each fetch reaches back over everything an earlier one could have missed, so only
+		//the deletions in this one need remembering for the next)
+		Map<String,Long> applied = new HashMap<>();
+		for (int i = 0; i < results.size(); i++)
+		{
+			MySQLResultRow row = results.get(i);
+			String table = row.getString(EyeMySQLConnection.DELETED_TABLE);
+			String key = row.getString(EyeMySQLConnection.DELETED_ROW_KEY);
+			if (table == null || key == null)
+				continue;
+			
+			//skip deletions already applied by an earlier, overlapping fetch
+			//(the row may have been re-created since, and mustn't be removed again)
+			String id = table + "/" + key;
+			long deleted = row.getLong(EyeMySQLConnection.DELETED_TIME);
+			Long previous = appliedDeletions.get(id);
+			if (previous != null && deleted <= previous.longValue())
+			{
+				applied.put(id, previous);
+				continue;
+			}
+			applied.put(id, deleted);
+			
+			try
+			{
+				switch (table)
+				{
+					case "Users": removeUser(Integer.valueOf(key)); break;
+					case "Incidents": removeIncident(Integer.valueOf(key)); break;
+					case "Devices": removeDevice(key); break;
+					case "Nodes": removeNode(key); break;
+				}
+			}
+			catch (IllegalArgumentException e)
+			{
+				Debugger.w("Ignoring malformed DeletedRows entry (" + table + ", " + key + ")");
+			}
+		}
+		appliedDeletions = applied;
+	}
+	
+	private void dropDeleted(String table, MySQLResultSet results, int versionColumn)
+	{
+		//the DeletedRows fetch runs alongside the table fetches, so a row can be read just before
+		//it's deleted and arrive after its deletion has been applied; anything not written since
+		//the newest deletion seen for its key is one of those, and would otherwise be re-added
+		//(a row re-created after its deletion gets a newer rowVersion, so it's kept)
+		if (appliedDeletions.isEmpty())
+			return;
+		Iterator<Map.Entry< Object, MySQLResultRow >> it = results.entrySet().iterator();
+		while (it.hasNext())
+		{
+			Map.Entry< Object, MySQLResultRow > entry = it.next();
+			Long deleted = appliedDeletions.get(table + "/" + entry.getKey());
+			if (deleted != null && !entry.getValue().isNull(versionColumn)
+				&& entry.getValue().getLong(versionColumn) <= deleted.longValue())
+				it.remove();
 		}
 	}
 	
@@ -1106,7 +1371,10 @@ public abstract class EyeApplication extends JFrame
 	private void addNewDevice(String hash, Device device)
 	{
 		//add to array
-		devices.put(hash, device);
+		synchronized(devices)
+		{
+			devices.put(device.getHashKey(), device);
+		}
 		
 		//fire creation event
 		synchronized(listeners)
@@ -1120,7 +1388,10 @@ public abstract class EyeApplication extends JFrame
 	private void addNewNode(String hash, Node node)
 	{
 		//add to array
-		nodes.put(hash, node);
+		synchronized(nodes)
+		{
+			nodes.put(node.getHashKey(), node);
+		}
 		
 		//fire creation event
 		synchronized(listeners)
@@ -1131,6 +1402,116 @@ public abstract class EyeApplication extends JFrame
 		}
 	}
 	
+	private void removeUser(Integer id)
+	{
+		//remove from array
+		User user = users.remove(id);
+		if (user == null)
+			return;
+		
+		//unlink from anything still referring to it
+		Device device = user.getCurrentDevice();
+		if (device != null)
+			device.updateUser(null);
+		for (Incident incident : incidents.values())
+			if (incident.getReportingUser() == user)
+				incident.updateReportingUser(null);
+		
+		//fire deletion event
+		synchronized(listeners)
+		{
+			ListIterator<EyeApplicationListener> iterator = listeners.listIterator();
+			while(iterator.hasNext())
+				iterator.next().userDeleted(user);
+		}
+	}
+	
+	private void removeIncident(Integer id)
+	{
+		//remove from array
+		Incident incident = incidents.remove(id);
+		if (incident == null)
+			return;
+		
+		//unlink from anything still referring to it
+		for (Device device : incident.getRespondingDevices())
+			device.updateIncident(null);
+		
+		//fire deletion event
+		synchronized(listeners)
+		{
+			ListIterator<EyeApplicationListener> iterator = listeners.listIterator();
+			while(iterator.hasNext())
+				iterator.next().incidentDeleted(incident);
+		}
+	}
+	
+	private void removeDevice(String hash)
+	{
+		if (!Hash.isValid(hash))
+			throw new IllegalArgumentException("Parameter 'hash' is not a valid WFU device hash ("+hash+").");
+		
+		//remove from array
+		Device device;
+		synchronized(devices)
+		{
+			device = devices.remove(Hash.encode(hash));
+		}
+		if (device == null)
+			return;
+		
+		//unlink from anything still referring to it
+		device.updateUser(null);
+		device.updateIncident(null);
+		
+		//fire deletion event
+		synchronized(listeners)
+		{
+			ListIterator<EyeApplicationListener> iterator = listeners.listIterator();
+			while(iterator.hasNext())
+				iterator.next().deviceDeleted(device);
+		}
+	}
+	
+	private void removeNode(String hash)
+	{
+		if (!Hash.isValid(hash))
+			throw new IllegalArgumentException("Parameter 'hash' is not a valid WFU node hash ("+hash+").");
+		
+		//remove from array
+		Node node;
+		synchronized(nodes)
+		{
+			node = nodes.remove(Hash.encode(hash));
+		}
+		if (node == null)
+			return;
+		
+		//fire deletion event
+		synchronized(listeners)
+		{
+			ListIterator<EyeApplicationListener> iterator = listeners.listIterator();
+			while(iterator.hasNext())
+				iterator.next().nodeDeleted(node);
+		}
+	}
+	
+	private Set<Object> getDeviceHashes()
+	{
+		Set<Object> hashes = new HashSet<>();
+		for (Device device : getDevices())
+			hashes.add(device.getHash());
+		return hashes;
+	}
+	
+	private Set<Object> getNodeHashes()
+	{
+		Set<Object> hashes = new HashSet<>();
+		for (Node node : getNodes())
+			hashes.add(node.getHash());
+		return hashes;
+	}
+	
 	private void startTimer()
 	{
 		if (timer != null)
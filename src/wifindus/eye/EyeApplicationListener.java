@@ -29,4 +29,31 @@ public interface EyeApplicationListener
 	 * @param user The new user object.
 	 */
 	public void userCreated(User user);
+	
+	/**
+	 * Event fired when a Device is deleted from the database.
+	 * Any user or incident it was linked to has already been unlinked.
+	 * @param device The deleted device object.
+	 */
+	public void deviceDeleted(Device device);
+	
+	/**
+	 * Event fired when an Incident is deleted from the database.
+	 * Any devices responding to it have already been unassigned.
+	 * @param incident The deleted incident object.
+	 */
+	public void incidentDeleted(Incident incident);
+	
+	/**
+	 * Event fired when a Node is deleted from the database.
+	 * @param node The deleted node object.
+	 */
+	public void nodeDeleted(Node node);
+	
+	/**
+	 * Event fired when a User is deleted from the database.
+	 * Any device they were using has already been logged out.
+	 * @param user The deleted user object.
+	 */
+	public void userDeleted(User user);
 }
@@ -3,7 +3,9 @@ package wifindus.eye;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 
+import wifindus.ConfigFile;
 import wifindus.MySQLConnection;
 import wifindus.MySQLResultRow;
 import wifindus.MySQLResultSet;
@@ -15,94 +17,226 @@ import wifindus.MySQLResultSet;
  */
 public class EyeMySQLConnection extends MySQLConnection
 {
+	/**
+	 * Column ordinals of the rows returned by {@link #fetchPastIncidentResponders(Timestamp)}.
+	 */
+	public static final int RESPONDER_USER_ID = 0, RESPONDER_INCIDENT_ID = 1;
+	
+	/**
+	 * Column ordinals of the rows returned by {@link #fetchDeletions(Timestamp)}.
+	 */
+	public static final int DELETED_TABLE = 0, DELETED_ROW_KEY = 1, DELETED_TIME = 2;
+	
+	//explicit column lists, so rows can be read by ordinal
+	private static final String SELECT_USERS = select(User.COLUMNS, "Users");
+	private static final String SELECT_NODES = select(Node.COLUMNS, "Nodes");
+	private static final String SELECT_INCIDENTS = select(Incident.COLUMNS, "Incidents");
+	private static final String SELECT_DEVICES = select(Device.COLUMNS, "Devices");
+	private static final String SELECT_RESPONDERS = "SELECT userID, incidentID FROM PastIncidentResponders";
+	
 	/////////////////////////////////////////////////////////////////////
 	// PUBLIC METHODS
 	/////////////////////////////////////////////////////////////////////
 	
+	/**
+	 * Ensures the <code>mysql.*</code> connection keys are present and valid, applying defaults if not.
+	 * @param config The config to check.
+	 * @throws NullPointerException if config is null.
+	 */
+	public static final void defaultConfig(ConfigFile config)
+	{
+		if (config == null)
+			throw new NullPointerException("Parameter 'config' cannot be null.");
+		config.defaultString("mysql.username", "root");
+		config.defaultString("mysql.address", "localhost");
+		config.defaultInt("mysql.port", 3306, 1024, 65535);
+		config.defaultString("mysql.database", "wfu_eye_db");
+		config.defaultInt("mysql.update_interval", 1000, 100, 30000);
+		config.defaultInt("mysql.tombstone_retention", 24, 1, 720);
+		config.defaultInt("mysql.pool_size", 4, 1, 64);
+		config.defaultInt("mysql.pool_timeout", 5000, 100, 60000);
+		config.defaultInt("mysql.pool_idle_timeout", 60000, 1000, 3600000);
+	}
+	
+	/**
+	 * Connects to the database described by a config's <code>mysql.*</code> keys, sizing the connection pool
+	 * from <code>mysql.pool_size</code>, <code>mysql.pool_timeout</code> and <code>mysql.pool_idle_timeout</code>.
+	 * @param config The config to read. {@link #defaultConfig(ConfigFile)} should already have been applied to it.
+	 * @throws IllegalStateException If the driver could not be loaded, if a connection already exists, or if the connection failed.
+	 * @throws NullPointerException if config is null.
+	 */
+	public final void connect(ConfigFile config) throws IllegalStateException
+	{
+		if (config == null)
+			throw new NullPointerException("Parameter 'config' cannot be null.");
+		setPoolLimits(config.getInt("mysql.pool_size"),
+			config.getInt("mysql.pool_timeout"),
+			config.getInt("mysql.pool_idle_timeout"));
+		connect(config.getString("mysql.address"),
+			config.getInt("mysql.port"),
+			config.getString("mysql.database"),
+			config.getString("mysql.username"),
+			config.getString("mysql.password"));
+	}
+	
 	public MySQLResultSet fetchUsers() throws SQLException
 	{
-		PreparedStatement statement = prepareStatement("SELECT * FROM Users");
-		ResultSet resultSet = statement.executeQuery();
+		return fetchUsers(null);
+	}
+	
+	/**
+	 * Fetches the users changed since a given time.
+	 * @param since Only rows whose rowVersion is at or after this time are fetched. Use null to fetch every row.
+	 * @return The matching rows, keyed by user ID.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public MySQLResultSet fetchUsers(Timestamp since) throws SQLException
+	{
+		PreparedStatement statement = prepareFetch(SELECT_USERS, since, null);
+		ResultSet resultSet = null;
 		MySQLResultSet results = new MySQLResultSet();
-		while (resultSet.next())
-		{
-			Integer id = Integer.valueOf(resultSet.getInt("id"));
-			results.put(id,
-				"id", id,
-				"nameFirst", resultSet.getString("nameFirst"),
-				"nameMiddle", resultSet.getString("nameMiddle"),
-				"nameLast", resultSet.getString("nameLast"),
-				"personnelType", Incident.getTypeFromDatabaseKey(resultSet.getString("personnelType"))
-				);
-		}
-		release(resultSet);
-		release(statement);
+		try
+		{
+			resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				MySQLResultRow row = new MySQLResultRow(User.COLUMNS.length);
+				row.readInt(resultSet, User.COLUMN_ID);
+				row.readString(resultSet, User.COLUMN_NAME_FIRST);
+				row.readString(resultSet, User.COLUMN_NAME_MIDDLE);
+				row.readString(resultSet, User.COLUMN_NAME_LAST);
+				row.setObject(User.COLUMN_PERSONNEL_TYPE,
+					Incident.getTypeFromDatabaseKey(resultSet.getString(User.COLUMN_PERSONNEL_TYPE + 1)));
+				row.readTimestamp(resultSet, User.COLUMN_ROW_VERSION);
+				results.put(Integer.valueOf(row.getInt(User.COLUMN_ID)), row);
+			}
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
 		return results;
 	}
 	
 
 	public MySQLResultSet fetchNodes() throws SQLException
 	{
-		PreparedStatement statement = prepareStatement("SELECT * FROM Nodes");
-		ResultSet resultSet = statement.executeQuery();
+		return fetchNodes(null);
+	}
+	
+	/**
+	 * Fetches the nodes changed since a given time.
+	 * @param since Only rows whose rowVersion is at or after this time are fetched. Use null to fetch every row.
+	 * @return The matching rows, keyed by node hash.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public MySQLResultSet fetchNodes(Timestamp since) throws SQLException
+	{
+		PreparedStatement statement = prepareFetch(SELECT_NODES, since, null);
+		ResultSet resultSet = null;
 		MySQLResultSet results = new MySQLResultSet();
-		while (resultSet.next())
-		{
-			String hash = resultSet.getString("hash");
-			results.put(hash,
-				"hash", hash,				
-				"address", resultSet.getString("address"),
-				"latitude", getNullableDouble(resultSet, "latitude"),
-				"longitude", getNullableDouble(resultSet, "longitude"),
-				"altitude", getNullableDouble(resultSet, "altitude"),
-				"accuracy", getNullableDouble(resultSet, "accuracy"),
-				"voltage", getNullableDouble(resultSet, "voltage"),
-				"lastUpdate", resultSet.getTimestamp("lastUpdate")
-				);
-		}
-		release(resultSet);
-		release(statement);
+		try
+		{
+			resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				MySQLResultRow row = new MySQLResultRow(Node.COLUMNS.length);
+				row.readString(resultSet, Node.COLUMN_HASH);
+				row.readString(resultSet, Node.COLUMN_ADDRESS);
+				row.readDouble(resultSet, Node.COLUMN_LATITUDE);
+				row.readDouble(resultSet, Node.COLUMN_LONGITUDE);
+				row.readDouble(resultSet, Node.COLUMN_ALTITUDE);
+				row.readDouble(resultSet, Node.COLUMN_ACCURACY);
+				row.readDouble(resultSet, Node.COLUMN_VOLTAGE);
+				row.readTimestamp(resultSet, Node.COLUMN_LAST_UPDATE);
+				row.readTimestamp(resultSet, Node.COLUMN_ROW_VERSION);
+				results.put(row.getString(Node.COLUMN_HASH), row);
+			}
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
 		return results;	
 	}
 	
 	public MySQLResultSet fetchIncidents() throws SQLException
 	{
-		PreparedStatement statement = prepareStatement("SELECT * FROM Incidents");
-		ResultSet resultSet = statement.executeQuery();
+		return fetchIncidents(null);
+	}
+	
+	/**
+	 * Fetches the incidents changed since a given time.
+	 * @param since Only rows whose rowVersion is at or after this time are fetched. Use null to fetch every row.
+	 * @return The matching rows, keyed by incident ID.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public MySQLResultSet fetchIncidents(Timestamp since) throws SQLException
+	{
+		PreparedStatement statement = prepareFetch(SELECT_INCIDENTS, since, null);
+		ResultSet resultSet = null;
 		MySQLResultSet results = new MySQLResultSet();
-		while (resultSet.next())
-		{
-			Integer id = Integer.valueOf(resultSet.getInt("id"));
-			results.put(id,
-				"id", id,			
-				"incidentType", Incident.getTypeFromDatabaseKey(resultSet.getString("incidentType")),
-				"latitude", Double.valueOf(resultSet.getDouble("latitude")),
-				"longitude", Double.valueOf(resultSet.getDouble("longitude")),
-				"altitude", getNullableDouble(resultSet, "altitude"),
-				"accuracy", getNullableDouble(resultSet, "accuracy"),
-				"created", resultSet.getTimestamp("created"),
-				"archived", (resultSet.getShort("archived") != 0),
-				"archivedTime", resultSet.getTimestamp("archivedTime"),
-				"severity", resultSet.getInt("severity"),
-				"code", resultSet.getString("code"),
-				"description", resultSet.getString("description"),
-				"reportingUserID", getNullableInt(resultSet, "reportingUserID")
-				);
-		}
-		release(resultSet);
-		release(statement);
+		try
+		{
+			resultSet = statement.executeQuery();
+			while (resultSet.next())
+			{
+				MySQLResultRow row = new MySQLResultRow(Incident.COLUMNS.length);
+				row.readInt(resultSet, Incident.COLUMN_ID);
+				row.setObject(Incident.COLUMN_TYPE,
+					Incident.getTypeFromDatabaseKey(resultSet.getString(Incident.COLUMN_TYPE + 1)));
+				row.readDouble(resultSet, Incident.COLUMN_LATITUDE);
+				row.readDouble(resultSet, Incident.COLUMN_LONGITUDE);
+				row.readDouble(resultSet, Incident.COLUMN_ALTITUDE);
+				row.readDouble(resultSet, Incident.COLUMN_ACCURACY);
+				row.readTimestamp(resultSet, Incident.COLUMN_CREATED);
+				row.readBoolean(resultSet, Incident.COLUMN_ARCHIVED);
+				row.readTimestamp(resultSet, Incident.COLUMN_ARCHIVED_TIME);
+				row.readInt(resultSet, Incident.COLUMN_SEVERITY);
+				row.readString(resultSet, Incident.COLUMN_CODE);
+				row.readString(resultSet, Incident.COLUMN_DESCRIPTION);
+				row.readInt(resultSet, Incident.COLUMN_REPORTING_USER_ID);
+				row.readTimestamp(resultSet, Incident.COLUMN_ROW_VERSION);
+				results.put(Integer.valueOf(row.getInt(Incident.COLUMN_ID)), row);
+			}
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
 		return results;
 	}
 
 	public MySQLResultSet fetchDevices() throws SQLException
 	{
-		PreparedStatement statement = prepareStatement("SELECT * FROM Devices");
-		ResultSet resultSet = statement.executeQuery();
+		return fetchDevices(null);
+	}
+	
+	/**
+	 * Fetches the devices changed since a given time.
+	 * @param since Only rows whose rowVersion is at or after this time are fetched. Use null to fetch every row.
+	 * @return The matching rows, keyed by device hash.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public MySQLResultSet fetchDevices(Timestamp since) throws SQLException
+	{
+		PreparedStatement statement = prepareFetch(SELECT_DEVICES, since, null);
+		ResultSet resultSet = null;
 		MySQLResultSet results = new MySQLResultSet();
-		while (resultSet.next())
-			parseDeviceRow(resultSet, results);
-		release(resultSet);
-		release(statement);
+		try
+		{
+			resultSet = statement.executeQuery();
+			while (resultSet.next())
+				parseDeviceRow(resultSet, results);
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
 		return results;	
 	}
 	
@@ -113,13 +247,21 @@ public class EyeMySQLConnection extends MySQLConnection
 		if (!Hash.isValid(hash))
 			throw new IllegalArgumentException("Parameter 'hash' is not a valid WFU device hash ("+hash+").");
 		
-		PreparedStatement statement = prepareStatement("SELECT * FROM Devices WHERE hash='"+hash+"' LIMIT 1");
-		ResultSet resultSet = statement.executeQuery();
+		PreparedStatement statement = prepareStatement(SELECT_DEVICES + " WHERE hash=? LIMIT 1");
+		ResultSet resultSet = null;
 		MySQLResultSet results = new MySQLResultSet();
-		while (resultSet.next())
-			parseDeviceRow(resultSet, results);
-		release(resultSet);
-		release(statement);
+		try
+		{
+			statement.setString(1, hash);
+			resultSet = statement.executeQuery();
+			while (resultSet.next())
+				parseDeviceRow(resultSet, results);
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
 		if (results.size() == 0)
 			return null;
 		return results.get(hash);
@@ -127,43 +269,187 @@ public class EyeMySQLConnection extends MySQLConnection
 
 	public MySQLResultSet fetchPastIncidentResponders() throws SQLException
 	{
-		PreparedStatement statement = prepareStatement("SELECT * FROM PastIncidentResponders ORDER BY incidentID ASC");
-		ResultSet resultSet = statement.executeQuery();
+		return fetchPastIncidentResponders(null);
+	}
+	
+	/**
+	 * Fetches the archived incident responders added since a given time.
+	 * @param since Only rows whose rowVersion is at or after this time are fetched. Use null to fetch every row.
+	 * @return The matching rows in order of incident ID, keyed by their index in that order.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public MySQLResultSet fetchPastIncidentResponders(Timestamp since) throws SQLException
+	{
+		PreparedStatement statement = prepareFetch(SELECT_RESPONDERS, since, "incidentID ASC");
+		ResultSet resultSet = null;
 		MySQLResultSet results = new MySQLResultSet();
-		int i = 0;
-		while (resultSet.next())
+		try
+		{
+			resultSet = statement.executeQuery();
+			int i = 0;
+			while (resultSet.next())
+			{
+				MySQLResultRow row = new MySQLResultRow(2);
+				row.readInt(resultSet, RESPONDER_USER_ID);
+				row.readInt(resultSet, RESPONDER_INCIDENT_ID);
+				results.put(i++, row);
+			}
+		}
+		finally
 		{
-			results.put(i++,
-				"userID", Integer.valueOf(resultSet.getInt("userID")),
-				"incidentID", Integer.valueOf(resultSet.getInt("incidentID"))
-				);
+			release(resultSet);
+			release(statement);
 		}
-		release(resultSet);
-		release(statement);
 		return results;	
 	}
 	
+	/**
+	 * Fetches the rows deleted since a given time, as recorded in the DeletedRows table by the delete triggers.
+	 * @param since Only deletions at or after this time are fetched.
+	 * @return The matching rows, each with a table name (e.g. "Devices") at {@link #DELETED_TABLE}, the deleted row's
+	 * ID or hash (as a String) at {@link #DELETED_ROW_KEY} and the time of deletion at {@link #DELETED_TIME},
+	 * in order of deletion and keyed by their index in that order.
+	 * @throws SQLException if an SQL error occurs.
+	 * @throws NullPointerException if since is null.
+	 */
+	public MySQLResultSet fetchDeletions(Timestamp since) throws SQLException
+	{
+		if (since == null)
+			throw new NullPointerException("Parameter 'since' cannot be null.");
+		
+		PreparedStatement statement = prepareStatement("SELECT tableName, rowKey, deleted FROM DeletedRows WHERE deleted >= ? ORDER BY deleted ASC");
+		ResultSet resultSet = null;
+		MySQLResultSet results = new MySQLResultSet();
+		try
+		{
+			statement.setTimestamp(1, since);
+			resultSet = statement.executeQuery();
+			int i = 0;
+			while (resultSet.next())
+			{
+				MySQLResultRow row = new MySQLResultRow(3);
+				row.readString(resultSet, DELETED_TABLE);
+				row.readString(resultSet, DELETED_ROW_KEY);
+				row.readTimestamp(resultSet, DELETED_TIME);
+				results.put(i++, row);
+			}
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
+		return results;
+	}
+	
+	/**
+	 * Removes old entries from the DeletedRows table.
+	 * @param before Deletions recorded before this time are removed.
+	 * @return The number of entries removed.
+	 * @throws SQLException if an SQL error occurs.
+	 * @throws NullPointerException if before is null.
+	 */
+	public int pruneDeletions(Timestamp before) throws SQLException
+	{
+		if (before == null)
+			throw new NullPointerException("Parameter 'before' cannot be null.");
+		
+		PreparedStatement statement = prepareStatement("DELETE FROM DeletedRows WHERE deleted < ?");
+		int count = 0;
+		try
+		{
+			statement.setTimestamp(1, before);
+			count = statement.executeUpdate();
+		}
+		finally
+		{
+			release(statement);
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the current time according to the database server, which is the clock rowVersion columns are set from.
+	 * @return The database server's current time, to the millisecond.
+	 * @throws SQLException if an SQL error occurs.
+	 */
+	public Timestamp fetchDatabaseTime() throws SQLException
+	{
+		PreparedStatement statement = prepareStatement("SELECT NOW(3)");
+		ResultSet resultSet = null;
+		Timestamp now = null;
+		try
+		{
+			resultSet = statement.executeQuery();
+			now = resultSet.next() ? resultSet.getTimestamp(1) : null;
+		}
+		finally
+		{
+			release(resultSet);
+			release(statement);
+		}
+		if (now == null)
+			throw new SQLException("The database server did not return the current time.");
+		return now;
+	}
+	
 	/////////////////////////////////////////////////////////////////////
 	// PRIVATE METHODS
 	/////////////////////////////////////////////////////////////////////
 	
+	private static String select(String[] columns, String table)
+	{
+		StringBuilder sb = new StringBuilder("SELECT ");
+		for (int i = 0; i < columns.length; i++)
+			sb.append(i > 0 ? ", " : "").append(columns[i]);
+		return sb.append(" FROM ").append(table).toString();
+	}
+	
+	private PreparedStatement prepareFetch(String select, Timestamp since, String orderBy) throws SQLException
+	{
+		String query = select;
+		if (since != null)
+			query += " WHERE rowVersion >= ?";
+		if (orderBy != null)
+			query += " ORDER BY " + orderBy;
+		PreparedStatement statement = prepareStatement(query);
+		if (since != null)
+		{
+			try
+			{
+				statement.setTimestamp(1, since);
+			}
+			catch (SQLException e)
+			{
+				release(statement);
+				throw e;
+			}
+		}
+		return statement;
+	}
+	
 	public void parseDeviceRow(final ResultSet resultSet, final MySQLResultSet results) throws SQLException
 	{
-		String hash = resultSet.getString("hash");
-		results.put(hash,
-			"hash", hash,		
-			"deviceType", Device.getTypeFromDatabaseKey(resultSet.getString("deviceType")),
-			"address", resultSet.getString("address"),
-			"latitude", getNullableDouble(resultSet, "latitude"),
-			"longitude", getNullableDouble(resultSet, "longitude"),
-			"altitude", getNullableDouble(resultSet, "altitude"),
-			"accuracy", getNullableDouble(resultSet, "accuracy"),
-			"humidity", getNullableDouble(resultSet, "humidity"),
-			"airPressure", getNullableDouble(resultSet, "airPressure"),
-			"temperature", getNullableDouble(resultSet, "temperature"),
-			"lightLevel", getNullableDouble(resultSet, "lightLevel"),
-			"lastUpdate", resultSet.getTimestamp("lastUpdate"),
-			"respondingIncidentID", getNullableInt(resultSet, "respondingIncidentID"),
-			"userID", getNullableInt(resultSet, "userID"));
+		MySQLResultRow row = new MySQLResultRow(Device.COLUMNS.length);
+		row.readString(resultSet, Device.COLUMN_HASH);
+		row.setObject(Device.COLUMN_TYPE,
+			Device.getTypeFromDatabaseKey(resultSet.getString(Device.COLUMN_TYPE + 1)));
+		row.readString(resultSet, Device.COLUMN_ADDRESS);
+		row.readDouble(resultSet, Device.COLUMN_LATITUDE);
+		row.readDouble(resultSet, Device.COLUMN_LONGITUDE);
+		row.readDouble(resultSet, Device.COLUMN_ALTITUDE);
+		row.readDouble(resultSet, Device.COLUMN_ACCURACY);
+		row.readDouble(resultSet, Device.COLUMN_HUMIDITY);
+		row.readDouble(resultSet, Device.COLUMN_AIR_PRESSURE);
+		row.readDouble(resultSet, Device.COLUMN_TEMPERATURE);
+		row.readDouble(resultSet, Device.COLUMN_LIGHT_LEVEL);
+		row.readDouble(resultSet, Device.COLUMN_SMOOTHED_LATITUDE);
+		row.readDouble(resultSet, Device.COLUMN_SMOOTHED_LONGITUDE);
+		row.readDouble(resultSet, Device.COLUMN_SMOOTHED_ACCURACY);
+		row.readTimestamp(resultSet, Device.COLUMN_LAST_UPDATE);
+		row.readInt(resultSet, Device.COLUMN_RESPONDING_INCIDENT_ID);
+		row.readInt(resultSet, Device.COLUMN_USER_ID);
+		row.readTimestamp(resultSet, Device.COLUMN_ROW_VERSION);
+		results.put(row.getString(Device.COLUMN_HASH), row);
 	}
 }
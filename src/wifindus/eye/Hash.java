@@ -1,16 +1,44 @@
 package wifindus.eye;
 
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
 
 /**
  * A global, static class containing WiFindUs hash ID string
  * manipulation functions.
+ * <br><br>
+ * A hash ID is 8 base-62 characters (<code>[0-9a-zA-Z]</code>), so it fits comfortably in the low
+ * 48 bits of a <code>long</code> (62^8 &lt; 2^48). The encode/decode functions convert between the two
+ * forms so hot paths can key maps and compare IDs without building or hashing Strings.
+ * Encoding is order-preserving within a character class ordering of digits, then upper-case, then lower-case.
  * @author Mark 'marzer' Gillard
  */
 public abstract class Hash
 {
-	private static final Pattern PATTERN_HASH = Pattern.compile( "^[0-9a-zA-Z]{8}$" );
-	
+	/**
+	 * The number of characters in a hash ID.
+	 */
+	public static final int LENGTH = 8;
+
+	/**
+	 * The value returned by the encode functions when given an invalid hash.
+	 * Valid encoded hashes are never negative.
+	 */
+	public static final long INVALID = -1L;
+
+	private static final char[] DIGITS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+	private static final byte[] VALUES = new byte[128];
+	static
+	{
+		for (int i = 0; i < VALUES.length; i++)
+			VALUES[i] = -1;
+		for (int i = 0; i < DIGITS.length; i++)
+			VALUES[DIGITS[i]] = (byte)i;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
 	/**
 	 * Tests if a given string is a valid WiFindUs randomly-generated hash.
 	 * @param test The string to test.
@@ -18,8 +46,80 @@ public abstract class Hash
 	 */
 	public static final boolean isValid(String test)
 	{
-		if (test == null)
-			return false;
-		return PATTERN_HASH.matcher(test).matches();
+		return encode(test) != INVALID;
+	}
+
+	/**
+	 * Validates and encodes a hash ID in one pass.
+	 * @param hash The hash ID characters.
+	 * @return The encoded hash, or INVALID if hash was null, not 8 characters long, or contained invalid characters.
+	 */
+	public static final long encode(CharSequence hash)
+	{
+		if (hash == null || hash.length() != LENGTH)
+			return INVALID;
+		long value = 0L;
+		for (int i = 0; i < LENGTH; i++)
+		{
+			char c = hash.charAt(i);
+			if (c >= 128 || VALUES[c] < 0)
+				return INVALID;
+			value = value * 62L + VALUES[c];
+		}
+		return value;
+	}
+
+	/**
+	 * Validates and encodes a hash ID directly from a buffer of ASCII bytes (e.g. a receive buffer).
+	 * @param data The buffer to read from. Its position is not changed.
+	 * @param index The absolute index of the first character.
+	 * @param length The number of bytes available; anything other than 8 is invalid.
+	 * @return The encoded hash, or INVALID if the bytes were not a valid hash ID.
+	 * @throws NullPointerException if data is null.
+	 */
+	public static final long encode(ByteBuffer data, int index, int length)
+	{
+		if (data == null)
+			throw new NullPointerException("Parameter 'data' cannot be null.");
+		if (length != LENGTH)
+			return INVALID;
+		long value = 0L;
+		for (int i = 0; i < LENGTH; i++)
+		{
+			byte b = data.get(index + i);
+			if (b < 0 || VALUES[b] < 0)
+				return INVALID;
+			value = value * 62L + VALUES[b];
+		}
+		return value;
+	}
+
+	/**
+	 * Converts an encoded hash back into its 8-character string form.
+	 * @param hash A value previously returned by one of the encode functions.
+	 * @return The hash ID string.
+	 * @throws IllegalArgumentException if hash is not a valid encoded hash.
+	 */
+	public static final String decode(long hash)
+	{
+		if (!isValid(hash))
+			throw new IllegalArgumentException("Parameter 'hash' is not a valid encoded WFU hash ("+hash+").");
+		char[] chars = new char[LENGTH];
+		for (int i = LENGTH - 1; i >= 0; i--)
+		{
+			chars[i] = DIGITS[(int)(hash % 62L)];
+			hash /= 62L;
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Tests if a value is in the range of encoded hashes.
+	 * @param hash The value to test.
+	 * @return TRUE if hash could have been returned by one of the encode functions.
+	 */
+	public static final boolean isValid(long hash)
+	{
+		return hash >= 0L && hash < 218340105584896L; //62^8
 	}
 }
@@ -53,6 +53,27 @@ public class Incident extends EventObject<IncidentEventListener> implements MySQ
 	public static final Color COLOR_SECURITY = new Color(102,178,255);
 	public static final Color COLOR_WIFINDUS= new Color(255,178,102);
 	
+	/**
+	 * The columns of the Incidents table read by {@link #updateFromMySQL(MySQLResultRow)}, in ordinal order
+	 * (a row's column N is <code>COLUMNS[N]</code>).
+	 */
+	public static final String[] COLUMNS = { "id", "incidentType", "latitude", "longitude", "altitude", "accuracy",
+		"created", "archived", "archivedTime", "severity", "code", "description", "reportingUserID", "rowVersion" };
+	public static final int COLUMN_ID = 0;
+	public static final int COLUMN_TYPE = 1;
+	public static final int COLUMN_LATITUDE = 2;
+	public static final int COLUMN_LONGITUDE = 3;
+	public static final int COLUMN_ALTITUDE = 4;
+	public static final int COLUMN_ACCURACY = 5;
+	public static final int COLUMN_CREATED = 6;
+	public static final int COLUMN_ARCHIVED = 7;
+	public static final int COLUMN_ARCHIVED_TIME = 8;
+	public static final int COLUMN_SEVERITY = 9;
+	public static final int COLUMN_CODE = 10;
+	public static final int COLUMN_DESCRIPTION = 11;
+	public static final int COLUMN_REPORTING_USER_ID = 12;
+	public static final int COLUMN_ROW_VERSION = 13;
+	
 	//properties
 	private int id;
 	private Type type;
@@ -317,10 +338,10 @@ public class Incident extends EventObject<IncidentEventListener> implements MySQ
 	{
 		if (resultRow == null)
 			throw new NullPointerException("Parameter 'resultRow' cannot be null.");
-		if (((Integer)resultRow.get("id")).intValue() != getID())
+		if (resultRow.getInt(COLUMN_ID) != getID())
 			throw new IllegalArgumentException("Parameter 'resultRow' does not have the same primary key as this object.");
 
-		int severity = (int)resultRow.get("severity");
+		int severity = resultRow.getInt(COLUMN_SEVERITY);
 		if (severity != this.severity)
 		{
 			int oldSeverity = this.severity;
@@ -328,7 +349,7 @@ public class Incident extends EventObject<IncidentEventListener> implements MySQ
 			fireEvent("severity",oldSeverity,this.severity);
 		}
 		
-		String code = ((String)resultRow.get("code")).trim();
+		String code = resultRow.isNull(COLUMN_CODE) ? "" : resultRow.getString(COLUMN_CODE).trim();
 		if (!code.equals(this.code))
 		{
 			String oldCode = this.code;
@@ -336,11 +357,10 @@ public class Incident extends EventObject<IncidentEventListener> implements MySQ
 			fireEvent("code",oldCode,this.code);
 		}
 		
-		updateDescription((String)resultRow.get("description"));
+		updateDescription(resultRow.getString(COLUMN_DESCRIPTION));
 			
-		boolean archived = (boolean)resultRow.get("archived");
-		if (!this.archived && archived)
-			archive((Timestamp)resultRow.get("archivedTime"));
+		if (!this.archived && resultRow.getBoolean(COLUMN_ARCHIVED))
+			archive(resultRow.getTimestamp(COLUMN_ARCHIVED_TIME));
 	}
 	
 	/**
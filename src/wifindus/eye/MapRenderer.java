@@ -667,6 +667,30 @@ public class MapRenderer implements EyeApplicationListener, NodeEventListener,
 		repaintNodes();
 	}
 
+	@Override
+	public void deviceDeleted(Device device)
+	{
+		removeMappableObject(device);
+		device.removeEventListener(this);
+		repaintClients();
+	}
+
+	@Override
+	public void incidentDeleted(Incident incident)
+	{
+		removeMappableObject(incident);
+		incident.removeEventListener(this);
+		repaintClients();
+	}
+
+	@Override
+	public void nodeDeleted(Node node)
+	{
+		removeMappableObject(node);
+		node.removeEventListener(this);
+		repaintClients();
+	}
+
 	@Override public void incidentDescriptionChanged(Incident incident) { }
 	@Override public void incidentArchivedResponderAdded(Incident incident, User user) { }
 	@Override public void incidentSeverityChanged(Incident incident, int oldSeverity, int newSeverity){ }
@@ -679,6 +703,7 @@ public class MapRenderer implements EyeApplicationListener, NodeEventListener,
 	@Override public void nodeUpdated(Node node) { }
 	@Override public void nodeAddressChanged(Node node, InetAddress oldAddress,	InetAddress newAddress) { }
 	@Override public void userCreated(User user) { }
+	@Override public void userDeleted(User user) { }
 	
 	public void setSelectedObjects(List<MappableObject> objects)
 	{
@@ -11,7 +11,6 @@ import java.sql.Timestamp;
 
 import wifindus.Debugger;
 import wifindus.EventObject;
-import wifindus.MathHelper;
 import wifindus.MySQLResultRow;
 import wifindus.MySQLUpdateTarget;
 import wifindus.ResourcePool;
@@ -22,8 +21,25 @@ import wifindus.ResourcePool;
  */
 public class Node extends EventObject<NodeEventListener> implements MySQLUpdateTarget, MappableObject
 {
+	/**
+	 * The columns of the Nodes table read by {@link #updateFromMySQL(MySQLResultRow)}, in ordinal order
+	 * (a row's column N is <code>COLUMNS[N]</code>).
+	 */
+	public static final String[] COLUMNS = { "hash", "address", "latitude", "longitude", "altitude",
+		"accuracy", "voltage", "lastUpdate", "rowVersion" };
+	public static final int COLUMN_HASH = 0;
+	public static final int COLUMN_ADDRESS = 1;
+	public static final int COLUMN_LATITUDE = 2;
+	public static final int COLUMN_LONGITUDE = 3;
+	public static final int COLUMN_ALTITUDE = 4;
+	public static final int COLUMN_ACCURACY = 5;
+	public static final int COLUMN_VOLTAGE = 6;
+	public static final int COLUMN_LAST_UPDATE = 7;
+	public static final int COLUMN_ROW_VERSION = 8;
+	
 	//properties
 	private String hash = "";
+	private long hashKey = Hash.INVALID;
 	private InetAddress address = null;
 	private Location location = Location.EMPTY;
 	private Double voltage = null;
@@ -57,7 +73,8 @@ public class Node extends EventObject<NodeEventListener> implements MySQLUpdateT
 		
 		if (hash == null)
 			throw new NullPointerException("Parameter 'hash' cannot be null.");
-		if (!Hash.isValid(hash))
+		hashKey = Hash.encode(hash);
+		if (hashKey == Hash.INVALID)
 			throw new IllegalArgumentException("Parameter 'hash' is not a valid WFU device hash ("+hash+").");
 		
 		this.hash = hash;
@@ -76,6 +93,15 @@ public class Node extends EventObject<NodeEventListener> implements MySQLUpdateT
 		return hash;
 	}
 	
+	/**
+	 * Gets this Node's Hash in its encoded form.
+	 * @return A non-negative long uniquely identifying this Node (see {@link Hash#encode(CharSequence)}).
+	 */
+	public final long getHashKey()
+	{
+		return hashKey;
+	}
+	
 	/**
 	 * Gets this Node's IP Address.
 	 * @return An InetAddress object containing information about the last-known address this Node connected from.
@@ -126,25 +152,27 @@ public class Node extends EventObject<NodeEventListener> implements MySQLUpdateT
 	{
 		if (resultRow == null)
 			throw new NullPointerException("Parameter 'resultRow' cannot be null.");
-		if (!((String)resultRow.get("hash")).equals(getHash()))
+		if (!getHash().equals(resultRow.getString(COLUMN_HASH)))
 			throw new IllegalArgumentException("Parameter 'resultRow' does not have the same primary key as this object.");
 		
-
 		//update location data
-		Location loc = new Location(
-				(Double)resultRow.get("latitude"),
-				(Double)resultRow.get("longitude"),
-				(Double)resultRow.get("accuracy"),
-				(Double)resultRow.get("altitude"));
-		if (!loc.equals(location))
+		//(only allocating a new Location if something has changed)
+		if (!resultRow.matches(COLUMN_LATITUDE, location.getLatitude())
+			|| !resultRow.matches(COLUMN_LONGITUDE, location.getLongitude())
+			|| !resultRow.matches(COLUMN_ACCURACY, location.getAccuracy())
+			|| !resultRow.matches(COLUMN_ALTITUDE, location.getAltitude()))
 		{
 			Location old = location;
-			location = loc;
+			location = new Location(
+				resultRow.getNullableDouble(COLUMN_LATITUDE),
+				resultRow.getNullableDouble(COLUMN_LONGITUDE),
+				resultRow.getNullableDouble(COLUMN_ACCURACY),
+				resultRow.getNullableDouble(COLUMN_ALTITUDE));
 			fireEvent("location", old, location);
 		}
 		
 		//internet address
-		String addressString = (String)resultRow.get("address");
+		String addressString = resultRow.getString(COLUMN_ADDRESS);
 		InetAddress newAddress = null;
 		if (addressString != null && !addressString.isEmpty())
 		{
@@ -166,20 +194,17 @@ public class Node extends EventObject<NodeEventListener> implements MySQLUpdateT
 		}
 		
 		//input voltage
-		Double newVoltage = (Double)resultRow.get("voltage");
-		if ((voltage == null && newVoltage != null)
-				|| (voltage != null && (newVoltage == null || !MathHelper.equal(voltage, newVoltage))))
+		if (!resultRow.matches(COLUMN_VOLTAGE, voltage))
 		{
 			Double old = voltage;
-			voltage = newVoltage;
-			fireEvent("voltage", old, newVoltage);
+			voltage = resultRow.getNullableDouble(COLUMN_VOLTAGE);
+			fireEvent("voltage", old, voltage);
 		}
 		
 		//lastUpdate
-		Timestamp ts = (Timestamp)resultRow.get("lastUpdate");
-		if (ts != null && !lastUpdate.equals(ts))
+		if (!resultRow.isNull(COLUMN_LAST_UPDATE) && lastUpdate.getTime() != resultRow.getLong(COLUMN_LAST_UPDATE))
 		{
-			lastUpdate = ts;
+			lastUpdate = resultRow.getTimestamp(COLUMN_LAST_UPDATE);
 			fireEvent("updated");
 		}
 	}
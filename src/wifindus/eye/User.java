@@ -11,6 +11,18 @@ import wifindus.eye.Incident.Type;
  */
 public class User extends EventObject<UserEventListener> implements MySQLUpdateTarget
 {
+	/**
+	 * The columns of the Users table read by {@link #User(MySQLResultRow, UserEventListener...)}, in ordinal order
+	 * (a row's column N is <code>COLUMNS[N]</code>).
+	 */
+	public static final String[] COLUMNS = { "id", "nameFirst", "nameMiddle", "nameLast", "personnelType", "rowVersion" };
+	public static final int COLUMN_ID = 0;
+	public static final int COLUMN_NAME_FIRST = 1;
+	public static final int COLUMN_NAME_MIDDLE = 2;
+	public static final int COLUMN_NAME_LAST = 3;
+	public static final int COLUMN_PERSONNEL_TYPE = 4;
+	public static final int COLUMN_ROW_VERSION = 5;
+	
 	//properties
 	private int id;
 	private String nameFirst, nameLast, nameMiddle;
@@ -62,11 +74,11 @@ public class User extends EventObject<UserEventListener> implements MySQLUpdateT
 	 */
 	public User(MySQLResultRow resultRow, UserEventListener... listeners)
 	{
-		this( ((Integer)resultRow.get("id")).intValue(),
-			(Incident.Type)resultRow.get("personnelType"),
-			(String)resultRow.get("nameFirst"),
-			(String)resultRow.get("nameMiddle"),
-			(String)resultRow.get("nameLast"),
+		this( resultRow.getInt(COLUMN_ID),
+			(Incident.Type)resultRow.getObject(COLUMN_PERSONNEL_TYPE),
+			resultRow.getString(COLUMN_NAME_FIRST),
+			resultRow.getString(COLUMN_NAME_MIDDLE),
+			resultRow.getString(COLUMN_NAME_LAST),
 			listeners			
 			);
 	}
@@ -167,7 +179,7 @@ public class User extends EventObject<UserEventListener> implements MySQLUpdateT
 	{
 		if (resultRow == null)
 			throw new NullPointerException("Parameter 'resultRow' cannot be null.");
-		if (((Integer)resultRow.get("id")).intValue() != getID())
+		if (resultRow.getInt(COLUMN_ID) != getID())
 			throw new IllegalArgumentException("Parameter 'resultRow' does not have the same primary key as this object.");
 	}
 	
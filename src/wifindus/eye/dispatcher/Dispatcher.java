@@ -340,6 +340,55 @@ public class Dispatcher extends EyeApplication
 		incidentPanel.repaint();
 	}
 	
+	@Override
+	public void deviceDeleted(Device device)
+	{
+		super.deviceDeleted(device);
+		for (int i = 0; i < devicePanels.size(); i++)
+		{
+			DevicePanel panel = devicePanels.get(i);
+			if (panel.getDevice() != device)
+				continue;
+			devicePanels.remove(i);
+			devicePanel.remove(panel);
+			device.removeEventListener(panel);
+			break;
+		}
+		
+		updateDeviceSort();
+		updateDeviceFilter();
+		devicePanel.revalidate();
+		devicePanel.repaint();
+	}
+	
+	@Override
+	public void incidentDeleted(Incident incident)
+	{
+		super.incidentDeleted(incident);
+		Integer id = Integer.valueOf(incident.getID());
+		
+		//active
+		IncidentPanel oldPanel = incidentPanels.remove(id);
+		if (oldPanel != null)
+		{
+			incident.removeEventListener(oldPanel);
+			removeTimerListener(oldPanel);
+			incidentPanel.remove(oldPanel);
+			incidentPanel.revalidate();
+			incidentPanel.repaint();
+		}
+		
+		//archived
+		ArchivedIncidentPanel oldArchivedPanel = archivedIncidentPanels.remove(id);
+		if (oldArchivedPanel != null)
+		{
+			incident.removeEventListener(oldArchivedPanel);
+			archivedIncidentPanel.remove(oldArchivedPanel);
+			archivedIncidentPanel.revalidate();
+			archivedIncidentPanel.repaint();
+		}
+	}
+	
 	@Override
 	public void incidentArchived(Incident incident)
 	{
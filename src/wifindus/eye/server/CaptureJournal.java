@@ -0,0 +1,167 @@
+package wifindus.eye.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+
+import wifindus.Debugger;
+
+/**
+ * Appends raw datagrams, along with their arrival time and source address, to a rolling
+ * set of memory-mapped capture files, so that production traffic can be replayed later
+ * (see {@link CaptureReader} and {@link wifindus.eye.tools.CaptureReplayer}).
+ * <br><br>
+ * Each file is a fixed-size segment, mapped in full when it's created, so appending a record
+ * is just a handful of puts into memory; the OS writes the pages back in its own time. When a
+ * segment fills up a new one is started, and the oldest segments are deleted once there are more
+ * than the configured maximum. The file format is described in {@link CaptureReader}.
+ * <br><br>
+ * Not thread-safe; each receive shard of an {@link IngestPipeline} has its own journal.
+ * @author Mark 'marzer' Gillard
+ */
+final class CaptureJournal
+{
+	private final File directory;
+	private final String prefix;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final ArrayDeque<File> segments = new ArrayDeque<>();
+	private MappedByteBuffer segment;
+	private int sequence = 0;
+	private volatile long recordCount = 0L;
+	private volatile boolean failed = false;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new CaptureJournal. No files are created until the first datagram is appended.
+	 * @param directory The directory to write segments to. It will be created if it does not exist.
+	 * @param prefix The file name prefix for this journal's segments (e.g. <code>capture-s0</code>).
+	 * @param segmentSize The size of each segment file, in bytes.
+	 * @param maxSegments The number of segments to keep before the oldest are deleted.
+	 */
+	CaptureJournal(File directory, String prefix, int segmentSize, int maxSegments)
+	{
+		if (directory == null)
+			throw new NullPointerException("Parameter 'directory' cannot be null.");
+		if (prefix == null)
+			throw new NullPointerException("Parameter 'prefix' cannot be null.");
+		if (segmentSize < CaptureReader.HEADER_SIZE + CaptureReader.MAX_RECORD_OVERHEAD + 65507)
+			throw new IllegalArgumentException("Parameter 'segmentSize' is too small to hold a maximum-size datagram.");
+		if (maxSegments < 1)
+			throw new IllegalArgumentException("Parameter 'maxSegments' must be greater than zero.");
+
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Appends a non-empty datagram to the journal. If the journal can't write to disk it logs the error
+	 * once and quietly discards everything from then on, rather than disturbing ingest.
+	 * @param data The datagram payload, from its position to its limit. Its position is not changed.
+	 * @param source The address the datagram was received from.
+	 * @param receivedNanos The value of System.nanoTime() when the datagram arrived.
+	 */
+	void append(ByteBuffer data, InetSocketAddress source, long receivedNanos)
+	{
+		if (failed)
+			return;
+
+		//(a zero length marks the end of a segment, and there's nothing to replay anyway)
+		int length = data.remaining();
+		if (length == 0)
+			return;
+		byte[] address = source.getAddress().getAddress();
+		int recordSize = CaptureReader.RECORD_OVERHEAD + address.length + length;
+		try
+		{
+			if (segment == null || segment.remaining() < recordSize + 4)
+				roll();
+		}
+		catch (IOException e)
+		{
+			failed = true;
+			Debugger.e("Capture journal disabled: could not create segment in '" + directory + "'.");
+			Debugger.ex(e);
+			return;
+		}
+
+		segment.putInt(length);
+		segment.putLong(receivedNanos);
+		segment.put((byte)address.length);
+		segment.put(address);
+		segment.putShort((short)source.getPort());
+		segment.put(data.duplicate());
+		recordCount++;
+	}
+
+	/**
+	 * Flushes the current segment to disk and stops writing. Further appends start a new segment.
+	 */
+	void close()
+	{
+		if (segment != null)
+		{
+			segment.force();
+			segment = null;
+		}
+	}
+
+	/**
+	 * @return the number of datagrams appended.
+	 */
+	long getRecordCount()
+	{
+		return recordCount;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private void roll() throws IOException
+	{
+		//finish the old segment
+		//(the mapping is zero-filled, so the unused tail already reads as an end marker)
+		close();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory '" + directory + "'.");
+
+		//drop the oldest segments
+		while (segments.size() >= maxSegments)
+		{
+			File oldest = segments.removeFirst();
+			if (!oldest.delete())
+				Debugger.w("Could not delete old capture segment '" + oldest + "'.");
+		}
+
+		//map a new one
+		File file;
+		do
+			file = new File(directory, String.format("%s-%06d%s", prefix, sequence++, CaptureReader.EXTENSION));
+		while (file.exists());
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		}
+		segments.addLast(file);
+		segment.put(CaptureReader.MAGIC);
+		segment.putLong(System.currentTimeMillis());
+		segment.putLong(System.nanoTime());
+		Debugger.v("Capture journal started segment '" + file + "'.");
+	}
+}
@@ -0,0 +1,175 @@
+package wifindus.eye.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads back the datagrams in a capture segment written by an {@link IngestPipeline}'s capture journal.
+ * <br><br>
+ * A segment is a header followed by records, all big-endian:
+ * <ul>
+ * <li>Header: the 8 ASCII bytes <code>WFUCAP01</code>, then the wall-clock time (ms since the epoch)
+ * and System.nanoTime() at the moment the segment was created, as two longs.</li>
+ * <li>Record: payload length (int; zero marks the end of the segment), arrival System.nanoTime() (long),
+ * source address length (byte; 4 or 16), source address, source port (unsigned short), payload.</li>
+ * </ul>
+ * Arrival times are only comparable between segments written by the same process; use
+ * {@link #getReceivedTime()} to order records from different runs.
+ * @author Mark 'marzer' Gillard
+ */
+public class CaptureReader
+{
+	/**
+	 * The file extension of capture segments.
+	 */
+	public static final String EXTENSION = ".wfc";
+
+	static final byte[] MAGIC = "WFUCAP01".getBytes(StandardCharsets.US_ASCII);
+	static final int HEADER_SIZE = 24;
+	static final int RECORD_OVERHEAD = 4 + 8 + 1 + 2;
+	static final int MAX_RECORD_OVERHEAD = RECORD_OVERHEAD + 16;
+
+	private final File file;
+	private final MappedByteBuffer data;
+	private final long createdMillis;
+	private final long createdNanos;
+	private final ByteBuffer payload;
+	private long receivedNanos;
+	private InetSocketAddress source;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Opens a capture segment for reading.
+	 * @param file The segment file.
+	 * @throws NullPointerException if file is null.
+	 * @throws IOException if the file could not be read, or is not a capture segment.
+	 */
+	public CaptureReader(File file) throws IOException
+	{
+		if (file == null)
+			throw new NullPointerException("Parameter 'file' cannot be null.");
+
+		this.file = file;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (data.remaining() < HEADER_SIZE)
+			throw new IOException("'" + file + "' is not a capture segment.");
+		byte[] magic = new byte[MAGIC.length];
+		data.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("'" + file + "' is not a capture segment.");
+		createdMillis = data.getLong();
+		createdNanos = data.getLong();
+		payload = data.duplicate();
+		payload.limit(payload.position());
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Finds all capture segments in a directory.
+	 * @param directory The directory to search.
+	 * @return The segment files, sorted by name (which puts each shard's segments in the order they were written).
+	 */
+	public static final List<File> findSegments(File directory)
+	{
+		List<File> found = new ArrayList<>();
+		File[] files = directory.listFiles();
+		if (files == null)
+			return found;
+		Arrays.sort(files);
+		for (File file : files)
+			if (file.isFile() && file.getName().endsWith(EXTENSION))
+				found.add(file);
+		return found;
+	}
+
+	/**
+	 * Advances to the next record.
+	 * @return TRUE if there was another record, FALSE if the end of the segment was reached.
+	 */
+	public final boolean next()
+	{
+		if (data.remaining() < RECORD_OVERHEAD)
+			return false;
+		int length = data.getInt();
+		if (length <= 0)
+			return false;
+		receivedNanos = data.getLong();
+		int addressLength = data.get();
+		if ((addressLength != 4 && addressLength != 16) || data.remaining() < addressLength + 2 + length)
+			return false;
+		byte[] address = new byte[addressLength];
+		data.get(address);
+		int port = data.getShort() & 0xFFFF;
+		try
+		{
+			source = new InetSocketAddress(InetAddress.getByAddress(address), port);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		payload.limit(data.position() + length);
+		payload.position(data.position());
+		data.position(data.position() + length);
+		return true;
+	}
+
+	/**
+	 * @return the current record's payload. The returned buffer is reused by subsequent calls to next().
+	 */
+	public final ByteBuffer getPayload()
+	{
+		return payload;
+	}
+
+	/**
+	 * @return the address the current record was received from.
+	 */
+	public final InetSocketAddress getSource()
+	{
+		return source;
+	}
+
+	/**
+	 * @return the value of System.nanoTime() when the current record arrived (in the capturing process).
+	 */
+	public final long getReceivedNanos()
+	{
+		return receivedNanos;
+	}
+
+	/**
+	 * @return the wall-clock time the current record arrived, in nanoseconds since the epoch.
+	 */
+	public final long getReceivedTime()
+	{
+		return createdMillis * 1000000L + (receivedNanos - createdNanos);
+	}
+
+	/**
+	 * @return the segment file.
+	 */
+	public final File getFile()
+	{
+		return file;
+	}
+}
@@ -0,0 +1,224 @@
+package wifindus.eye.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import wifindus.LongHashMap;
+import wifindus.ParsedUDPPacket;
+
+/**
+ * Stops stationary devices from generating a database write (and, downstream, a changed row and
+ * a map repaint on every dispatcher) each time they report a slightly different position.
+ * <br><br>
+ * The filter remembers the last values passed on for each device. A new fix that lies within
+ * <code>max(reported accuracy, dead-band)</code> metres of the last one has its location fields
+ * (latitude, longitude, altitude, accuracy and any smoothed location) removed from the packet,
+ * and any other field whose value is unchanged is removed too. If that leaves nothing, the packet is dropped entirely, unless the device's
+ * row hasn't been touched for longer than the refresh interval, in which case it goes through with no
+ * columns so that <code>lastUpdate</code> still moves and the device isn't shown as timed out.
+ * <br><br>
+ * Not thread-safe; owned by the persist stage of an {@link IngestPipeline}.
+ * @author Mark 'marzer' Gillard
+ */
+final class DeadBandFilter
+{
+	private static final int LOCATION_FIELDS = ParsedUDPPacket.FIELD_LATITUDE
+		| ParsedUDPPacket.FIELD_LONGITUDE
+		| ParsedUDPPacket.FIELD_ALTITUDE
+		| ParsedUDPPacket.FIELD_ACCURACY
+		| ParsedUDPPacket.FIELD_SMOOTHED_LOCATION;
+	private static final int VALUE_FIELDS = ~(ParsedUDPPacket.FIELD_HASH | ParsedUDPPacket.FIELD_TIMESTAMP
+		| ParsedUDPPacket.FIELD_SEQUENCE);
+	private static final double METRES_PER_DEGREE = 111320.0;
+
+	private final double deadBand;
+	private final long refreshNanos;
+	private final LongHashMap<State> states = new LongHashMap<>(1024);
+	private volatile long suppressedCount = 0L;
+	private volatile long refreshCount = 0L;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new DeadBandFilter.
+	 * @param deadBand The minimum distance, in metres, a device must move for a new location to be written.
+	 * @param refreshInterval The longest a device's row may go without being written, in milliseconds.
+	 */
+	DeadBandFilter(double deadBand, int refreshInterval)
+	{
+		if (deadBand < 0.0)
+			throw new IllegalArgumentException("Parameter 'deadBand' cannot be negative.");
+		if (refreshInterval < 1)
+			throw new IllegalArgumentException("Parameter 'refreshInterval' must be greater than zero.");
+
+		this.deadBand = deadBand;
+		this.refreshNanos = refreshInterval * 1000000L;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Filters a device packet, removing fields that don't need writing.
+	 * @param packet A device packet that has passed the timestamp check.
+	 * @param nowNanos The current value of System.nanoTime().
+	 * @return TRUE if the packet should still be written, FALSE if it can be dropped.
+	 */
+	boolean filter(ParsedUDPPacket packet, long nowNanos)
+	{
+		State state = states.get(packet.getHashKey());
+		if (state == null)
+		{
+			state = new State();
+			states.put(packet.getHashKey(), state);
+			state.update(packet, nowNanos);
+			return true;
+		}
+
+		//location
+		if (packet.has(ParsedUDPPacket.FIELD_LATITUDE | ParsedUDPPacket.FIELD_LONGITUDE)
+			&& (state.fields & (ParsedUDPPacket.FIELD_LATITUDE | ParsedUDPPacket.FIELD_LONGITUDE))
+				== (ParsedUDPPacket.FIELD_LATITUDE | ParsedUDPPacket.FIELD_LONGITUDE))
+		{
+			double accuracy = packet.has(ParsedUDPPacket.FIELD_ACCURACY) ? packet.getAccuracy() : state.accuracy;
+			double threshold = Math.max(accuracy, deadBand);
+			double north = (packet.getLatitude() - state.latitude) * METRES_PER_DEGREE;
+			double east = (packet.getLongitude() - state.longitude) * METRES_PER_DEGREE
+				* Math.cos(Math.toRadians(state.latitude));
+			if (north * north + east * east < threshold * threshold)
+				packet.remove(LOCATION_FIELDS);
+		}
+		else if (!packet.has(ParsedUDPPacket.FIELD_LATITUDE) && !packet.has(ParsedUDPPacket.FIELD_LONGITUDE))
+		{
+			//altitude or accuracy on their own are only worth writing if they've changed
+			if (packet.has(ParsedUDPPacket.FIELD_ALTITUDE) && (state.fields & ParsedUDPPacket.FIELD_ALTITUDE) != 0
+				&& packet.getAltitude() == state.altitude)
+				packet.remove(ParsedUDPPacket.FIELD_ALTITUDE);
+			if (packet.has(ParsedUDPPacket.FIELD_ACCURACY) && (state.fields & ParsedUDPPacket.FIELD_ACCURACY) != 0
+				&& packet.getAccuracy() == state.accuracy)
+				packet.remove(ParsedUDPPacket.FIELD_ACCURACY);
+		}
+
+		//everything else
+		removeIfUnchanged(packet, state, ParsedUDPPacket.FIELD_HUMIDITY, packet.getHumidity(), state.humidity);
+		removeIfUnchanged(packet, state, ParsedUDPPacket.FIELD_AIR_PRESSURE, packet.getAirPressure(), state.airPressure);
+		removeIfUnchanged(packet, state, ParsedUDPPacket.FIELD_TEMPERATURE, packet.getTemperature(), state.temperature);
+		removeIfUnchanged(packet, state, ParsedUDPPacket.FIELD_LIGHT_LEVEL, packet.getLightLevel(), state.lightLevel);
+		removeIfUnchanged(packet, state, ParsedUDPPacket.FIELD_VOLTAGE, packet.getVoltage(), state.voltage);
+		if (packet.has(ParsedUDPPacket.FIELD_USER) && (state.fields & ParsedUDPPacket.FIELD_USER) != 0
+			&& packet.getUserID() == state.userID)
+			packet.remove(ParsedUDPPacket.FIELD_USER);
+		if (packet.has(ParsedUDPPacket.FIELD_DEVICE_TYPE) && (state.fields & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0
+			&& packet.getDeviceType().equals(state.deviceType))
+			packet.remove(ParsedUDPPacket.FIELD_DEVICE_TYPE);
+
+		//nothing left?
+		if ((packet.getFields() & VALUE_FIELDS) == 0)
+		{
+			if (nowNanos - state.writtenNanos < refreshNanos)
+			{
+				state.seenNanos = nowNanos;
+				suppressedCount++;
+				return false;
+			}
+			refreshCount++;
+		}
+		state.update(packet, nowNanos);
+		return true;
+	}
+
+	/**
+	 * Forgets devices that haven't sent anything for a while.
+	 * @param cutoffNanos Devices whose last accepted packet arrived before this System.nanoTime() value are removed.
+	 * @return The number of devices removed.
+	 */
+	int evict(long cutoffNanos)
+	{
+		List<State> all = states.copyValuesTo(new ArrayList<State>(states.size()));
+		int evicted = 0;
+		for (State state : all)
+		{
+			if (state.seenNanos - cutoffNanos < 0L)
+			{
+				states.remove(state.hash);
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return the number of device packets dropped because nothing in them needed writing.
+	 */
+	long getSuppressedCount()
+	{
+		return suppressedCount;
+	}
+
+	/**
+	 * @return the number of otherwise-empty packets written anyway, to keep a device's lastUpdate fresh.
+	 */
+	long getRefreshCount()
+	{
+		return refreshCount;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private static void removeIfUnchanged(ParsedUDPPacket packet, State state, int field, double value, double previous)
+	{
+		if (packet.has(field) && (state.fields & field) != 0 && value == previous)
+			packet.remove(field);
+	}
+
+	/**
+	 * The values last passed on for one device.
+	 */
+	private static final class State
+	{
+		long hash;
+		int fields;
+		double latitude, longitude, altitude, accuracy;
+		double humidity, airPressure, temperature, lightLevel, voltage;
+		long userID;
+		String deviceType;
+		long writtenNanos;
+		long seenNanos;
+
+		void update(ParsedUDPPacket packet, long nowNanos)
+		{
+			int incoming = packet.getFields();
+			hash = packet.getHashKey();
+			fields |= incoming;
+			if ((incoming & ParsedUDPPacket.FIELD_LATITUDE) != 0)
+				latitude = packet.getLatitude();
+			if ((incoming & ParsedUDPPacket.FIELD_LONGITUDE) != 0)
+				longitude = packet.getLongitude();
+			if ((incoming & ParsedUDPPacket.FIELD_ALTITUDE) != 0)
+				altitude = packet.getAltitude();
+			if ((incoming & ParsedUDPPacket.FIELD_ACCURACY) != 0)
+				accuracy = packet.getAccuracy();
+			if ((incoming & ParsedUDPPacket.FIELD_HUMIDITY) != 0)
+				humidity = packet.getHumidity();
+			if ((incoming & ParsedUDPPacket.FIELD_AIR_PRESSURE) != 0)
+				airPressure = packet.getAirPressure();
+			if ((incoming & ParsedUDPPacket.FIELD_TEMPERATURE) != 0)
+				temperature = packet.getTemperature();
+			if ((incoming & ParsedUDPPacket.FIELD_LIGHT_LEVEL) != 0)
+				lightLevel = packet.getLightLevel();
+			if ((incoming & ParsedUDPPacket.FIELD_VOLTAGE) != 0)
+				voltage = packet.getVoltage();
+			if ((incoming & ParsedUDPPacket.FIELD_USER) != 0)
+				userID = packet.getUserID();
+			if ((incoming & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0)
+				deviceType = packet.getDeviceType();
+			writtenNanos = nowNanos;
+			seenNanos = nowNanos;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package wifindus.eye.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import wifindus.ConfigFile;
+import wifindus.Debugger;
+import wifindus.eye.EyeMySQLConnection;
+
+/**
+ * Runs the server's ingest and persistence without any user interface, for bare (display-less) machines.
+ * <br><br>
+ * Unlike {@link Server}, which is an {@link wifindus.eye.EyeApplication} and so a window, this never
+ * touches Swing or AWT: it reads the same config files, connects to the same database and runs the same
+ * {@link IngestPipeline}, with output going only to the {@link Debugger} (the console and a log in 'logs/').
+ * It runs until the process is interrupted or terminated, at which point the pipeline is stopped cleanly.
+ * <br><br>
+ * Usage: <code>HeadlessServer [-conf file]... [-0 to -4]</code> (see {@link wifindus.eye.EyeApplication}).
+ * <code>java.awt.headless</code> is set automatically if it hasn't been given on the command line.
+ * @author Mark 'marzer' Gillard
+ */
+public class HeadlessServer
+{
+	private static final Pattern PATTERN_VERBOSITY = Pattern.compile( "^-([0-4])$" );
+	private final ConfigFile config;
+	private final EyeMySQLConnection mysql = new EyeMySQLConnection();
+	private final IngestPipeline ingestPipeline;
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new HeadlessServer, loading its config and connecting to the database.
+	 * The Debugger should already be open.
+	 * @param configFiles The config files to load.
+	 * @throws NullPointerException if configFiles is null.
+	 * @throws IllegalStateException if the database connection failed.
+	 */
+	public HeadlessServer(List<File> configFiles)
+	{
+		if (configFiles == null)
+			throw new NullPointerException("Parameter 'configFiles' cannot be null.");
+
+		//load config
+		config = new ConfigFile(configFiles);
+		EyeMySQLConnection.defaultConfig(config);
+		Debugger.i("Parsed configuration: " + config);
+
+		//connect to mysql
+		Debugger.i("Connecting to MySQL database '" + config.getString("mysql.database") + "@"
+			+ config.getString("mysql.address") + ":" + config.getInt("mysql.port") + "...");
+		mysql.connect(config);
+		Debugger.i("Connected OK.");
+
+		ingestPipeline = new IngestPipeline(config, mysql);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Starts the ingest pipeline and blocks until {@link #stop()} is called.
+	 * @throws IOException if the UDP channel could not be opened.
+	 * @throws InterruptedException if the calling thread is interrupted while waiting.
+	 */
+	public final void run() throws IOException, InterruptedException
+	{
+		ingestPipeline.start();
+		stopped.await();
+	}
+
+	/**
+	 * Stops the ingest pipeline (flushing anything it has batched) and disconnects from the database.
+	 * Calling this more than once has no effect.
+	 */
+	public final synchronized void stop()
+	{
+		if (stopped.getCount() == 0)
+			return;
+		Debugger.i("Cleaning up...");
+		ingestPipeline.stop();
+		mysql.disconnect();
+		stopped.countDown();
+	}
+
+	/**
+	 * Gets the UDP ingest pipeline.
+	 * @return A reference to the IngestPipeline receiving and persisting client updates.
+	 */
+	public final IngestPipeline getIngestPipeline()
+	{
+		return ingestPipeline;
+	}
+
+	/**
+	 * Gets the config file object loaded with the server.
+	 * @return A reference to the server's ConfigFile object.
+	 */
+	public final ConfigFile getConfig()
+	{
+		return config;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// MAIN
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Application entry-point.
+	 * @param args See the class description.
+	 */
+	public static void main(String[] args)
+	{
+		if (System.getProperty("java.awt.headless") == null)
+			System.setProperty("java.awt.headless", "true");
+
+		//check for debugger verbosity flags & start debugger
+		int verbosity = 1; //info
+		for (int i = 0; i < args.length; i++)
+		{
+			Matcher match = PATTERN_VERBOSITY.matcher(args[i]);
+			if (match.matches())
+				verbosity = Integer.parseInt(match.group(1));
+		}
+		Debugger.open(verbosity);
+
+		//parse command line arguments for config files
+		List<File> configFiles = new ArrayList<>();
+		configFiles.add(new File("eye.conf"));
+		for (int i = 0; i < args.length-1; i++)
+		{
+			if (args[i].equalsIgnoreCase("-conf"))
+			{
+				configFiles.add(new File(args[++i]));
+				Debugger.i("Found '"+args[i]+"'.");
+			}
+		}
+
+		//run until terminated
+		final HeadlessServer server;
+		try
+		{
+			server = new HeadlessServer(configFiles);
+		}
+		catch (Exception e)
+		{
+			Debugger.ex(e);
+			Debugger.close();
+			System.exit(1);
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread()
+		{
+			@Override
+			public void run()
+			{
+				server.stop();
+				Debugger.close();
+			}
+		});
+		try
+		{
+			server.run();
+		}
+		catch (IOException e)
+		{
+			Debugger.ex(e);
+			System.exit(1);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,1103 @@
+package wifindus.eye.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import wifindus.ConfigFile;
+import wifindus.Debugger;
+import wifindus.ParsedUDPPacket;
+import wifindus.RingBuffer;
+import wifindus.eye.EyeMySQLConnection;
+import wifindus.eye.Hash;
+
+/**
+ * The server's UDP ingest path, split into three stages so that a slow database
+ * round-trip never stalls the socket:
+ * <ol>
+ * <li><strong>Receive</strong>: one thread per socket that does nothing but drain it into bounded, lock-free ring buffers.</li>
+ * <li><strong>Parse</strong>: a pool of worker threads that turn raw datagrams into {@link ParsedUDPPacket}s.
+ * Records are dealt out to the workers by sender hash, so each sender's records are parsed in the order they arrived.</li>
+ * <li><strong>Persist</strong>: one thread that batches parsed packets into upserts against the MySQL database.</li>
+ * </ol>
+ * Each stage hands off to the next through a fixed-size {@link RingBuffer}. If a buffer is full the
+ * item is dropped and counted, rather than blocking the previous stage. Before the persist queue gets that
+ * far, a {@link LoadShedder} starts conflating, then dropping the least useful device updates
+ * (see the <code>server.shed_*</code> keys).
+ * <br><br>
+ * Senders that flood the server are throttled before their traffic is parsed: each receive shard
+ * rate-limits datagrams per source address, and the parse workers rate-limit records per sender hash
+ * (see {@link TokenBucketLimiter} and the <code>server.source_*</code> and <code>server.hash_*</code> keys).
+ * <br><br>
+ * Mesh nodes report far more often than devices, so node packets travel to the persist stage in their
+ * own queue and are written by their own batcher. A flood of node traffic fills (and drops from) that
+ * queue only, and the persist stage drains devices first each round, so it can't starve device ingest.
+ * <br><br>
+ * If <code>server.spool</code> is enabled (the default), rows the persist stage can't write because the
+ * database is unavailable are kept in a {@link WriteAheadSpool} on disk and written back once it recovers.
+ * <br><br>
+ * The parse stage also keeps rolling per-sender loss, reordering and duplicate statistics
+ * (see {@link #getLinkStats(int, Comparator)} and the <code>server.link_*</code> keys).
+ * @author Mark 'marzer' Gillard
+ */
+public class IngestPipeline
+{
+	private final ConfigFile config;
+	private volatile boolean abortThreads = false;
+	private volatile ReceiveShard[] shards = new ReceiveShard[0];
+
+	//stage queues
+	private final RingBuffer<ParsedUDPPacket> freePackets;
+	private final RingBuffer<ParsedUDPPacket> parsedPackets;
+	private final RingBuffer<ParsedUDPPacket> parsedNodePackets;
+
+	//stage threads
+	private Thread[] receiveThreads;
+	private Thread[] parseThreads;
+	private Thread persistThread;
+
+	//counters
+	private final AtomicLong receivedCount = new AtomicLong();
+	private final AtomicLong receiveDropCount = new AtomicLong();
+	private final AtomicLong recordCount = new AtomicLong();
+	private final AtomicLong parseErrorCount = new AtomicLong();
+	private final AtomicLong parseDropCount = new AtomicLong();
+	private final AtomicLong nodeDropCount = new AtomicLong();
+	private final AtomicLong sourceLimitedCount = new AtomicLong();
+	private final AtomicLong hashLimitedCount = new AtomicLong();
+
+	//rate limiting and link statistics (null if disabled)
+	private final TokenBucketLimiter hashLimiter;
+	private final LinkQualityTracker linkTracker;
+
+	//persist stage state
+	private final TimestampTable nodeTimestamps = new TimestampTable(16, 1024);
+	private final TimestampTable deviceTimestamps = new TimestampTable(16, 1024);
+	private final UpsertBatcher deviceBatcher;
+	private final UpsertBatcher nodeBatcher;
+	private final LoadShedder shedder;
+	private final DeadBandFilter deadBand;
+	private final KalmanSmoother smoother;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new IngestPipeline. No sockets are opened and no threads are started until {@link #start()} is called.
+	 * @param config The application config. Missing or invalid <code>server.*</code> keys will have defaults applied.
+	 * @param mysql The database connection used by the persist stage.
+	 * @throws NullPointerException if either parameter is null.
+	 */
+	public IngestPipeline(ConfigFile config, EyeMySQLConnection mysql)
+	{
+		if (config == null)
+			throw new NullPointerException("Parameter 'config' cannot be null.");
+		if (mysql == null)
+			throw new NullPointerException("Parameter 'mysql' cannot be null.");
+		this.config = config;
+
+		//config defaults
+		config.defaultInt("server.udp_port", 33339, 1024, 65535);
+		config.defaultInt("server.udp_buffer_size", 1024, 512, 65507);
+		config.defaultInt("server.udp_receive_buffer", 4194304, 65536, 268435456);
+		config.defaultInt("server.receive_shards", 1, 1, 64);
+		config.defaultInt("server.receive_queue_size", 8192, 16, 1048576);
+		config.defaultInt("server.persist_queue_size", 8192, 16, 1048576);
+		config.defaultInt("server.node_queue_size", 4096, 16, 1048576);
+		config.defaultInt("server.parse_threads", Math.max(1, Runtime.getRuntime().availableProcessors() - 2), 1, 64);
+		config.defaultInt("server.stats_interval", 60, 0, 3600);
+		config.defaultInt("server.timestamp_expiry", 24, 0, 8760);
+		config.defaultInt("server.batch_size", 1000, 1, 100000);
+		config.defaultInt("server.batch_interval", 100, 1, 10000);
+		config.defaultBoolean("server.capture", false);
+		config.defaultString("server.capture_dir", "captures");
+		config.defaultInt("server.capture_segment_size", 64, 1, 1024);
+		config.defaultInt("server.capture_segments", 16, 1, 100000);
+		config.defaultBoolean("server.spool", true);
+		config.defaultString("server.spool_dir", "spool");
+		config.defaultInt("server.spool_segment_size", 4, 1, 1024);
+		config.defaultInt("server.spool_segments", 256, 1, 100000);
+		config.defaultInt("server.spool_retry", 5, 1, 3600);
+		config.defaultInt("server.shed_conflate_at", 25, 0, 100);
+		config.defaultInt("server.shed_conflate_interval", 2000, 1, 60000);
+		config.defaultInt("server.shed_atmosphere_at", 50, 0, 100);
+		config.defaultInt("server.shed_sample_at", 75, 0, 100);
+		config.defaultString("server.shed_sample_types", "");
+		config.defaultInt("server.shed_sample_keep", 4, 1, 1000);
+		config.defaultInt("server.source_rate", 500, 0, 1000000);
+		config.defaultInt("server.source_burst", 1000, 1, 1000000);
+		config.defaultInt("server.source_slots", 4096, 16, 1048576);
+		config.defaultInt("server.hash_rate", 10, 0, 1000000);
+		config.defaultInt("server.hash_burst", 20, 1, 1000000);
+		config.defaultInt("server.hash_slots", 65536, 16, 16777216);
+		config.defaultInt("server.deadband", 5, 0, 10000);
+		config.defaultInt("server.deadband_refresh", 15, 1, 3600);
+		config.defaultBoolean("server.kalman", false);
+		config.defaultDouble("server.kalman_acceleration", 1.0, 0.01, 100.0);
+		config.defaultInt("server.link_window", 60, 0, 3600);
+		config.defaultInt("server.link_report", 5, 0, 1000);
+
+		//allocate persist stage queues
+		//(receive queues belong to the shards, which aren't created until start())
+		parsedPackets = new RingBuffer<>(config.getInt("server.persist_queue_size"));
+		parsedNodePackets = new RingBuffer<>(config.getInt("server.node_queue_size"));
+		int parseThreadCount = Math.max(config.getInt("server.parse_threads"), config.getInt("server.receive_shards"));
+		int packetCount = parsedPackets.capacity() + parsedNodePackets.capacity() + parseThreadCount + 1;
+		freePackets = new RingBuffer<>(packetCount);
+		for (int i = 0; i < packetCount; i++)
+			freePackets.offer(new ParsedUDPPacket());
+
+		//per-sender rate limiting
+		//(per-source limiters belong to the shards, since each source always lands on the same one)
+		hashLimiter = config.getInt("server.hash_rate") == 0 ? null : new TokenBucketLimiter(16,
+			config.getInt("server.hash_slots"), config.getInt("server.hash_rate"), config.getInt("server.hash_burst"));
+		linkTracker = config.getInt("server.link_window") == 0 ? null
+			: new LinkQualityTracker(16, config.getInt("server.link_window") * 1000);
+
+		//position smoothing and location dead-band for the persist stage
+		smoother = config.getBoolean("server.kalman")
+			? new KalmanSmoother(config.getDouble("server.kalman_acceleration")) : null;
+		deadBand = config.getInt("server.deadband") == 0 ? null
+			: new DeadBandFilter(config.getInt("server.deadband"), config.getInt("server.deadband_refresh") * 1000);
+
+		//load shedding policy for the device queue
+		String sampleTypes = config.getString("server.shed_sample_types").trim();
+		shedder = new LoadShedder(parsedPackets.capacity(),
+			config.getInt("server.shed_conflate_at"),
+			config.getInt("server.shed_atmosphere_at"),
+			config.getInt("server.shed_sample_at"),
+			sampleTypes.isEmpty() ? new String[0] : sampleTypes.split("\\s*,\\s*"),
+			config.getInt("server.shed_sample_keep"));
+		
+		//write-behind batching for the persist stage, spooling to disk while the database is down
+		WriteAheadSpool deviceSpool = null, nodeSpool = null;
+		if (config.getBoolean("server.spool"))
+		{
+			File spoolDir = new File(config.getString("server.spool_dir"));
+			int segmentSize = config.getInt("server.spool_segment_size") * 1048576;
+			deviceSpool = new WriteAheadSpool(spoolDir, "devices", segmentSize, config.getInt("server.spool_segments"));
+			nodeSpool = new WriteAheadSpool(spoolDir, "nodes", segmentSize, config.getInt("server.spool_segments"));
+		}
+		int retryInterval = config.getInt("server.spool_retry") * 1000;
+		deviceBatcher = new UpsertBatcher(mysql, "Devices", UpsertBatcher.DEVICE_COLUMNS,
+			config.getInt("server.batch_size"), config.getInt("server.batch_interval"), deviceSpool, retryInterval);
+		nodeBatcher = new UpsertBatcher(mysql, "Nodes", UpsertBatcher.NODE_COLUMNS,
+			config.getInt("server.batch_size"), config.getInt("server.batch_interval"), nodeSpool, retryInterval);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Opens the UDP channel(s) and launches all of the stage threads.
+	 * <br><br>
+	 * If <code>server.receive_shards</code> is greater than one and the platform supports SO_REUSEPORT,
+	 * that many channels are bound to the UDP port, each with its own receive thread and parse workers,
+	 * and the kernel spreads incoming datagrams across them. Otherwise a single channel is used.
+	 * Within a shard, each sender hash is always handled by the same parse worker; across shards,
+	 * per-device ordering is enforced by timestamp tables keyed by device hash and shared by every shard.
+	 * @throws IOException if the UDP channel could not be opened.
+	 * @throws IllegalStateException if the pipeline has already been started.
+	 */
+	public final void start() throws IOException
+	{
+		if (receiveThreads != null)
+			throw new IllegalStateException("The pipeline has already been started.");
+
+		//work out how many shards we can have
+		int udpListenPort = config.getInt("server.udp_port");
+		int shardCount = config.getInt("server.receive_shards");
+		SocketOption<Boolean> reusePort = null;
+		if (shardCount > 1)
+		{
+			reusePort = getReusePortOption();
+			if (reusePort == null)
+			{
+				Debugger.w("SO_REUSEPORT is not supported on this platform; falling back to a single UDP channel.");
+				shardCount = 1;
+			}
+		}
+
+		//open udp channels
+		Debugger.i("Opening " + shardCount + " listener UDP channel(s) on port " + udpListenPort + "...");
+		ReceiveShard[] opened = new ReceiveShard[shardCount];
+		int parseThreadCount = Math.max(config.getInt("server.parse_threads"), shardCount);
+		try
+		{
+			for (int i = 0; i < shardCount; i++)
+			{
+				DatagramChannel channel = openChannel(udpListenPort, reusePort);
+				opened[i] = new ReceiveShard(i, channel, config.getInt("server.receive_queue_size"),
+					parseThreadCount / shardCount + (i < parseThreadCount % shardCount ? 1 : 0),
+					config.getInt("server.udp_buffer_size"));
+				if (config.getInt("server.source_rate") > 0)
+					opened[i].sourceLimiter = new TokenBucketLimiter(1, config.getInt("server.source_slots"),
+						config.getInt("server.source_rate"), config.getInt("server.source_burst"));
+			}
+		}
+		catch (IOException e)
+		{
+			for (ReceiveShard shard : opened)
+				if (shard != null)
+					shard.close();
+			throw e;
+		}
+		shards = opened;
+		Debugger.i("Channel(s) opened OK.");
+
+		//optionally record everything we receive
+		if (config.getBoolean("server.capture"))
+		{
+			File captureDir = new File(config.getString("server.capture_dir"));
+			Debugger.i("Capturing received datagrams to '" + captureDir.getAbsolutePath() + "'.");
+			String runPrefix = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+			for (ReceiveShard shard : shards)
+				shard.journal = new CaptureJournal(captureDir, runPrefix + "-s" + shard.index,
+					config.getInt("server.capture_segment_size") * 1048576, config.getInt("server.capture_segments"));
+		}
+
+		//launch stage threads
+		//(parse workers are dealt out to shards round-robin, so each shard gets at least one)
+		persistThread = startThread(new PersistWorker(), "ingest-persist");
+		parseThreads = new Thread[parseThreadCount];
+		for (int i = 0; i < parseThreads.length; i++)
+			parseThreads[i] = startThread(new ParseWorker(shards[i % shardCount], i / shardCount), "ingest-parse-" + i);
+		receiveThreads = new Thread[shardCount];
+		for (int i = 0; i < shardCount; i++)
+			receiveThreads[i] = startThread(new ReceiveWorker(shards[i]), "ingest-receive-" + i);
+		Debugger.i("Ingest pipeline started (" + shardCount + " receive shard(s), "
+			+ parseThreads.length + " parse thread(s)).");
+	}
+
+	/**
+	 * Signals all stage threads to terminate and closes the UDP channel(s).
+	 * Rows already batched by the persist stage are flushed before this returns;
+	 * anything still sitting in the stage queues is discarded.
+	 */
+	public final void stop()
+	{
+		abortThreads = true;
+		for (ReceiveShard shard : shards)
+			shard.close();
+		
+		//give the persist stage a chance to write out its last batch
+		if (persistThread != null)
+		{
+			try
+			{
+				persistThread.join(2000);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Gets the number of received datagrams waiting to be parsed.
+	 * @return The current total depth of the receive-to-parse queues of all shards.
+	 */
+	public final int getReceiveQueueDepth()
+	{
+		int depth = 0;
+		for (ReceiveShard shard : shards)
+			depth += shard.getQueueDepth();
+		return depth;
+	}
+
+	/**
+	 * Gets the number of UDP channels the pipeline is receiving on.
+	 * @return The number of receive shards, or 0 if the pipeline hasn't been started.
+	 */
+	public final int getReceiveShardCount()
+	{
+		return shards.length;
+	}
+
+	/**
+	 * Gets the number of parsed packets waiting to be written to the database.
+	 * @return The current depth of the parse-to-persist queue.
+	 */
+	public final int getPersistQueueDepth()
+	{
+		return parsedPackets.size();
+	}
+
+	/**
+	 * Gets the number of parsed node packets waiting to be written to the database.
+	 * @return The current depth of the parse-to-persist queue for node packets.
+	 */
+	public final int getNodeQueueDepth()
+	{
+		return parsedNodePackets.size();
+	}
+
+	/**
+	 * Gets the number of datagrams read from the socket.
+	 * @return The total number of datagrams received since the pipeline started, including any that were later dropped.
+	 */
+	public final long getReceivedCount()
+	{
+		return receivedCount.get();
+	}
+
+	/**
+	 * Gets the number of datagrams dropped because the parse stage could not keep up.
+	 * @return The number of datagrams discarded by the receive stage.
+	 */
+	public final long getReceiveDropCount()
+	{
+		return receiveDropCount.get();
+	}
+
+	/**
+	 * Gets the number of datagrams dropped because their source address exceeded its rate limit.
+	 * @return The number of datagrams discarded by per-source rate limiting.
+	 */
+	public final long getSourceLimitedCount()
+	{
+		return sourceLimitedCount.get();
+	}
+
+	/**
+	 * Gets the number of records dropped because their sender hash exceeded its rate limit.
+	 * @return The number of records discarded by per-hash rate limiting.
+	 */
+	public final long getHashLimitedCount()
+	{
+		return hashLimitedCount.get();
+	}
+
+	/**
+	 * Gets the number of records found in received datagrams. A datagram may carry more than one record.
+	 * @return The total number of records handed to the parser, including any that were malformed or dropped.
+	 */
+	public final long getRecordCount()
+	{
+		return recordCount.get();
+	}
+
+	/**
+	 * Gets the number of records that could not be parsed.
+	 * @return The number of malformed records discarded by the parse stage.
+	 */
+	public final long getParseErrorCount()
+	{
+		return parseErrorCount.get();
+	}
+
+	/**
+	 * Gets the number of packets dropped because the persist stage could not keep up.
+	 * @return The number of parsed packets discarded by the parse stage.
+	 */
+	public final long getParseDropCount()
+	{
+		return parseDropCount.get();
+	}
+
+	/**
+	 * Gets the number of node packets dropped because the persist stage could not keep up.
+	 * These are not included in {@link #getParseDropCount()}.
+	 * @return The number of parsed node packets discarded by the parse stage.
+	 */
+	public final long getNodeDropCount()
+	{
+		return nodeDropCount.get();
+	}
+
+	/**
+	 * Gets the number of device packets dropped by the load shedding policy because they only carried atmospheric readings.
+	 * @return The number of atmosphere-only packets shed.
+	 */
+	public final long getAtmosphereShedCount()
+	{
+		return shedder.getAtmosphereShedCount();
+	}
+
+	/**
+	 * Gets the number of device packets dropped by the load shedding policy because they came from a low-priority device type.
+	 * @return The number of packets shed by sampling.
+	 */
+	public final long getSampleShedCount()
+	{
+		return shedder.getSampleShedCount();
+	}
+
+	/**
+	 * Gets the number of times the persist stage has fallen far enough behind to start deferring flushes.
+	 * @return The number of times conflation mode was entered.
+	 */
+	public final long getConflationCount()
+	{
+		return shedder.getConflationCount();
+	}
+
+	/**
+	 * Gets the number of device packets not written because the device hadn't moved outside its dead-band
+	 * and nothing else had changed.
+	 * @return The number of redundant device packets suppressed.
+	 */
+	public final long getDeadBandSuppressedCount()
+	{
+		return deadBand == null ? 0L : deadBand.getSuppressedCount();
+	}
+
+	/**
+	 * Gets the number of packets discarded because their timestamp matched the last one accepted from the same sender.
+	 * @return The number of duplicate device and node packets.
+	 */
+	public final long getDuplicateCount()
+	{
+		return deviceTimestamps.getDuplicateCount() + nodeTimestamps.getDuplicateCount();
+	}
+
+	/**
+	 * Gets the number of packets discarded because their timestamp was older than the last one accepted from the same sender.
+	 * @return The number of stale or out-of-order device and node packets.
+	 */
+	public final long getOutOfOrderCount()
+	{
+		return deviceTimestamps.getOutOfOrderCount() + nodeTimestamps.getOutOfOrderCount();
+	}
+
+	/**
+	 * Gets the number of packets written to the database.
+	 * @return The number of device and node rows successfully persisted.
+	 */
+	public final long getPersistedCount()
+	{
+		return deviceBatcher.getWrittenCount() + nodeBatcher.getWrittenCount();
+	}
+
+	/**
+	 * Gets the number of packets that failed to be written to the database.
+	 * @return The number of device and node rows the persist stage gave up on.
+	 */
+	public final long getPersistErrorCount()
+	{
+		return deviceBatcher.getFailedCount() + nodeBatcher.getFailedCount();
+	}
+
+	/**
+	 * Gets the number of rows the database refused to store (e.g. for breaking a CHECK constraint).
+	 * @return The number of device and node rows rejected and discarded; these are included in {@link #getPersistErrorCount()}.
+	 */
+	public final long getRejectedCount()
+	{
+		return deviceBatcher.getRejectedCount() + nodeBatcher.getRejectedCount();
+	}
+
+	/**
+	 * Gets the number of rows written to the spool because the database was unavailable.
+	 * @return The number of device and node rows spooled to disk.
+	 */
+	public final long getSpooledCount()
+	{
+		return deviceBatcher.getSpooledCount() + nodeBatcher.getSpooledCount();
+	}
+
+	/**
+	 * Gets the number of spooled rows that have since been written to the database.
+	 * @return The number of device and node rows replayed from the spool.
+	 */
+	public final long getReplayedCount()
+	{
+		return deviceBatcher.getReplayedCount() + nodeBatcher.getReplayedCount();
+	}
+
+	/**
+	 * Gets the number of spool segments waiting to be written back to the database.
+	 * @return The number of device and node spool segments on disk.
+	 */
+	public final int getSpoolSegmentCount()
+	{
+		return deviceBatcher.getSpoolSegmentCount() + nodeBatcher.getSpoolSegmentCount();
+	}
+
+	/**
+	 * Gets the number of sequence numbers that were skipped over by senders, i.e. updates that went missing
+	 * somewhere between the sender and the parse stage (some may have turned up later; see {@link #getLinkStats(int, Comparator)}).
+	 * @return The total number of sequence gaps seen, or 0 if link statistics are disabled.
+	 */
+	public final long getSequenceGapCount()
+	{
+		return linkTracker == null ? 0L : linkTracker.getMissingCount();
+	}
+
+	/**
+	 * Gets the rolling loss, reordering and duplicate statistics for every device or node heard from recently.
+	 * @param type ParsedUDPPacket.TYPE_DEVICE or ParsedUDPPacket.TYPE_NODE.
+	 * @param order How to sort the results (e.g. {@link LinkStats#COMPARATOR_LOSS_RATE}), or null to leave them unsorted.
+	 * @return A new list of snapshots, which is empty if link statistics are disabled (<code>server.link_window</code> is 0).
+	 */
+	public final List<LinkStats> getLinkStats(int type, Comparator<LinkStats> order)
+	{
+		if (linkTracker == null)
+			return new ArrayList<>();
+		List<LinkStats> stats = linkTracker.snapshot(type, System.nanoTime());
+		if (order != null)
+			Collections.sort(stats, order);
+		return stats;
+	}
+
+	@Override
+	public String toString()
+	{
+		int receiveCapacity = 0;
+		for (ReceiveShard shard : shards)
+			receiveCapacity += shard.parseQueues[0].capacity();
+		return "IngestPipeline[received: " + getReceivedCount()
+			+ ", shards: " + getReceiveShardCount()
+			+ ", receiveQueue: " + getReceiveQueueDepth() + "/" + receiveCapacity
+			+ ", receiveDrops: " + getReceiveDropCount()
+			+ ", sourceLimited: " + getSourceLimitedCount()
+			+ ", records: " + getRecordCount()
+			+ ", parseErrors: " + getParseErrorCount()
+			+ ", hashLimited: " + getHashLimitedCount()
+			+ ", persistQueue: " + getPersistQueueDepth() + "/" + parsedPackets.capacity()
+			+ ", parseDrops: " + getParseDropCount()
+			+ ", shedAtmosphere: " + getAtmosphereShedCount()
+			+ ", shedSampled: " + getSampleShedCount()
+			+ ", conflations: " + getConflationCount()
+			+ ", nodeQueue: " + getNodeQueueDepth() + "/" + parsedNodePackets.capacity()
+			+ ", nodeDrops: " + getNodeDropCount()
+			+ ", duplicates: " + getDuplicateCount()
+			+ ", outOfOrder: " + getOutOfOrderCount()
+			+ ", tracked: " + deviceTimestamps.size() + "+" + nodeTimestamps.size()
+			+ ", seqGaps: " + getSequenceGapCount()
+			+ ", deadBand: " + getDeadBandSuppressedCount()
+			+ (deadBand == null ? "" : " (" + deadBand.getRefreshCount() + " refreshes)")
+			+ (smoother == null ? "" : ", smootherResets: " + smoother.getResetCount())
+			+ ", conflated: " + (deviceBatcher.getMergedCount() + nodeBatcher.getMergedCount())
+			+ ", persisted: " + getPersistedCount()
+			+ " in " + (deviceBatcher.getFlushCount() + nodeBatcher.getFlushCount()) + " batches"
+			+ ", persistErrors: " + getPersistErrorCount()
+			+ ", rejected: " + getRejectedCount()
+			+ ", spooled: " + getSpooledCount()
+			+ ", replayed: " + getReplayedCount()
+			+ ", spoolSegments: " + getSpoolSegmentCount()
+			+ ", quarantined: " + (deviceBatcher.getQuarantinedSegmentCount() + nodeBatcher.getQuarantinedSegmentCount()) + "]";
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private DatagramChannel openChannel(int port, SocketOption<Boolean> reusePort) throws IOException
+	{
+		DatagramChannel channel = DatagramChannel.open();
+		try
+		{
+			if (reusePort != null)
+				channel.setOption(reusePort, Boolean.TRUE);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, config.getInt("server.udp_receive_buffer"));
+			channel.bind(new InetSocketAddress(port));
+		}
+		catch (IOException e)
+		{
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Looks up the SO_REUSEPORT socket option. It isn't part of the Java 7 API,
+	 * so it has to be found reflectively on newer runtimes.
+	 * @return The option, or null if this runtime or platform doesn't support it.
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption()
+	{
+		Object option;
+		try
+		{
+			option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		}
+		catch (NoSuchFieldException | IllegalAccessException e)
+		{
+			return null;
+		}
+
+		//make sure the platform actually supports it
+		try (DatagramChannel probe = DatagramChannel.open())
+		{
+			if (!probe.supportedOptions().contains(option))
+				return null;
+		}
+		catch (IOException e)
+		{
+			return null;
+		}
+		return (SocketOption<Boolean>)option;
+	}
+
+	private static Thread startThread(Runnable worker, String name)
+	{
+		Thread thread = new Thread(worker, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Backs off progressively while a stage has nothing to do:
+	 * spin briefly, then yield, then park for short periods.
+	 */
+	private static void idle(int idleCount)
+	{
+		if (idleCount < 64)
+			return;
+		if (idleCount < 128)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(250000L);
+	}
+
+	private class ReceiveWorker implements Runnable
+	{
+		private final ReceiveShard shard;
+		//where datagrams go when there are no free holders; read and discarded
+		private final ByteBuffer overflowBuffer = ByteBuffer.allocateDirect(config.getInt("server.udp_buffer_size"));
+
+		ReceiveWorker(ReceiveShard shard)
+		{
+			this.shard = shard;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				receive();
+			}
+			finally
+			{
+				if (shard.journal != null)
+					shard.journal.close();
+			}
+		}
+
+		private void receive()
+		{
+			while (!abortThreads)
+			{
+				//grab a holder; if the parse stage is holding all of them, we still have
+				//to drain the socket, but the datagram gets counted and thrown away
+				ReceivedDatagram datagram = shard.freeDatagrams.poll();
+				ByteBuffer buffer = datagram == null ? overflowBuffer : datagram.data;
+				buffer.clear();
+
+				//wait for incoming data
+				//(closing the channel from stop() will wake us with a ClosedChannelException)
+				InetSocketAddress source;
+				try
+				{
+					source = (InetSocketAddress)shard.channel.receive(buffer);
+				}
+				catch (ClosedChannelException e)
+				{
+					if (!abortThreads)
+						Debugger.ex(e);
+					return;
+				}
+				catch (IOException e)
+				{
+					Debugger.ex(e);
+					source = null;
+				}
+				if (source == null)
+				{
+					if (datagram != null)
+						shard.freeDatagrams.offer(datagram);
+					continue;
+				}
+				long receivedNanos = System.nanoTime();
+				receivedCount.incrementAndGet();
+				buffer.flip();
+				if (shard.journal != null)
+					shard.journal.append(buffer, source, receivedNanos);
+
+				//no holder available
+				if (datagram == null)
+				{
+					receiveDropCount.incrementAndGet();
+					continue;
+				}
+
+				//throttle sources that are flooding us
+				//(an address's hashCode is its value for IPv4, and doesn't allocate)
+				if (shard.sourceLimiter != null && !shard.sourceLimiter.tryAcquire(source.getAddress().hashCode(), receivedNanos))
+				{
+					sourceLimitedCount.incrementAndGet();
+					datagram.reset();
+					shard.freeDatagrams.offer(datagram);
+					continue;
+				}
+
+				//hand off to the parse worker(s) that own the senders in it
+				//(if one of their queues is full, the drop is counted once for each)
+				datagram.source = source;
+				datagram.receivedNanos = receivedNanos;
+				datagram.receivedTime = System.currentTimeMillis();
+				datagram.routes = route(buffer);
+				datagram.references.set(Long.bitCount(datagram.routes));
+				for (long routes = datagram.routes; routes != 0L; routes &= routes - 1L)
+				{
+					if (!shard.parseQueues[Long.numberOfTrailingZeros(routes)].offer(datagram))
+					{
+						receiveDropCount.incrementAndGet();
+						shard.release(datagram);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Works out which parse workers a datagram has records for, by peeking at each record's hash.
+		 * @return A bitmask of parse worker indices; never empty.
+		 */
+		private long route(ByteBuffer data)
+		{
+			if (shard.parseQueues.length == 1)
+				return 1L;
+			long routes = 0L;
+			int end = data.limit();
+			int start = data.position();
+			while (start < end)
+			{
+				byte b = data.get(start);
+				if (b == '\n' || b == '\r')
+				{
+					start++;
+					continue;
+				}
+				int recordEnd = ParsedUDPPacket.findRecordEnd(data, start);
+				if (recordEnd < 0)
+				{
+					//the first worker counts the parse error for the rest of the datagram
+					routes |= 1L;
+					break;
+				}
+				routes |= 1L << shard.route(ParsedUDPPacket.peekHash(data, start, recordEnd));
+				start = recordEnd;
+			}
+			return routes == 0L ? 1L : routes;
+		}
+	}
+
+	private class ParseWorker implements Runnable
+	{
+		private final ReceiveShard shard;
+		private final int index;
+		private final RingBuffer<ReceivedDatagram> queue;
+
+		ParseWorker(ReceiveShard shard, int index)
+		{
+			this.shard = shard;
+			this.index = index;
+			queue = shard.parseQueues[index];
+		}
+
+		@Override
+		public void run()
+		{
+			int idleCount = 0;
+			while (!abortThreads)
+			{
+				ReceivedDatagram datagram = queue.poll();
+				if (datagram == null)
+				{
+					idle(idleCount++);
+					continue;
+				}
+				idleCount = 0;
+
+				//(a datagram shared with other workers is only logged by the first of them)
+				boolean shared = datagram.routes != (1L << index);
+				if (Debugger.getMinVerbosity() == Debugger.Verbosity.Verbose
+					&& Long.numberOfTrailingZeros(datagram.routes) == index)
+				{
+					ByteBuffer data = datagram.view(index);
+					if (data.hasRemaining() && data.get(data.position()) == ParsedUDPPacket.BINARY_MAGIC)
+						Debugger.v("Update: [binary, " + data.remaining() + " bytes]");
+					else
+						Debugger.v("Update: " + StandardCharsets.ISO_8859_1.decode(data.duplicate()).toString().trim());
+				}
+
+				//a datagram may hold several records (e.g. a node relaying the device updates it has heard),
+				//so walk it one record at a time by narrowing the buffer's window onto each one
+				//(the holder goes straight back to the receiver afterwards, unless another worker still has records in it)
+				ByteBuffer data = datagram.view(index);
+				int end = data.limit();
+				int start = data.position();
+				while (start < end)
+				{
+					//skip blank lines between text records
+					byte b = data.get(start);
+					if (b == '\n' || b == '\r')
+					{
+						start++;
+						continue;
+					}
+					int recordEnd = ParsedUDPPacket.findRecordEnd(data, start);
+					if (recordEnd < 0)
+					{
+						//can't tell where the next record would start, so the rest of the datagram is lost
+						if (index == 0)
+							parseErrorCount.incrementAndGet();
+						break;
+					}
+					//skip records that belong to other workers
+					long hash = shared || hashLimiter != null ? ParsedUDPPacket.peekHash(data, start, recordEnd) : Hash.INVALID;
+					if (shared && shard.route(hash) != index)
+					{
+						start = recordEnd;
+						continue;
+					}
+					//throttle senders that are flooding us, before paying for a full parse
+					if (hashLimiter != null)
+					{
+						if (hash != Hash.INVALID && !hashLimiter.tryAcquire(hash, datagram.receivedNanos))
+						{
+							recordCount.incrementAndGet();
+							hashLimitedCount.incrementAndGet();
+							start = recordEnd;
+							continue;
+						}
+					}
+
+					data.limit(recordEnd);
+					data.position(start);
+					handleRecord(datagram, data);
+					data.limit(end);
+					start = recordEnd;
+				}
+				shard.release(datagram);
+			}
+		}
+
+		private void handleRecord(ReceivedDatagram datagram, ByteBuffer data)
+		{
+			recordCount.incrementAndGet();
+
+			//grab a packet to parse into; if the persist stage is holding all of them
+			//then it's too far behind to take any more anyway
+			ParsedUDPPacket parsedPacket = freePackets.poll();
+			if (parsedPacket == null)
+			{
+				parseDropCount.incrementAndGet();
+				return;
+			}
+
+			//parse data out into packet
+			if (!parsedPacket.parse(data, datagram.source)
+				|| parsedPacket.getType() == ParsedUDPPacket.TYPE_UNKNOWN)
+			{
+				parseErrorCount.incrementAndGet();
+				freePackets.offer(parsedPacket);
+				return;
+			}
+			parsedPacket.setReceivedTime(datagram.receivedTime);
+			//(this worker owns the sender's hash, so its records from this shard reach the tracker in arrival order)
+			if (linkTracker != null)
+				linkTracker.record(parsedPacket, datagram.receivedNanos);
+
+			//hand off to persist stage
+			//(nodes have their own queue so they can't crowd devices out)
+			if (parsedPacket.getType() == ParsedUDPPacket.TYPE_NODE)
+			{
+				if (!parsedNodePackets.offer(parsedPacket))
+				{
+					nodeDropCount.incrementAndGet();
+					freePackets.offer(parsedPacket);
+				}
+			}
+			else if (!shedder.admit(parsedPacket, parsedPackets.size()))
+				freePackets.offer(parsedPacket);
+			else if (!parsedPackets.offer(parsedPacket))
+			{
+				parseDropCount.incrementAndGet();
+				freePackets.offer(parsedPacket);
+			}
+		}
+	}
+
+	private class PersistWorker implements Runnable
+	{
+		//the most packets of each kind handled per round; devices always go first,
+		//and nodes only ever get a fraction of the round
+		private static final int DEVICE_QUOTA = 256;
+		private static final int NODE_QUOTA = 64;
+		//how often idle senders are evicted from the timestamp tables
+		private static final long EVICT_INTERVAL = 60000000000L;
+		//how long to pause after an unexpected exception
+		private static final long FAILURE_BACKOFF = 100000000L;
+
+		@Override
+		public void run()
+		{
+			int idleCount = 0;
+			long statsInterval = config.getInt("server.stats_interval") * 1000000000L;
+			long lastStatsTime = System.nanoTime();
+			long expiry = config.getInt("server.timestamp_expiry") * 3600000L;
+			long lastEvictTime = System.nanoTime();
+			long conflateInterval = config.getInt("server.shed_conflate_interval") * 1000000L;
+			while (!abortThreads)
+			{
+				try
+				{
+					//forget senders that have gone quiet, so the ordering tables don't grow forever
+					if (expiry > 0L && System.nanoTime() - lastEvictTime >= EVICT_INTERVAL)
+					{
+						long cutoff = System.currentTimeMillis() - expiry;
+						int evicted = deviceTimestamps.evict(cutoff) + nodeTimestamps.evict(cutoff);
+						if (deadBand != null)
+							deadBand.evict(System.nanoTime() - expiry * 1000000L);
+						if (smoother != null)
+							smoother.evict(System.nanoTime() - expiry * 1000000L);
+						if (linkTracker != null)
+							linkTracker.evict(System.nanoTime() - expiry * 1000000L);
+						if (evicted > 0)
+							Debugger.v("Evicted " + evicted + " idle sender(s) from timestamp tables.");
+						lastEvictTime = System.nanoTime();
+					}
+
+					//periodically report stage statistics
+					if (statsInterval > 0L && System.nanoTime() - lastStatsTime >= statsInterval)
+					{
+						Debugger.i(IngestPipeline.this.toString());
+						reportWorstLinks(ParsedUDPPacket.TYPE_NODE, "node");
+						reportWorstLinks(ParsedUDPPacket.TYPE_DEVICE, "device");
+						lastStatsTime = System.nanoTime();
+					}
+
+					//write out anything that's been waiting too long (or, when we're falling behind, a good deal longer,
+					//to let devices' updates conflate), and anything spooled while the database was down
+					if (shedder.isConflating(parsedPackets.size()))
+						deviceBatcher.flushIfDue(conflateInterval);
+					else
+						deviceBatcher.flushIfDue();
+					nodeBatcher.flushIfDue();
+					deviceBatcher.drainIfDue();
+					nodeBatcher.drainIfDue();
+
+					//drain both queues, up to their quotas
+					int handled = 0;
+					ParsedUDPPacket packet;
+					while (handled < DEVICE_QUOTA && (packet = parsedPackets.poll()) != null)
+					{
+						handled++;
+						try
+						{
+							processDevicePacket(packet);
+						}
+						finally
+						{
+							freePackets.offer(packet);
+						}
+					}
+					for (int i = 0; i < NODE_QUOTA && (packet = parsedNodePackets.poll()) != null; i++)
+					{
+						handled++;
+						try
+						{
+							processNodePacket(packet);
+						}
+						finally
+						{
+							freePackets.offer(packet);
+						}
+					}
+					if (handled == 0)
+						idle(idleCount++);
+					else
+						idleCount = 0;
+				}
+				catch (RuntimeException e)
+				{
+					//a bug in one stage mustn't take the whole persist stage down with it;
+					//log it and carry on after a short pause, so a persistent failure can't flood the log
+					Debugger.ex(e);
+					LockSupport.parkNanos(FAILURE_BACKOFF);
+				}
+			}
+			
+			//final flush on the way out
+			deviceBatcher.flush();
+			nodeBatcher.flush();
+			deviceBatcher.close();
+			nodeBatcher.close();
+		}
+
+		private void reportWorstLinks(int type, String name)
+		{
+			int count = config.getInt("server.link_report");
+			if (linkTracker == null || count == 0)
+				return;
+			List<LinkStats> stats = getLinkStats(type, LinkStats.COMPARATOR_LOSS_RATE);
+			for (int i = 0; i < count && i < stats.size() && stats.get(i).getLost() > 0; i++)
+				Debugger.i("Lossy " + name + " link: " + stats.get(i));
+		}
+
+		private void processNodePacket(ParsedUDPPacket packet)
+		{
+			//sanity checks
+			if (packet == null || !packet.has(ParsedUDPPacket.FIELD_HASH))
+				return;
+
+			//check last timestamp
+			if (!isNewerTimestamp(nodeTimestamps, packet))
+				return;
+
+			//queue for the next batch
+			nodeBatcher.add(packet);
+		}
+
+		private void processDevicePacket(ParsedUDPPacket packet)
+		{
+			//sanity checks
+			if (packet == null || !packet.has(ParsedUDPPacket.FIELD_HASH))
+				return;
+
+			//check last timestamp
+			if (!isNewerTimestamp(deviceTimestamps, packet))
+				return;
+
+			//smooth out position jitter, then skip updates from devices that haven't really moved
+			long now = System.nanoTime();
+			if (smoother != null)
+				smoother.smooth(packet, now);
+			if (deadBand != null && !deadBand.filter(packet, now))
+				return;
+
+			//queue for the next batch
+			deviceBatcher.add(packet);
+		}
+
+		private boolean isNewerTimestamp(final TimestampTable timestamps, final ParsedUDPPacket packet)
+		{
+			if (!packet.has(ParsedUDPPacket.FIELD_TIMESTAMP))
+				return false;
+			return timestamps.advance(packet.getHashKey(), packet.getTimestamp());
+		}
+	}
+}
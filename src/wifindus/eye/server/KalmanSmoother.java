@@ -0,0 +1,219 @@
+package wifindus.eye.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import wifindus.LongHashMap;
+import wifindus.ParsedUDPPacket;
+
+/**
+ * Smooths the position fixes reported by each device with a constant-velocity Kalman filter,
+ * so that phones jittering by tens of metres don't make their map markers jump around.
+ * <br><br>
+ * Positions are filtered in metres on a flat plane centred on the device's first fix (plenty accurate over
+ * the size of a venue). North and east are filtered independently, with the same covariance, so the state per
+ * device is just a position and velocity for each axis plus three covariance terms, held in primitive fields and
+ * updated in place. Each fix is weighted by its reported accuracy (treated as one standard deviation); fixes
+ * without one get a default. The estimate is attached to the packet with
+ * {@link ParsedUDPPacket#setSmoothedLocation(double, double, double)}, and the raw fix is left untouched.
+ * <br><br>
+ * The time between fixes is taken from the sender's own timestamps (<code>ts</code>, in seconds or milliseconds
+ * since the epoch), so batching in the mesh or queueing on the server doesn't distort the motion model.
+ * Only when either fix lacks one is the time between their arrivals at the server used instead.
+ * <br><br>
+ * A device that's been silent for a long time, or whose fix lands impossibly far from the estimate
+ * (e.g. it has been carried to a different site), has its filter restarted from the new fix.
+ * <br><br>
+ * Not thread-safe; owned by the persist stage of an {@link IngestPipeline}.
+ * @author Mark 'marzer' Gillard
+ */
+final class KalmanSmoother
+{
+	private static final double METRES_PER_DEGREE = 111320.0;
+	//accuracy assumed for fixes that don't report one, in metres
+	private static final double DEFAULT_ACCURACY = 20.0;
+	//initial velocity uncertainty, in (m/s)^2
+	private static final double INITIAL_VELOCITY_VARIANCE = 25.0;
+	//gaps longer than this restart the filter, in seconds
+	private static final double MAX_GAP = 300.0;
+	//innovations larger than this many standard deviations (and at least 1 km) restart the filter
+	private static final double MAX_INNOVATION_SIGMAS = 10.0;
+	//sender timestamps at least this large are in milliseconds (as seconds, it would be thousands of years away)
+	private static final long MIN_MILLISECOND_TIMESTAMP = 100000000000L;
+	//marks a fix without a sender timestamp
+	private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+
+	private final double accelerationVariance;
+	private final LongHashMap<State> states = new LongHashMap<>(1024);
+	private volatile long resetCount = 0L;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new KalmanSmoother.
+	 * @param acceleration The expected random acceleration of a device, in m/s^2 (one standard deviation).
+	 * Lower values smooth harder but lag behind real changes of direction for longer.
+	 */
+	KalmanSmoother(double acceleration)
+	{
+		if (acceleration <= 0.0)
+			throw new IllegalArgumentException("Parameter 'acceleration' must be greater than zero.");
+		accelerationVariance = acceleration * acceleration;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Feeds a device packet's fix through its filter and attaches the resulting estimate.
+	 * Packets without both a latitude and longitude are left alone.
+	 * @param packet A device packet that has passed the timestamp check.
+	 * @param nowNanos The current value of System.nanoTime(). Also stands in for the packet's arrival time
+	 * if it has no {@link ParsedUDPPacket#getReceivedTime()}.
+	 */
+	void smooth(ParsedUDPPacket packet, long nowNanos)
+	{
+		if (!packet.has(ParsedUDPPacket.FIELD_LATITUDE | ParsedUDPPacket.FIELD_LONGITUDE))
+			return;
+
+		//when the fix was taken, by the sender's clock and by ours (both in milliseconds)
+		long timestamp = NO_TIMESTAMP;
+		if (packet.has(ParsedUDPPacket.FIELD_TIMESTAMP))
+			timestamp = packet.getTimestamp() >= MIN_MILLISECOND_TIMESTAMP
+				? packet.getTimestamp() : packet.getTimestamp() * 1000L;
+		long arrival = packet.getReceivedTime() != 0L ? packet.getReceivedTime() : nowNanos / 1000000L;
+
+		double accuracy = packet.has(ParsedUDPPacket.FIELD_ACCURACY) && packet.getAccuracy() > 0.0
+			? packet.getAccuracy() : DEFAULT_ACCURACY;
+		double measurementVariance = accuracy * accuracy;
+		State state = states.get(packet.getHashKey());
+		if (state == null)
+		{
+			state = new State();
+			state.hash = packet.getHashKey();
+			states.put(state.hash, state);
+			state.reset(packet.getLatitude(), packet.getLongitude(), measurementVariance, nowNanos);
+		}
+		else
+		{
+			double north = (packet.getLatitude() - state.originLatitude) * METRES_PER_DEGREE;
+			double east = (packet.getLongitude() - state.originLongitude) * state.metresPerDegreeLongitude;
+			double dt = timestamp != NO_TIMESTAMP && state.timestamp != NO_TIMESTAMP
+				? (timestamp - state.timestamp) / 1000.0 : (arrival - state.arrival) / 1000.0;
+			if (dt > MAX_GAP)
+				restart(state, packet, measurementVariance, nowNanos);
+			else
+			{
+				predict(state, Math.max(dt, 0.0));
+				double innovationNorth = north - state.north;
+				double innovationEast = east - state.east;
+				double innovationVariance = state.p00 + measurementVariance;
+				double limit = Math.max(1000.0, MAX_INNOVATION_SIGMAS * Math.sqrt(innovationVariance));
+				if (innovationNorth * innovationNorth + innovationEast * innovationEast > limit * limit)
+					restart(state, packet, measurementVariance, nowNanos);
+				else
+				{
+					//both axes share the same gain
+					double k0 = state.p00 / innovationVariance;
+					double k1 = state.p01 / innovationVariance;
+					state.north += k0 * innovationNorth;
+					state.northVelocity += k1 * innovationNorth;
+					state.east += k0 * innovationEast;
+					state.eastVelocity += k1 * innovationEast;
+					double p00 = state.p00, p01 = state.p01;
+					state.p00 = (1.0 - k0) * p00;
+					state.p01 = (1.0 - k0) * p01;
+					state.p11 -= k1 * p01;
+					state.updatedNanos = nowNanos;
+				}
+			}
+		}
+		state.timestamp = timestamp;
+		state.arrival = arrival;
+
+		packet.setSmoothedLocation(
+			state.originLatitude + state.north / METRES_PER_DEGREE,
+			state.originLongitude + state.east / state.metresPerDegreeLongitude,
+			Math.sqrt(state.p00));
+	}
+
+	/**
+	 * Forgets devices that haven't sent a fix for a while.
+	 * @param cutoffNanos Devices whose last fix arrived before this System.nanoTime() value are removed.
+	 * @return The number of devices removed.
+	 */
+	int evict(long cutoffNanos)
+	{
+		List<State> all = states.copyValuesTo(new ArrayList<State>(states.size()));
+		int evicted = 0;
+		for (State state : all)
+		{
+			if (state.updatedNanos - cutoffNanos < 0L)
+			{
+				states.remove(state.hash);
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return the number of times a device's filter was restarted after a long gap or an implausible jump.
+	 */
+	long getResetCount()
+	{
+		return resetCount;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private void predict(State state, double dt)
+	{
+		state.north += state.northVelocity * dt;
+		state.east += state.eastVelocity * dt;
+
+		//P = F P F' + Q, with white-noise acceleration
+		double dt2 = dt * dt;
+		state.p00 += 2.0 * dt * state.p01 + dt2 * state.p11 + accelerationVariance * dt2 * dt2 * 0.25;
+		state.p01 += dt * state.p11 + accelerationVariance * dt2 * dt * 0.5;
+		state.p11 += accelerationVariance * dt2;
+	}
+
+	private void restart(State state, ParsedUDPPacket packet, double measurementVariance, long nowNanos)
+	{
+		state.reset(packet.getLatitude(), packet.getLongitude(), measurementVariance, nowNanos);
+		resetCount++;
+	}
+
+	/**
+	 * One device's filter. Positions are in metres north and east of the origin.
+	 */
+	private static final class State
+	{
+		long hash;
+		double originLatitude, originLongitude, metresPerDegreeLongitude;
+		double north, east, northVelocity, eastVelocity;
+		double p00, p01, p11;
+		long updatedNanos;
+		//when the last fix was taken, by the sender's clock (or NO_TIMESTAMP) and by ours, in milliseconds
+		long timestamp, arrival;
+
+		void reset(double latitude, double longitude, double variance, long nowNanos)
+		{
+			originLatitude = latitude;
+			originLongitude = longitude;
+			metresPerDegreeLongitude = METRES_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+			north = east = 0.0;
+			northVelocity = eastVelocity = 0.0;
+			p00 = variance;
+			p01 = 0.0;
+			p11 = INITIAL_VELOCITY_VARIANCE;
+			updatedNanos = nowNanos;
+		}
+	}
+}
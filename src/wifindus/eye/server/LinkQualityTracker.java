@@ -0,0 +1,387 @@
+package wifindus.eye.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import wifindus.LongHashMap;
+import wifindus.ParsedUDPPacket;
+
+/**
+ * Measures, per sender hash, how many updates are lost, reordered or duplicated between the sender
+ * and the server, so that bad devices and mesh links can be found while an event is running.
+ * <br><br>
+ * Senders that include a sequence number (<code>seq</code>) are checked against it: a jump forwards
+ * counts the skipped numbers as missing, and a number that turns up after a later one is counted as
+ * reordered (and no longer missing) or, if it has already been seen, as a duplicate. The last 64 numbers
+ * received are remembered in a bitmap to tell the two apart. A jump of more than {@link #MAX_SEQUENCE_JUMP}
+ * in either direction is taken to be the sender restarting its count, not loss. Senders without sequence
+ * numbers only have duplicates and reordering measured, by timestamp.
+ * <br><br>
+ * Counts are kept in a ring of {@link #BUCKETS} buckets per sender covering the rolling window, so rates
+ * reflect recent conditions rather than the whole event. Records are checked as soon as they're parsed,
+ * so anything the server itself dropped before that (receive queue overflow, rate limiting) shows up as
+ * loss too; compare against the pipeline's own drop counters.
+ * <br><br>
+ * Reordering is judged by when records arrived, not when they were checked. Each sender's records are parsed
+ * by one worker per receive shard, in the order they arrived, but a sender heard on more than one shard
+ * (e.g. relayed by different nodes) can have a record checked after a later one that it actually arrived before.
+ * Such a record is counted as received (and no longer missing), not reordered.
+ * <br><br>
+ * Senders are spread across independently locked stripes; safe to call from any number of parse workers.
+ * @author Mark 'marzer' Gillard
+ */
+final class LinkQualityTracker
+{
+	/**
+	 * The number of buckets the rolling window is divided into.
+	 */
+	static final int BUCKETS = 6;
+
+	/**
+	 * Sequence jumps larger than this (forwards or backwards) are treated as the sender restarting.
+	 */
+	static final long MAX_SEQUENCE_JUMP = 1000L;
+
+	//counter offsets within a bucket
+	private static final int RECEIVED = 0;
+	private static final int MISSING = 1;
+	private static final int REORDERED = 2;
+	private static final int DUPLICATES = 3;
+	private static final int COUNTERS = 4;
+
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final long bucketNanos;
+	private final AtomicLong missingCount = new AtomicLong();
+	private final AtomicLong reorderedCount = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong restartCount = new AtomicLong();
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new LinkQualityTracker.
+	 * @param stripes The number of independently locked stripes. Rounded up to a power of two.
+	 * @param window The length of the rolling window, in milliseconds.
+	 */
+	LinkQualityTracker(int stripes, int window)
+	{
+		if (stripes < 1)
+			throw new IllegalArgumentException("Parameter 'stripes' must be greater than zero.");
+		if (window < BUCKETS)
+			throw new IllegalArgumentException("Parameter 'window' must be at least " + BUCKETS + " milliseconds.");
+
+		int stripeCount = Integer.highestOneBit(stripes);
+		if (stripeCount < stripes)
+			stripeCount <<= 1;
+		this.stripes = new Stripe[stripeCount];
+		stripeMask = stripeCount - 1;
+		for (int i = 0; i < stripeCount; i++)
+			this.stripes[i] = new Stripe();
+		bucketNanos = window * 1000000L / BUCKETS;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Records the arrival of a parsed packet.
+	 * @param packet A device or node packet. Packets without a hash are ignored.
+	 * @param receivedNanos The value of System.nanoTime() when the packet's datagram was received.
+	 */
+	void record(ParsedUDPPacket packet, long receivedNanos)
+	{
+		if (!packet.has(ParsedUDPPacket.FIELD_HASH))
+			return;
+
+		long hash = packet.getHashKey();
+		Stripe stripe = stripes[(int)((hash * 0x9E3779B97F4A7C15L) >>> 58) & stripeMask];
+		synchronized (stripe)
+		{
+			Link link = stripe.links.get(hash);
+			if (link == null)
+			{
+				link = new Link(hash, packet.getType());
+				link.seenNanos = receivedNanos;
+				stripe.links.put(hash, link);
+			}
+			link.rotate(receivedNanos / bucketNanos);
+			if (receivedNanos - link.seenNanos > 0L)
+				link.seenNanos = receivedNanos;
+			if (packet.has(ParsedUDPPacket.FIELD_SEQUENCE))
+				recordSequence(link, packet.getSequence(), receivedNanos);
+			else if (packet.has(ParsedUDPPacket.FIELD_TIMESTAMP))
+				recordTimestamp(link, packet.getTimestamp(), receivedNanos);
+			else
+				link.count(RECEIVED, 1);
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the rolling statistics of every sender of a given type.
+	 * @param type ParsedUDPPacket.TYPE_DEVICE or ParsedUDPPacket.TYPE_NODE.
+	 * @param nowNanos The current value of System.nanoTime().
+	 * @return A new list, in no particular order.
+	 */
+	List<LinkStats> snapshot(int type, long nowNanos)
+	{
+		List<LinkStats> stats = new ArrayList<>();
+		List<Link> links = new ArrayList<>();
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				links.clear();
+				stripe.links.copyValuesTo(links);
+				for (Link link : links)
+				{
+					if (link.type != type)
+						continue;
+					link.rotate(nowNanos / bucketNanos);
+					int[] totals = new int[COUNTERS];
+					for (int i = 0; i < link.buckets.length; i++)
+						totals[i % COUNTERS] += link.buckets[i];
+					stats.add(new LinkStats(link.hash, link.type, link.sequenced,
+						totals[RECEIVED],
+						Math.max(0, totals[MISSING] - totals[REORDERED]),
+						totals[REORDERED],
+						totals[DUPLICATES],
+						(nowNanos - link.seenNanos) / 1000000L));
+				}
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Forgets senders that haven't been heard from for a while.
+	 * @param cutoffNanos Senders last heard from before this System.nanoTime() value are removed.
+	 * @return The number of senders removed.
+	 */
+	int evict(long cutoffNanos)
+	{
+		int evicted = 0;
+		List<Link> links = new ArrayList<>();
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				links.clear();
+				stripe.links.copyValuesTo(links);
+				for (Link link : links)
+				{
+					if (link.seenNanos - cutoffNanos < 0L)
+					{
+						stripe.links.remove(link.hash);
+						evicted++;
+					}
+				}
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * @return the number of senders being tracked.
+	 */
+	int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				size += stripe.links.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the total number of sequence numbers skipped over (before any turned up late).
+	 */
+	long getMissingCount()
+	{
+		return missingCount.get();
+	}
+
+	/**
+	 * @return the total number of updates that arrived after a later one from the same sender.
+	 */
+	long getReorderedCount()
+	{
+		return reorderedCount.get();
+	}
+
+	/**
+	 * @return the total number of duplicate updates.
+	 */
+	long getDuplicateCount()
+	{
+		return duplicateCount.get();
+	}
+
+	/**
+	 * @return the number of times a sender's sequence numbers jumped far enough to be treated as a restart.
+	 */
+	long getRestartCount()
+	{
+		return restartCount.get();
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private void recordSequence(Link link, long sequence, long receivedNanos)
+	{
+		if (!link.sequenced)
+		{
+			link.sequenced = true;
+			restart(link, sequence, receivedNanos);
+			return;
+		}
+
+		long jump = sequence - link.lastSequence;
+		if (jump > MAX_SEQUENCE_JUMP || jump < -MAX_SEQUENCE_JUMP)
+		{
+			restartCount.incrementAndGet();
+			restart(link, sequence, receivedNanos);
+		}
+		else if (jump > 0L)
+		{
+			//numbers skipped over are missing until they turn up
+			link.count(RECEIVED, 1);
+			if (jump > 1L)
+			{
+				link.count(MISSING, (int)(jump - 1L));
+				missingCount.addAndGet(jump - 1L);
+			}
+			link.seenSequences = jump >= 64L ? 1L : (link.seenSequences << jump) | 1L;
+			link.lastSequence = sequence;
+			link.lastReceivedNanos = receivedNanos;
+		}
+		else if (jump > -64L && (link.seenSequences & (1L << -jump)) != 0L)
+		{
+			link.count(DUPLICATES, 1);
+			duplicateCount.incrementAndGet();
+		}
+		else
+		{
+			//late (anything older than the bitmap is assumed to be late rather than a duplicate)
+			if (jump > -64L)
+				link.seenSequences |= 1L << -jump;
+			link.count(RECEIVED, 1);
+			if (receivedNanos - link.lastReceivedNanos < 0L)
+			{
+				//arrived in order, but was checked after the newer one; it simply isn't missing any more
+				link.count(MISSING, -1);
+				missingCount.decrementAndGet();
+			}
+			else
+			{
+				link.count(REORDERED, 1);
+				reorderedCount.incrementAndGet();
+			}
+		}
+	}
+
+	private void recordTimestamp(Link link, long timestamp, long receivedNanos)
+	{
+		if (!link.timed || timestamp > link.lastTimestamp)
+		{
+			link.timed = true;
+			link.lastTimestamp = timestamp;
+			link.lastReceivedNanos = receivedNanos;
+			link.count(RECEIVED, 1);
+		}
+		else if (timestamp == link.lastTimestamp)
+		{
+			link.count(DUPLICATES, 1);
+			duplicateCount.incrementAndGet();
+		}
+		else
+		{
+			link.count(RECEIVED, 1);
+			if (receivedNanos - link.lastReceivedNanos >= 0L)
+			{
+				link.count(REORDERED, 1);
+				reorderedCount.incrementAndGet();
+			}
+		}
+	}
+
+	private static void restart(Link link, long sequence, long receivedNanos)
+	{
+		link.lastSequence = sequence;
+		link.lastReceivedNanos = receivedNanos;
+		link.seenSequences = 1L;
+		link.count(RECEIVED, 1);
+	}
+
+	private static final class Stripe
+	{
+		final LongHashMap<Link> links = new LongHashMap<>(64);
+	}
+
+	/**
+	 * One sender's state. Each bucket holds COUNTERS ints, and bucket numbers wrap around the ring.
+	 */
+	private static final class Link
+	{
+		final long hash;
+		final int type;
+		final int[] buckets = new int[BUCKETS * COUNTERS];
+		long bucket = Long.MIN_VALUE;
+		long seenNanos;
+		long lastReceivedNanos;
+		boolean sequenced;
+		long lastSequence;
+		long seenSequences;
+		boolean timed;
+		long lastTimestamp;
+
+		Link(long hash, int type)
+		{
+			this.hash = hash;
+			this.type = type;
+		}
+
+		/**
+		 * Moves the window forward to an absolute bucket number, clearing the buckets it passes over.
+		 */
+		void rotate(long to)
+		{
+			if (bucket == Long.MIN_VALUE || to - bucket >= BUCKETS)
+				Arrays.fill(buckets, 0);
+			else
+			{
+				for (long b = bucket + 1L; b <= to; b++)
+				{
+					int offset = offsetOf(b);
+					for (int i = 0; i < COUNTERS; i++)
+						buckets[offset + i] = 0;
+				}
+			}
+			if (bucket == Long.MIN_VALUE || to > bucket)
+				bucket = to;
+		}
+
+		void count(int counter, int amount)
+		{
+			buckets[offsetOf(bucket) + counter] += amount;
+		}
+
+		private static int offsetOf(long bucket)
+		{
+			//(System.nanoTime() may be negative, and so may bucket numbers)
+			int index = (int)(bucket % BUCKETS);
+			return (index < 0 ? index + BUCKETS : index) * COUNTERS;
+		}
+	}
+}
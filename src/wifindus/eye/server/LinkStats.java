@@ -0,0 +1,197 @@
+package wifindus.eye.server;
+
+import java.util.Comparator;
+
+import wifindus.eye.Hash;
+
+/**
+ * A snapshot of how well one device's or node's updates are reaching the server,
+ * as measured by an {@link IngestPipeline} over its rolling link window (<code>server.link_window</code>).
+ * <br><br>
+ * Loss can only be measured for senders that number their updates (the <code>seq</code> key);
+ * for the rest, {@link #isSequenced()} is FALSE and only duplicates and reordering (judged by
+ * timestamp) are counted. Use one of the COMPARATOR_* constants to rank links, e.g. to find the
+ * worst mesh links during an event.
+ * @author Mark 'marzer' Gillard
+ */
+public final class LinkStats
+{
+	private final long hashKey;
+	private final int type;
+	private final boolean sequenced;
+	private final int received;
+	private final int lost;
+	private final int reordered;
+	private final int duplicates;
+	private final long idleMillis;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	LinkStats(long hashKey, int type, boolean sequenced, int received, int lost, int reordered, int duplicates, long idleMillis)
+	{
+		this.hashKey = hashKey;
+		this.type = type;
+		this.sequenced = sequenced;
+		this.received = received;
+		this.lost = lost;
+		this.reordered = reordered;
+		this.duplicates = duplicates;
+		this.idleMillis = idleMillis;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return the sender's 8-character hash ID.
+	 */
+	public final String getHash()
+	{
+		return Hash.decode(hashKey);
+	}
+
+	/**
+	 * @return the sender's type: ParsedUDPPacket.TYPE_DEVICE or ParsedUDPPacket.TYPE_NODE.
+	 */
+	public final int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return TRUE if the sender numbers its updates, so that loss could be measured.
+	 */
+	public final boolean isSequenced()
+	{
+		return sequenced;
+	}
+
+	/**
+	 * @return the number of distinct updates received in the window, including late ones.
+	 */
+	public final int getReceived()
+	{
+		return received;
+	}
+
+	/**
+	 * @return the number of updates in the window that never arrived (always 0 if the sender isn't sequenced).
+	 */
+	public final int getLost()
+	{
+		return lost;
+	}
+
+	/**
+	 * @return the number of updates in the window that arrived after a later one from the same sender.
+	 */
+	public final int getReordered()
+	{
+		return reordered;
+	}
+
+	/**
+	 * @return the number of extra copies of updates received in the window.
+	 */
+	public final int getDuplicates()
+	{
+		return duplicates;
+	}
+
+	/**
+	 * @return the fraction (0.0 - 1.0) of the sender's updates in the window that never arrived.
+	 */
+	public final double getLossRate()
+	{
+		return received + lost == 0 ? 0.0 : lost / (double)(received + lost);
+	}
+
+	/**
+	 * @return the fraction (0.0 - 1.0) of the updates received in the window that arrived out of order.
+	 */
+	public final double getReorderRate()
+	{
+		return received == 0 ? 0.0 : reordered / (double)received;
+	}
+
+	/**
+	 * @return the fraction (0.0 - 1.0) of the datagrams received from the sender in the window that were duplicates.
+	 */
+	public final double getDuplicateRate()
+	{
+		return received + duplicates == 0 ? 0.0 : duplicates / (double)(received + duplicates);
+	}
+
+	/**
+	 * @return the time since the sender was last heard from, in milliseconds.
+	 */
+	public final long getIdleMillis()
+	{
+		return idleMillis;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LinkStats[" + getHash()
+			+ ", received: " + received
+			+ ", lost: " + (sequenced ? lost + String.format(" (%.1f%%)", getLossRate() * 100.0) : "n/a")
+			+ ", reordered: " + reordered
+			+ ", duplicates: " + duplicates
+			+ ", idle: " + idleMillis + "ms]";
+	}
+
+	/**
+	 * Orders links from the highest loss rate to the lowest, then by the number of updates lost.
+	 */
+	public static final Comparator<LinkStats> COMPARATOR_LOSS_RATE = new Comparator<LinkStats>()
+	{
+		@Override
+		public int compare(LinkStats o1, LinkStats o2)
+		{
+			int comparison = Double.compare(o2.getLossRate(), o1.getLossRate());
+			if (comparison != 0)
+				return comparison;
+			return Integer.compare(o2.lost, o1.lost);
+		}
+	};
+
+	/**
+	 * Orders links from the highest reorder rate to the lowest.
+	 */
+	public static final Comparator<LinkStats> COMPARATOR_REORDER_RATE = new Comparator<LinkStats>()
+	{
+		@Override
+		public int compare(LinkStats o1, LinkStats o2)
+		{
+			return Double.compare(o2.getReorderRate(), o1.getReorderRate());
+		}
+	};
+
+	/**
+	 * Orders links from the highest duplicate rate to the lowest.
+	 */
+	public static final Comparator<LinkStats> COMPARATOR_DUPLICATE_RATE = new Comparator<LinkStats>()
+	{
+		@Override
+		public int compare(LinkStats o1, LinkStats o2)
+		{
+			return Double.compare(o2.getDuplicateRate(), o1.getDuplicateRate());
+		}
+	};
+
+	/**
+	 * Orders links from the longest silent to the most recently heard from.
+	 */
+	public static final Comparator<LinkStats> COMPARATOR_IDLE = new Comparator<LinkStats>()
+	{
+		@Override
+		public int compare(LinkStats o1, LinkStats o2)
+		{
+			return Long.compare(o2.idleMillis, o1.idleMillis);
+		}
+	};
+}
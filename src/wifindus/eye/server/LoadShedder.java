@@ -0,0 +1,171 @@
+package wifindus.eye.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import wifindus.ParsedUDPPacket;
+
+/**
+ * Decides which device packets to give up on when the persist stage of an {@link IngestPipeline}
+ * falls behind, so that the least useful updates are lost first instead of whatever happens to arrive
+ * when the queue overflows. Each policy kicks in when the parse-to-persist queue is filled past its
+ * own threshold (a percentage of the queue's capacity; 0 disables it):
+ * <ol>
+ * <li><strong>Conflate</strong>: the persist stage holds pending rows for longer before flushing them,
+ * so repeated updates from the same device collapse into one database write.</li>
+ * <li><strong>Shed atmosphere</strong>: packets carrying nothing but atmospheric readings
+ * (humidity, air pressure, temperature, light level) are dropped, keeping location updates.</li>
+ * <li><strong>Sample</strong>: packets from low-priority device types are thinned out to one in N.</li>
+ * </ol>
+ * Packets that survive all of these can still be dropped if the queue overflows, as before.
+ * Every decision is counted, so the statistics show how far ingest has degraded.
+ * <br><br>
+ * {@link #admit(ParsedUDPPacket, int)} is thread-safe and may be called from any parse worker;
+ * {@link #isConflating(int)} belongs to the persist stage.
+ * @author Mark 'marzer' Gillard
+ */
+final class LoadShedder
+{
+	private static final int ATMOSPHERE_FIELDS = ParsedUDPPacket.FIELD_HUMIDITY
+		| ParsedUDPPacket.FIELD_AIR_PRESSURE
+		| ParsedUDPPacket.FIELD_TEMPERATURE
+		| ParsedUDPPacket.FIELD_LIGHT_LEVEL;
+	private static final int IGNORED_FIELDS = ParsedUDPPacket.FIELD_HASH | ParsedUDPPacket.FIELD_TIMESTAMP
+		| ParsedUDPPacket.FIELD_SEQUENCE;
+
+	private final int conflateDepth;
+	private final int atmosphereDepth;
+	private final int sampleDepth;
+	private final String[] sampleTypes;
+	private final int sampleKeep;
+	private volatile boolean conflating = false;
+	private volatile long conflationCount = 0L;
+	private final AtomicLong atmosphereShedCount = new AtomicLong();
+	private final AtomicLong sampleShedCount = new AtomicLong();
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new LoadShedder.
+	 * @param capacity The capacity of the queue being protected.
+	 * @param conflatePercent How full the queue must be before flushes are deferred, or 0 to never defer them.
+	 * @param atmospherePercent How full the queue must be before atmosphere-only packets are dropped, or 0 to never drop them.
+	 * @param samplePercent How full the queue must be before low-priority device types are sampled, or 0 to never sample them.
+	 * @param sampleTypes The low-priority device types (e.g. <code>WAT</code>). May be empty.
+	 * @param sampleKeep While sampling, one in this many packets from a low-priority device is kept.
+	 */
+	LoadShedder(int capacity, int conflatePercent, int atmospherePercent, int samplePercent, String[] sampleTypes, int sampleKeep)
+	{
+		if (sampleTypes == null)
+			throw new NullPointerException("Parameter 'sampleTypes' cannot be null.");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Parameter 'capacity' must be greater than zero.");
+		if (sampleKeep < 1)
+			throw new IllegalArgumentException("Parameter 'sampleKeep' must be greater than zero.");
+
+		conflateDepth = toDepth(capacity, conflatePercent);
+		atmosphereDepth = toDepth(capacity, atmospherePercent);
+		sampleDepth = sampleTypes.length == 0 || sampleKeep == 1 ? Integer.MAX_VALUE : toDepth(capacity, samplePercent);
+		this.sampleTypes = sampleTypes.clone();
+		this.sampleKeep = sampleKeep;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Decides whether a device packet should be passed on to the persist stage.
+	 * @param packet A parsed device packet.
+	 * @param depth The current depth of the parse-to-persist queue.
+	 * @return TRUE if the packet should be queued, FALSE if it should be dropped.
+	 */
+	boolean admit(ParsedUDPPacket packet, int depth)
+	{
+		if (depth < atmosphereDepth && depth < sampleDepth)
+			return true;
+
+		//atmosphere-only
+		int fields = packet.getFields() & ~IGNORED_FIELDS;
+		if (depth >= atmosphereDepth && fields != 0 && (fields & ~ATMOSPHERE_FIELDS) == 0)
+		{
+			atmosphereShedCount.incrementAndGet();
+			return false;
+		}
+
+		//low-priority device types
+		//(mixing the hash and timestamp keeps the choice stateless, so parse workers don't have to share a counter)
+		if (depth >= sampleDepth && packet.has(ParsedUDPPacket.FIELD_DEVICE_TYPE) && isSampledType(packet.getDeviceType()))
+		{
+			long mixed = (packet.getHashKey() * 31L + packet.getTimestamp()) * 0x9E3779B97F4A7C15L;
+			if (((mixed >>> 32) & 0x7FFFFFFFL) % sampleKeep != 0L)
+			{
+				sampleShedCount.incrementAndGet();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether the persist stage should be deferring flushes to conflate more updates.
+	 * Conflation starts once the queue reaches its threshold and stops when it has drained to half of that.
+	 * @param depth The current depth of the parse-to-persist queue.
+	 * @return TRUE if flushes should be deferred.
+	 */
+	boolean isConflating(int depth)
+	{
+		if (!conflating && depth >= conflateDepth)
+		{
+			conflating = true;
+			conflationCount++;
+		}
+		else if (conflating && depth < conflateDepth / 2)
+			conflating = false;
+		return conflating;
+	}
+
+	/**
+	 * @return the number of times the persist stage has started deferring flushes.
+	 */
+	long getConflationCount()
+	{
+		return conflationCount;
+	}
+
+	/**
+	 * @return the number of atmosphere-only packets dropped.
+	 */
+	long getAtmosphereShedCount()
+	{
+		return atmosphereShedCount.get();
+	}
+
+	/**
+	 * @return the number of packets from low-priority device types dropped by sampling.
+	 */
+	long getSampleShedCount()
+	{
+		return sampleShedCount.get();
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private static int toDepth(int capacity, int percent)
+	{
+		if (percent <= 0)
+			return Integer.MAX_VALUE;
+		return Math.max(1, (int)((long)capacity * percent / 100L));
+	}
+
+	private boolean isSampledType(String deviceType)
+	{
+		for (String type : sampleTypes)
+			if (type.equalsIgnoreCase(deviceType))
+				return true;
+		return false;
+	}
+}
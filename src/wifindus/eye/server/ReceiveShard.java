@@ -0,0 +1,146 @@
+package wifindus.eye.server;
+
+import java.io.IOException;
+import java.nio.channels.DatagramChannel;
+
+import wifindus.RingBuffer;
+import wifindus.eye.Hash;
+
+/**
+ * One UDP socket of an {@link IngestPipeline}, along with the datagram holders and
+ * receive-to-parse queues that belong to it. With SO_REUSEPORT several shards can be bound to the
+ * same port, and the kernel spreads incoming datagrams across them; each shard has its own receive
+ * thread and parse workers, so nothing on the receive side is shared between shards.
+ * <br><br>
+ * Each of the shard's parse workers has its own queue, and every sender hash belongs to exactly one of them
+ * (see {@link #route(long)}), so a sender's records are always parsed by the same thread, in the order they
+ * were received. A datagram holding records for several workers is queued for each of them, and
+ * only goes back to {@link #freeDatagrams} once all of them have released it.
+ * @author Mark 'marzer' Gillard
+ */
+final class ReceiveShard
+{
+	/**
+	 * The shard's index within the pipeline.
+	 */
+	final int index;
+
+	/**
+	 * The shard's socket.
+	 */
+	final DatagramChannel channel;
+
+	/**
+	 * Datagram holders that are ready to be received into.
+	 */
+	final RingBuffer<ReceivedDatagram> freeDatagrams;
+
+	/**
+	 * Datagrams waiting to be parsed, one queue per parse worker.
+	 */
+	final RingBuffer<ReceivedDatagram>[] parseQueues;
+
+	/**
+	 * Where received datagrams are recorded, if capture is enabled (null otherwise).
+	 * Only touched by the shard's receive thread once the pipeline is running.
+	 */
+	CaptureJournal journal;
+
+	/**
+	 * Per-source-address rate limiting, if enabled (null otherwise).
+	 * Only touched by the shard's receive thread once the pipeline is running.
+	 */
+	TokenBucketLimiter sourceLimiter;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new ReceiveShard.
+	 * @param index The shard's index within the pipeline.
+	 * @param channel An open, bound channel. The shard takes ownership of it.
+	 * @param queueSize The capacity of each receive-to-parse queue.
+	 * @param parseThreads The number of parse workers serving this shard.
+	 * @param datagramSize The capacity of each datagram holder, in bytes.
+	 * @throws IllegalArgumentException if parseThreads is less than 1 or greater than 64.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	ReceiveShard(int index, DatagramChannel channel, int queueSize, int parseThreads, int datagramSize)
+	{
+		if (channel == null)
+			throw new NullPointerException("Parameter 'channel' cannot be null.");
+		if (parseThreads < 1 || parseThreads > 64)
+			throw new IllegalArgumentException("Parameter 'parseThreads' must be between 1 and 64 (inclusive).");
+
+		this.index = index;
+		this.channel = channel;
+
+		//(every queue can hold every holder, so one busy sender can't be starved by the others' share;
+		// there are more datagram holders than receive queue slots so the parse workers
+		// always have something in hand while the receiver refills the queue)
+		parseQueues = new RingBuffer[parseThreads];
+		for (int i = 0; i < parseThreads; i++)
+			parseQueues[i] = new RingBuffer<>(queueSize);
+		int datagramCount = parseQueues[0].capacity() + parseThreads + 1;
+		freeDatagrams = new RingBuffer<>(datagramCount);
+		for (int i = 0; i < datagramCount; i++)
+			freeDatagrams.offer(new ReceivedDatagram(datagramSize, parseThreads));
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Works out which of the shard's parse workers handles a sender's records.
+	 * @param hash The sender's hash (see {@link wifindus.ParsedUDPPacket#peekHash(java.nio.ByteBuffer, int, int)}).
+	 * Records without a valid hash all go to the first worker.
+	 * @return The index of the worker's queue in {@link #parseQueues}.
+	 */
+	int route(long hash)
+	{
+		if (hash == Hash.INVALID || parseQueues.length == 1)
+			return 0;
+		return (int)(((hash * 0x9E3779B97F4A7C15L) >>> 33) % parseQueues.length);
+	}
+
+	/**
+	 * Releases one parse worker's claim on a datagram, recycling the holder once nobody else has one.
+	 * @param datagram A datagram taken from one of {@link #parseQueues} (or that couldn't be put on one).
+	 */
+	void release(ReceivedDatagram datagram)
+	{
+		if (datagram.references.decrementAndGet() > 0)
+			return;
+		datagram.reset();
+		freeDatagrams.offer(datagram);
+	}
+
+	/**
+	 * @return the number of datagrams waiting in the shard's parse queues
+	 * (one holding records for several workers is counted once for each).
+	 */
+	int getQueueDepth()
+	{
+		int depth = 0;
+		for (RingBuffer<ReceivedDatagram> queue : parseQueues)
+			depth += queue.size();
+		return depth;
+	}
+
+	/**
+	 * Closes the shard's socket, waking its receive thread.
+	 */
+	void close()
+	{
+		try
+		{
+			channel.close();
+		}
+		catch (IOException e)
+		{
+			//
+		}
+	}
+}
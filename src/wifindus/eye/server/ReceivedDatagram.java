@@ -0,0 +1,92 @@
+package wifindus.eye.server;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reusable holder for one raw datagram as it moves from the receive stage of an
+ * {@link IngestPipeline} to the parse stage. Each holder owns a direct buffer for its whole
+ * lifetime, so recycling holders means no per-packet allocation in the receive loop.
+ * @author Mark 'marzer' Gillard
+ */
+final class ReceivedDatagram
+{
+	/**
+	 * The datagram payload. Flipped and ready for reading once the holder has been queued.
+	 */
+	final ByteBuffer data;
+
+	/**
+	 * One view of {@link #data} per parse worker of the receiving shard, so that workers sharing a datagram
+	 * can each walk its records without disturbing the others (see {@link #view(int)}).
+	 */
+	private final ByteBuffer[] views;
+
+	/**
+	 * The address the datagram was received from.
+	 */
+	InetSocketAddress source;
+
+	/**
+	 * The value of System.nanoTime() at the moment the datagram was received.
+	 */
+	long receivedNanos;
+
+	/**
+	 * The value of System.currentTimeMillis() at the moment the datagram was received.
+	 */
+	long receivedTime;
+
+	/**
+	 * The parse workers of the receiving shard that have records in the datagram, as a bitmask of
+	 * their indices (see {@link ReceiveShard#route(long)}).
+	 */
+	long routes;
+
+	/**
+	 * The number of parse workers still holding the datagram (see {@link ReceiveShard#release(ReceivedDatagram)}).
+	 */
+	final AtomicInteger references = new AtomicInteger();
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	ReceivedDatagram(int capacity, int parseThreads)
+	{
+		data = ByteBuffer.allocateDirect(capacity);
+		views = new ByteBuffer[parseThreads];
+		for (int i = 0; i < parseThreads; i++)
+			views[i] = data.duplicate();
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Gets a parse worker's own view of the datagram, with the same position and limit as {@link #data}.
+	 * @param worker The worker's index within the shard.
+	 * @return The view. Only the given worker may use it.
+	 */
+	ByteBuffer view(int worker)
+	{
+		ByteBuffer view = views[worker];
+		view.limit(data.limit());
+		view.position(data.position());
+		return view;
+	}
+
+	/**
+	 * Clears this holder so it can be reused for another datagram.
+	 */
+	void reset()
+	{
+		data.clear();
+		source = null;
+		receivedNanos = 0L;
+		receivedTime = 0L;
+		routes = 0L;
+	}
+}
@@ -2,40 +2,25 @@ package wifindus.eye.server;
 
 import java.awt.event.WindowEvent;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
-import java.sql.PreparedStatement;
-import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
 
 import javax.swing.SwingUtilities;
 
 import wifindus.Debugger;
 import wifindus.DebuggerPanel;
-import wifindus.MySQLResultRow;
-import wifindus.ParsedUDPPacket;
 import wifindus.eye.Device;
 import wifindus.eye.EyeApplication;
-import wifindus.eye.EyeMySQLConnection;
-import wifindus.eye.Hash;
 
 /**
  * A specialized form of {@link EyeApplication} that processes incoming
  * UDP packets from client devices, adds them to a MySQL database, and
  * informs TCP-connected {@link wifindus.eye.dispatcher.Dispatcher} instances that they must update.
+ * To run on a machine without a display, use {@link HeadlessServer} instead.
  * @author Mark 'marzer' Gillard
  */
 public class Server extends EyeApplication
 {
 	private static final long serialVersionUID = -6202164296309727570L;
-	private volatile DatagramSocket udpListenSocket;
-	private transient volatile boolean abortThreads = false;
-	@SuppressWarnings("unused")
-	private volatile Map<String, Long> nodeTimestamps = new HashMap<String, Long>();
-	private volatile Map<String, Long> deviceTimestamps = new HashMap<String, Long>();
+	private transient volatile IngestPipeline ingestPipeline;
 	
 	/////////////////////////////////////////////////////////////////////
 	// CONSTRUCTORS
@@ -49,39 +34,37 @@ public class Server extends EyeApplication
 	{
 		super(args, true, false);
 		
-		//server
-		getConfig().defaultInt("server.udp_port", 33339, 1024, 65535);
-		
-		//open udp socket
-		int udpListenPort = getConfig().getInt("server.udp_port");
-		Debugger.i("Opening listener UDP socket on port " + udpListenPort + "...");
+		//launch udp ingest pipeline
+		ingestPipeline = new IngestPipeline(getConfig(), getMySQL());
 		try
 		{
-			udpListenSocket = new DatagramSocket(udpListenPort);
-			udpListenSocket.setSoTimeout(1000);
-			Debugger.i("Socket opened OK.");
+			ingestPipeline.start();
 		}
-		catch (SocketException e)
+		catch (IOException e)
 		{
 			Debugger.ex(e);
 			dispatchEvent(new WindowEvent(this, WindowEvent.WINDOW_CLOSING));
 		}
-		
-		//launch udp listener thread
-		Thread udpListenThread = new Thread(new UDPListenWorker());
-		udpListenThread.start();
 	}
 	
 	/////////////////////////////////////////////////////////////////////
 	// PUBLIC METHODS
 	/////////////////////////////////////////////////////////////////////
 	
+	/**
+	 * Gets the UDP ingest pipeline.
+	 * @return A reference to the IngestPipeline receiving and persisting client updates.
+	 */
+	public final IngestPipeline getIngestPipeline()
+	{
+		return ingestPipeline;
+	}
+	
 	@Override
 	public void windowClosing(WindowEvent e)
 	{
-		abortThreads = true;
-		if (udpListenSocket != null)
-			udpListenSocket.close();
+		if (ingestPipeline != null)
+			ingestPipeline.stop();
 		super.windowClosing(e);
 	}
 	
@@ -96,212 +79,6 @@ public class Server extends EyeApplication
 		this.getContentPane().add(new DebuggerPanel());
 	}
 	
-	/////////////////////////////////////////////////////////////////////
-	// PRIVATE METHODS
-	/////////////////////////////////////////////////////////////////////
-	
-	private class UDPListenWorker implements Runnable
-	{
-		@Override
-		public void run()
-		{
-			while (!abortThreads)
-			{
-				//wait for incoming data
-				byte[] buffer = new byte[1024];
-				DatagramPacket receivePacket = new DatagramPacket(buffer, buffer.length);
-				try
-				{
-					udpListenSocket.receive(receivePacket);
-				}
-				catch (SocketTimeoutException e)
-				{
-					if (abortThreads)
-						return;
-					continue;
-				}
-				catch (SocketException e)
-				{
-					if (!abortThreads)
-						Debugger.ex(e);
-					return;
-				}
-				catch (IOException e)
-				{
-					Debugger.ex(e);
-					continue;
-				}
-				
-				//parse data out into packets
-				Debugger.v("Update: " + new String(buffer).trim());
-				ParsedUDPPacket parsedPacket = new ParsedUDPPacket(receivePacket);
-				String messageType = parsedPacket.getData().get("ty");
-				if (messageType == null)
-					continue;
-				messageType = messageType.toLowerCase();
-				
-				//handle packet types
-				switch (messageType)
-				{
-					case "node": processNodePacket(parsedPacket); break;
-					case "device": processDevicePacket(parsedPacket); break;
-				}
-			}
-		}
-		
-		private void processNodePacket(ParsedUDPPacket packet)
-		{
-			//sanity checks
-			if (packet == null)
-				return;
-			String hash = getPacketHash(packet);
-			if (hash == null)
-				return;
-		}
-		
-		private void processDevicePacket(ParsedUDPPacket packet)
-		{
-			//sanity checks
-			if (packet == null)
-				return;
-			String hash = getPacketHash(packet);
-			if (hash == null)
-				return;
-			
-			//check last timestamp
-			if (!isNewerTimestamp(hash, deviceTimestamps, packet))
-				return;
-			
-			//build temporary dataset
-			Map <String, String> tempMap = new HashMap<>(); 
-			tempMap.put("hash", "'" + hash + "'");
-			if (packet.getData().containsKey("dt"))
-				tempMap.put("deviceType", "'" + packet.getData().get("dt").toUpperCase() + "'");
-			if (packet.getData().containsKey("user"))
-			{
-				int userID = -1;
-				try
-				{
-					userID = Integer.parseInt(packet.getData().get("user"));
-				}
-				catch(NumberFormatException ex)
-				{
-					userID = -1;
-				}
-				tempMap.put("userID", userID >= 0 ? Integer.toString(userID) : "NULL");
-			}
-			if (packet.getData().containsKey("lat"))
-				tempMap.put("latitude", packet.getData().get("lat"));
-			if (packet.getData().containsKey("long"))
-				tempMap.put("longitude", packet.getData().get("long"));
-			if (packet.getData().containsKey("alt"))
-				tempMap.put("altitude", packet.getData().get("alt"));
-			if (packet.getData().containsKey("acc"))
-				tempMap.put("accuracy", packet.getData().get("acc"));
-			if (packet.getData().containsKey("hum"))
-				tempMap.put("humidity", packet.getData().get("hum"));
-			if (packet.getData().containsKey("pres"))
-				tempMap.put("airPressure", packet.getData().get("pres"));
-			if (packet.getData().containsKey("temp"))
-				tempMap.put("temperature", packet.getData().get("temp"));
-			if (packet.getData().containsKey("lux"))
-				tempMap.put("lightLevel", packet.getData().get("lux"));
-			tempMap.put("address", "'" + packet.getSourceAddress().getHostAddress() + "'");
-			tempMap.put("lastUpdate", "NOW()");
-			
-			//check if record exists, execute appropriate query
-			EyeMySQLConnection mysql = getMySQL();
-			try
-			{
-				MySQLResultRow deviceRow = mysql.fetchSingleDevice(hash);
-				String query;
-				boolean first = true;
-				boolean update = false;
-
-				//if not, use an INSERT query
-				if (deviceRow == null)
-				{
-					//build query string
-					query = "INSERT INTO Devices (";
-					String values = "VALUES (";
-
-					for (Map.Entry< String, String > entry : tempMap.entrySet())
-					{
-						query += (!first ? ", " : "") + entry.getKey();
-						values += (!first ? ", " : "") + entry.getValue();
-						first = false;
-					}
-					query += ") " + values + ")"; 
-				}
-				else //UPDATE query
-				{
-					query = "UPDATE Devices SET ";
-					
-					for (Map.Entry< String, String > entry : tempMap.entrySet())
-					{
-						if (!first)
-							query += ", ";
-						query += entry.getKey() + "=" + entry.getValue();							
-						first = false;
-					}
-					query += " WHERE hash='" + hash + "'";
-					
-					update = true;
-				}
-				
-				//execute sql
-				PreparedStatement statement = mysql.prepareStatement(query);
-				if (update)
-					statement.executeUpdate();
-				else
-					statement.execute();
-				
-				//release statement
-				mysql.release(statement);
-				
-			}
-			catch (SQLException e)
-			{
-				Debugger.ex(e);
-			}
-		}
-		
-		private String getPacketHash(ParsedUDPPacket packet)
-		{
-			if (packet == null)
-				return null;
-			String hash = packet.getData().get("hash");
-			if (hash == null || !Hash.isValid(hash))
-				return null;
-			return hash;
-		}
-		
-		private boolean isNewerTimestamp(final String hash, final Map<String, Long> timestamps, final ParsedUDPPacket packet)
-		{
-			String newTimestampString = packet.getData().get("ts");
-			if (newTimestampString == null || (newTimestampString = newTimestampString.trim()).length() == 0)
-				return false;
-			
-			Long newTimestamp = null;
-			try
-			{
-				newTimestamp = Long.valueOf(Long.parseLong(newTimestampString));
-			}
-			catch (NumberFormatException ex)
-			{
-				return false;
-			}
-			
-			Long lastTimeStamp = timestamps.get(hash);
-			if (lastTimeStamp == null || lastTimeStamp.longValue() < newTimestamp.longValue())
-			{
-				timestamps.put(hash, newTimestamp);
-				return true;
-			}
-			return false;
-		}
-	};
-	
 	@Override public void deviceSelectionChanged(Device device) { }
 	
 	/////////////////////////////////////////////////////////////////////
@@ -0,0 +1,306 @@
+package wifindus.eye.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Tracks the newest sender timestamp seen for each encoded hash, so an {@link IngestPipeline}
+ * can discard packets that arrive late, out of order or more than once.
+ * <br><br>
+ * The table is split into stripes, each an open-addressed set of parallel primitive arrays.
+ * The common case (a hash that's already known) is lock-free: the slot is found by probing and the
+ * timestamp is advanced with a compare-and-set, so any number of ingest threads can check packets at
+ * once without boxing, allocating or hashing Strings. Only adding a new hash, growing a stripe or
+ * evicting idle hashes takes the stripe's lock.
+ * <br><br>
+ * Growing or evicting copies the stripe into new arrays. Each slot is frozen as it's copied, so an update
+ * racing with the copy either lands before it (and is carried over) or finds the slot frozen and is
+ * retried under the lock, against the new arrays, once they've been published. No accepted timestamp is lost.
+ * <br><br>
+ * Memory is bounded by periodically calling {@link #evict(long)}, which drops hashes that haven't
+ * been seen for a given period.
+ * @author Mark 'marzer' Gillard
+ */
+final class TimestampTable
+{
+	private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+	private static final long EMPTY = -1L;
+	//marks a slot that has been copied by a rebuild (so no timestamp may be stored as this value)
+	private static final long FROZEN = Long.MIN_VALUE;
+	//results of tryAdvance()
+	private static final int REJECTED = 0;
+	private static final int ACCEPTED = 1;
+	private static final int RETRY = 2;
+	private static final int MIN_STRIPE_CAPACITY = 16;
+
+	private final Stripe[] stripes;
+	private final int stripeShift;
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong outOfOrderCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new TimestampTable.
+	 * @param stripes The number of independently-locked stripes. Rounded up to a power of two.
+	 * @param expectedSize The number of hashes the table should hold before any stripe needs to grow.
+	 * @throws IllegalArgumentException if stripes is less than 1 or greater than 2^16, or expectedSize is negative.
+	 */
+	TimestampTable(int stripes, int expectedSize)
+	{
+		if (stripes < 1 || stripes > (1 << 16))
+			throw new IllegalArgumentException("Parameter 'stripes' must be between 1 and 2^16 (inclusive).");
+		if (expectedSize < 0)
+			throw new IllegalArgumentException("Parameter 'expectedSize' cannot be negative.");
+
+		int count = Integer.highestOneBit(stripes);
+		if (count < stripes)
+			count <<= 1;
+		stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+		this.stripes = new Stripe[count];
+		int capacity = capacityFor(expectedSize / count);
+		for (int i = 0; i < count; i++)
+			this.stripes[i] = new Stripe(capacity);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Records a timestamp for a hash if it is newer than the last one recorded.
+	 * Safe to call from any number of threads.
+	 * @param hash An encoded hash (never negative).
+	 * @param timestamp The sender's timestamp. Long.MIN_VALUE is treated as Long.MIN_VALUE + 1.
+	 * @return TRUE if this is the first timestamp for the hash or it is newer than the last, FALSE otherwise.
+	 */
+	boolean advance(long hash, long timestamp)
+	{
+		if (timestamp == FROZEN)
+			timestamp++;
+		long mixed = hash * GOLDEN_RATIO;
+		Stripe stripe = stripes[stripeShift == 64 ? 0 : (int)(mixed >>> stripeShift)];
+		long now = System.currentTimeMillis();
+
+		//known hash; lock-free, unless its slot is being copied by a rebuild
+		Slots slots = stripe.slots;
+		int index = slots.find(hash, mixed);
+		if (index >= 0)
+		{
+			int result = tryAdvance(slots, index, timestamp, now);
+			if (result != RETRY)
+				return result == ACCEPTED;
+		}
+
+		//new hash, or one caught mid-rebuild; needs the lock
+		//(which the rebuild holds until it has published the new arrays, so nothing in them is frozen)
+		synchronized (stripe)
+		{
+			slots = stripe.slots;
+			index = slots.find(hash, mixed);
+			if (index >= 0)
+				return tryAdvance(slots, index, timestamp, now) == ACCEPTED;
+			stripe.insert(hash, mixed, timestamp, now);
+			return true;
+		}
+	}
+
+	/**
+	 * Drops any hash that hasn't had a timestamp accepted since a given time.
+	 * A packet from an evicted hash will be accepted as if it were the first seen.
+	 * @param cutoff A value of System.currentTimeMillis(); anything last seen before this is evicted.
+	 * @return The number of hashes evicted.
+	 */
+	int evict(long cutoff)
+	{
+		int evicted = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				evicted += stripe.evict(cutoff);
+			}
+		}
+		evictedCount.addAndGet(evicted);
+		return evicted;
+	}
+
+	/**
+	 * @return the approximate number of hashes being tracked.
+	 */
+	int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes)
+			size += stripe.size;
+		return size;
+	}
+
+	/**
+	 * @return the number of timestamps rejected for being equal to the last one accepted (i.e. duplicates).
+	 */
+	long getDuplicateCount()
+	{
+		return duplicateCount.get();
+	}
+
+	/**
+	 * @return the number of timestamps rejected for being older than the last one accepted.
+	 */
+	long getOutOfOrderCount()
+	{
+		return outOfOrderCount.get();
+	}
+
+	/**
+	 * @return the number of hashes evicted for being idle.
+	 */
+	long getEvictedCount()
+	{
+		return evictedCount.get();
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private int tryAdvance(Slots slots, int index, long timestamp, long now)
+	{
+		while (true)
+		{
+			long last = slots.timestamps.get(index);
+			if (last == FROZEN)
+				return RETRY;
+			if (last >= timestamp)
+			{
+				if (last == timestamp)
+					duplicateCount.incrementAndGet();
+				else
+					outOfOrderCount.incrementAndGet();
+				return REJECTED;
+			}
+			if (slots.timestamps.compareAndSet(index, last, timestamp))
+			{
+				slots.lastSeen.lazySet(index, now);
+				return ACCEPTED;
+			}
+		}
+	}
+
+	private static int capacityFor(int entries)
+	{
+		//keep the load factor at or below 0.5
+		return Math.max(MIN_STRIPE_CAPACITY, Integer.highestOneBit(Math.max(1, entries * 2 - 1)) << 1);
+	}
+
+	/**
+	 * One stripe's storage. The arrays never change size; growing or evicting builds a new Slots
+	 * and publishes it through Stripe.slots. Keys are only ever written under the stripe's lock.
+	 */
+	private static final class Slots
+	{
+		final AtomicLongArray keys;
+		final AtomicLongArray timestamps;
+		final AtomicLongArray lastSeen;
+		final int mask;
+		final int shift;
+
+		Slots(int capacity)
+		{
+			keys = new AtomicLongArray(capacity);
+			timestamps = new AtomicLongArray(capacity);
+			lastSeen = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++)
+				keys.set(i, EMPTY);
+			mask = capacity - 1;
+			shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		}
+
+		int find(long hash, long mixed)
+		{
+			//(skip the top bits of the mix, since they already picked the stripe)
+			int index = (int)(mixed << 16 >>> shift);
+			long key;
+			while ((key = keys.get(index)) != EMPTY)
+			{
+				if (key == hash)
+					return index;
+				index = (index + 1) & mask;
+			}
+			return -1;
+		}
+
+		void put(long hash, long mixed, long timestamp, long seen)
+		{
+			int index = (int)(mixed << 16 >>> shift);
+			while (keys.get(index) != EMPTY)
+				index = (index + 1) & mask;
+
+			//publish the key last, so lock-free readers never see it without its timestamp
+			timestamps.set(index, timestamp);
+			lastSeen.set(index, seen);
+			keys.set(index, hash);
+		}
+	}
+
+	private static final class Stripe
+	{
+		volatile Slots slots;
+		volatile int size = 0;
+
+		Stripe(int capacity)
+		{
+			slots = new Slots(capacity);
+		}
+
+		//must hold the lock
+		void insert(long hash, long mixed, long timestamp, long now)
+		{
+			slots.put(hash, mixed, timestamp, now);
+			size++;
+			if (size > ((slots.mask + 1) >> 1))
+				rebuild(capacityFor(size), Long.MIN_VALUE);
+		}
+
+		//must hold the lock
+		int evict(long cutoff)
+		{
+			int before = size;
+			rebuild(slots.mask + 1, cutoff);
+			return before - size;
+		}
+
+		//copies every slot seen at or after the cutoff into a new set of arrays,
+		//freezing each old slot as it goes so lock-free updates can't land in it after it's been copied
+		//must hold the lock
+		void rebuild(int capacity, long cutoff)
+		{
+			Slots old = slots;
+			int live = 0;
+			for (int i = 0; i <= old.mask; i++)
+				if (old.keys.get(i) != EMPTY && old.lastSeen.get(i) >= cutoff)
+					live++;
+			if (live == size && capacity == old.mask + 1)
+				return;
+
+			Slots rebuilt = new Slots(capacity);
+			live = 0;
+			for (int i = 0; i <= old.mask; i++)
+			{
+				long key = old.keys.get(i);
+				if (key == EMPTY)
+					continue;
+				long timestamp = old.timestamps.getAndSet(i, FROZEN);
+				if (old.lastSeen.get(i) < cutoff)
+					continue;
+				rebuilt.put(key, key * GOLDEN_RATIO, timestamp, old.lastSeen.get(i));
+				live++;
+			}
+			size = live;
+			slots = rebuilt;
+		}
+	}
+}
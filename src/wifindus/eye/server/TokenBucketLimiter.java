@@ -0,0 +1,220 @@
+package wifindus.eye.server;
+
+/**
+ * A set of per-key token buckets (one per source address or sender hash) for throttling senders
+ * that flood the server, sized up front so that checking a key never allocates.
+ * <br><br>
+ * Each bucket is stored as a single 'theoretical arrival time' (the GCRA formulation of a token bucket):
+ * a key may send when its next permitted time is no more than <code>burst - 1</code> token intervals in the
+ * future, and each accepted item pushes that time one interval further. An idle key's time falls behind the
+ * clock, which is the same as its bucket filling back up to <code>burst</code>.
+ * <br><br>
+ * Only a bounded number of keys are tracked. When the table is full, the least recently seen key is forgotten;
+ * if it comes back it simply starts with a full bucket again. That means a flood of distinct (e.g. spoofed)
+ * keys can only ever make the limiter more lenient towards legitimate senders, never lock them out.
+ * <br><br>
+ * Keys are spread across independently locked stripes, so concurrent callers rarely contend.
+ * @author Mark 'marzer' Gillard
+ */
+final class TokenBucketLimiter
+{
+	private final Stripe[] stripes;
+	private final int stripeMask;
+	private final long intervalNanos;
+	private final long toleranceNanos;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new TokenBucketLimiter.
+	 * @param stripes The number of independently locked stripes. Rounded up to a power of two.
+	 * @param capacity The total number of keys to track (divided evenly between stripes).
+	 * @param rate The sustained rate each key is allowed, in items per second.
+	 * @param burst The number of items a key may send at once after being idle.
+	 */
+	TokenBucketLimiter(int stripes, int capacity, double rate, int burst)
+	{
+		if (stripes < 1)
+			throw new IllegalArgumentException("Parameter 'stripes' must be greater than zero.");
+		if (capacity < 1)
+			throw new IllegalArgumentException("Parameter 'capacity' must be greater than zero.");
+		if (rate <= 0.0)
+			throw new IllegalArgumentException("Parameter 'rate' must be greater than zero.");
+		if (burst < 1)
+			throw new IllegalArgumentException("Parameter 'burst' must be greater than zero.");
+
+		int stripeCount = Integer.highestOneBit(stripes);
+		if (stripeCount < stripes)
+			stripeCount <<= 1;
+		this.stripes = new Stripe[stripeCount];
+		stripeMask = stripeCount - 1;
+		int stripeCapacity = Math.max(1, (capacity + stripeCount - 1) / stripeCount);
+		for (int i = 0; i < stripeCount; i++)
+			this.stripes[i] = new Stripe(stripeCapacity);
+		intervalNanos = Math.max(1L, (long)(1e9 / rate));
+		toleranceNanos = intervalNanos * (burst - 1);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Takes a token from a key's bucket.
+	 * @param key The sender's key.
+	 * @param nowNanos The current value of System.nanoTime().
+	 * @return TRUE if the key was within its rate, FALSE if the item should be dropped.
+	 */
+	boolean tryAcquire(long key, long nowNanos)
+	{
+		long mixed = key * 0x9E3779B97F4A7C15L;
+		Stripe stripe = stripes[(int)(mixed >>> 58) & stripeMask];
+		synchronized (stripe)
+		{
+			return stripe.tryAcquire(key, (int)(mixed >>> 32), nowNanos, intervalNanos, toleranceNanos);
+		}
+	}
+
+	/**
+	 * @return the number of keys currently being tracked.
+	 */
+	int size()
+	{
+		int size = 0;
+		for (Stripe stripe : stripes)
+		{
+			synchronized (stripe)
+			{
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * A fixed-size LRU table of buckets. Slots hold the key state and a doubly-linked
+	 * recency list (most recent at the head); an open-addressed index maps keys to slots.
+	 */
+	private static final class Stripe
+	{
+		final long[] keys;
+		final long[] nextAllowed;
+		final int[] prev;
+		final int[] next;
+		final int[] index;
+		final int indexMask;
+		int size = 0;
+		int head = -1;
+		int tail = -1;
+
+		Stripe(int capacity)
+		{
+			keys = new long[capacity];
+			nextAllowed = new long[capacity];
+			prev = new int[capacity];
+			next = new int[capacity];
+			int indexSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+			index = new int[indexSize];
+			indexMask = indexSize - 1;
+		}
+
+		boolean tryAcquire(long key, int hash, long now, long interval, long tolerance)
+		{
+			//find or claim the key's slot
+			int slot = find(key, hash);
+			if (slot < 0)
+			{
+				if (size < keys.length)
+					slot = size++;
+				else
+				{
+					slot = tail;
+					unlink(slot);
+					removeFromIndex(keys[slot]);
+				}
+				keys[slot] = key;
+				nextAllowed[slot] = now;
+				addToIndex(key, hash, slot);
+				linkFront(slot);
+			}
+			else if (slot != head)
+			{
+				unlink(slot);
+				linkFront(slot);
+			}
+
+			//take a token
+			long allowed = Math.max(nextAllowed[slot], now);
+			if (allowed - now > tolerance)
+				return false;
+			nextAllowed[slot] = allowed + interval;
+			return true;
+		}
+
+		private int find(long key, int hash)
+		{
+			for (int i = hash & indexMask; index[i] != 0; i = (i + 1) & indexMask)
+				if (keys[index[i] - 1] == key)
+					return index[i] - 1;
+			return -1;
+		}
+
+		private void addToIndex(long key, int hash, int slot)
+		{
+			int i = hash & indexMask;
+			while (index[i] != 0)
+				i = (i + 1) & indexMask;
+			index[i] = slot + 1;
+		}
+
+		private void removeFromIndex(long key)
+		{
+			int i = (int)((key * 0x9E3779B97F4A7C15L) >>> 32) & indexMask;
+			while (keys[index[i] - 1] != key)
+				i = (i + 1) & indexMask;
+
+			//backward-shift the rest of the cluster so lookups don't need tombstones
+			int gap = i;
+			for (int j = (gap + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask)
+			{
+				long other = keys[index[j] - 1];
+				int home = (int)((other * 0x9E3779B97F4A7C15L) >>> 32) & indexMask;
+				if (((j - home) & indexMask) >= ((j - gap) & indexMask))
+				{
+					index[gap] = index[j];
+					gap = j;
+				}
+			}
+			index[gap] = 0;
+		}
+
+		private void unlink(int slot)
+		{
+			if (prev[slot] >= 0)
+				next[prev[slot]] = next[slot];
+			else
+				head = next[slot];
+			if (next[slot] >= 0)
+				prev[next[slot]] = prev[slot];
+			else
+				tail = prev[slot];
+		}
+
+		private void linkFront(int slot)
+		{
+			prev[slot] = -1;
+			next[slot] = head;
+			if (head >= 0)
+				prev[head] = slot;
+			head = slot;
+			if (tail < 0)
+				tail = slot;
+		}
+	}
+}
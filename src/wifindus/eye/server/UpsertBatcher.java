@@ -0,0 +1,919 @@
+package wifindus.eye.server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import wifindus.Debugger;
+import wifindus.LongHashMap;
+import wifindus.ParsedUDPPacket;
+import wifindus.eye.Hash;
+import wifindus.eye.EyeMySQLConnection;
+
+/**
+ * A write-behind buffer for device or node updates. Parsed packets are merged into a per-hash
+ * 'latest pending state' slot and written to the <code>Devices</code> or <code>Nodes</code> table in batches, using one
+ * parameterised <code>INSERT ... ON DUPLICATE KEY UPDATE</code> statement per distinct set of columns.
+ * With Connector/J's <code>rewriteBatchedStatements</code> enabled, each of those goes over the wire as a
+ * single multi-row upsert, replacing the SELECT-then-INSERT/UPDATE round-trips per packet.
+ * <br><br>
+ * Devices and nodes often report several times within one flush window, and only the newest values matter,
+ * so a packet for a hash that already has a pending slot is merged into it field-by-field
+ * (e.g. one packet carrying only <code>temp</code> and another only <code>lat/long</code> become one row).
+ * Database write volume therefore scales with the number of active senders, not the packet rate.
+ * <br><br>
+ * A batch is flushed when the number of pending rows reaches a size threshold, or when its oldest
+ * slot has been waiting longer than a time threshold.
+ * <br><br>
+ * If a {@link WriteAheadSpool} is attached, rows that can't be written because the database is unavailable
+ * are appended to it rather than lost, and every batch after that goes to the spool too, until it has been
+ * drained back into the database (see {@link #drainIfDue()}). Since the spool is replayed strictly in the order
+ * it was written, and nothing bypasses it while it holds anything, each device's updates still reach the
+ * database in order. Rows the database refuses outright are never spooled, since retrying them can't help;
+ * they're discarded and counted instead (see {@link #getRejectedCount()}).
+ * <br><br>
+ * Not thread-safe; owned by the persist stage of an {@link IngestPipeline}.
+ * @author Mark 'marzer' Gillard
+ */
+class UpsertBatcher
+{
+	//optional columns, in the order they appear in generated statements
+	private static final int[] COLUMN_FIELDS = {
+		ParsedUDPPacket.FIELD_DEVICE_TYPE,
+		ParsedUDPPacket.FIELD_USER,
+		ParsedUDPPacket.FIELD_LATITUDE,
+		ParsedUDPPacket.FIELD_LONGITUDE,
+		ParsedUDPPacket.FIELD_ALTITUDE,
+		ParsedUDPPacket.FIELD_ACCURACY,
+		ParsedUDPPacket.FIELD_HUMIDITY,
+		ParsedUDPPacket.FIELD_AIR_PRESSURE,
+		ParsedUDPPacket.FIELD_TEMPERATURE,
+		ParsedUDPPacket.FIELD_LIGHT_LEVEL,
+		ParsedUDPPacket.FIELD_VOLTAGE,
+		ParsedUDPPacket.FIELD_SMOOTHED_LOCATION
+	};
+	private static final String[][] COLUMN_NAMES = {
+		{ "deviceType" }, { "userID" }, { "latitude" }, { "longitude" }, { "altitude" },
+		{ "accuracy" }, { "humidity" }, { "airPressure" }, { "temperature" }, { "lightLevel" }, { "voltage" },
+		{ "smoothedLatitude", "smoothedLongitude", "smoothedAccuracy" }
+	};
+	private static final int ALL_COLUMNS;
+	/**
+	 * The number of times in a row the oldest spool segment may fail to be read before it's quarantined.
+	 */
+	static final int MAX_READ_FAILURES = 3;
+	//largest possible spool record: length, fields, hash, received time, address, device type, user, 12 doubles
+	private static final int MAX_RECORD_SIZE = 2 + 2 + 6 + 8 + 17 + 256 + 8 + 12 * 8;
+	static
+	{
+		int mask = 0;
+		for (int field : COLUMN_FIELDS)
+			mask |= field;
+		ALL_COLUMNS = mask;
+	}
+
+	/**
+	 * The optional columns of the <code>Devices</code> table.
+	 */
+	static final int DEVICE_COLUMNS = ParsedUDPPacket.FIELD_DEVICE_TYPE
+		| ParsedUDPPacket.FIELD_USER
+		| ParsedUDPPacket.FIELD_LATITUDE
+		| ParsedUDPPacket.FIELD_LONGITUDE
+		| ParsedUDPPacket.FIELD_ALTITUDE
+		| ParsedUDPPacket.FIELD_ACCURACY
+		| ParsedUDPPacket.FIELD_HUMIDITY
+		| ParsedUDPPacket.FIELD_AIR_PRESSURE
+		| ParsedUDPPacket.FIELD_TEMPERATURE
+		| ParsedUDPPacket.FIELD_LIGHT_LEVEL
+		| ParsedUDPPacket.FIELD_SMOOTHED_LOCATION;
+
+	/**
+	 * The optional columns of the <code>Nodes</code> table.
+	 */
+	static final int NODE_COLUMNS = ParsedUDPPacket.FIELD_LATITUDE
+		| ParsedUDPPacket.FIELD_LONGITUDE
+		| ParsedUDPPacket.FIELD_ALTITUDE
+		| ParsedUDPPacket.FIELD_ACCURACY
+		| ParsedUDPPacket.FIELD_VOLTAGE;
+
+	private final EyeMySQLConnection mysql;
+	private final String table;
+	private final int columnMask;
+	private final PendingRow[] pending;
+	private final LongHashMap<PendingRow> pendingByHash;
+	private final int[] shapes;
+	private final long flushIntervalNanos;
+	private final String[] queries = new String[ALL_COLUMNS + 1];
+	private final WriteAheadSpool spool;
+	private final ByteBuffer spoolBuffer;
+	private final PendingRow spoolRow = new PendingRow();
+	private final long retryIntervalNanos;
+	private int pendingCount = 0;
+	private long oldestPendingNanos = 0L;
+	private long nextDrainNanos = 0L;
+	private int readFailures = 0;
+	private volatile long mergedCount = 0L;
+	private volatile long writtenCount = 0L;
+	private volatile long failedCount = 0L;
+	private volatile long rejectedCount = 0L;
+	private volatile long flushCount = 0L;
+	private volatile long spooledCount = 0L;
+	private volatile long replayedCount = 0L;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new UpsertBatcher.
+	 * @param mysql The connection to write to.
+	 * @param table The table to write to; either <code>Devices</code> or <code>Nodes</code>.
+	 * @param columns The optional columns the table has (DEVICE_COLUMNS or NODE_COLUMNS).
+	 * Packet fields outside of this set are ignored.
+	 * @param batchSize The number of pending rows that triggers a flush.
+	 * @param flushInterval The maximum time, in milliseconds, a row may wait before triggering a flush.
+	 * @param spool Where rows go while the database is unavailable, or null to discard them.
+	 * @param retryInterval How long to wait after a failed write before trying the database again, in milliseconds.
+	 */
+	UpsertBatcher(EyeMySQLConnection mysql, String table, int columns, int batchSize, int flushInterval,
+		WriteAheadSpool spool, int retryInterval)
+	{
+		if (mysql == null)
+			throw new NullPointerException("Parameter 'mysql' cannot be null.");
+		if (table == null)
+			throw new NullPointerException("Parameter 'table' cannot be null.");
+		if ((columns & ~ALL_COLUMNS) != 0)
+			throw new IllegalArgumentException("Parameter 'columns' contains unsupported fields.");
+		if (batchSize < 1)
+			throw new IllegalArgumentException("Parameter 'batchSize' must be greater than zero.");
+		if (flushInterval < 1)
+			throw new IllegalArgumentException("Parameter 'flushInterval' must be greater than zero.");
+		if (retryInterval < 1)
+			throw new IllegalArgumentException("Parameter 'retryInterval' must be greater than zero.");
+
+		this.mysql = mysql;
+		this.table = table;
+		this.columnMask = columns;
+		this.flushIntervalNanos = flushInterval * 1000000L;
+		pending = new PendingRow[batchSize];
+		for (int i = 0; i < batchSize; i++)
+			pending[i] = new PendingRow();
+		pendingByHash = new LongHashMap<>(batchSize);
+		shapes = new int[batchSize];
+		this.spool = spool;
+		this.retryIntervalNanos = retryInterval * 1000000L;
+		spoolBuffer = spool == null ? null : ByteBuffer.allocate(batchSize * MAX_RECORD_SIZE);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Queues an update, flushing the batch if this fills it. If the same hash already has a pending
+	 * update, the packet's fields are merged over the top of it instead of queuing another write.
+	 * @param packet A packet with a valid hash, newer than any previously added for the same hash.
+	 * Its contents are copied, so it may be reused as soon as this returns.
+	 */
+	void add(ParsedUDPPacket packet)
+	{
+		//conflate with existing slot
+		PendingRow row = pendingByHash.get(packet.getHashKey());
+		if (row != null)
+		{
+			row.merge(packet);
+			mergedCount++;
+			return;
+		}
+		
+		//take a new slot
+		if (pendingCount == 0)
+			oldestPendingNanos = System.nanoTime();
+		row = pending[pendingCount++];
+		row.clear();
+		row.merge(packet);
+		pendingByHash.put(row.hash, row);
+		if (pendingCount == pending.length)
+			flush();
+	}
+
+	/**
+	 * Flushes the batch if its oldest row has been waiting longer than the flush interval.
+	 */
+	void flushIfDue()
+	{
+		flushIfDue(flushIntervalNanos);
+	}
+
+	/**
+	 * Flushes the batch if its oldest row has been waiting longer than the given time. Waiting longer than
+	 * the usual interval lets more updates from the same senders conflate while the database is behind.
+	 * @param maxWaitNanos The longest the oldest row may wait, in nanoseconds.
+	 */
+	void flushIfDue(long maxWaitNanos)
+	{
+		if (pendingCount > 0 && System.nanoTime() - oldestPendingNanos >= maxWaitNanos)
+			flush();
+	}
+
+	/**
+	 * Writes all pending rows to the database, or to the spool if it's holding anything.
+	 */
+	void flush()
+	{
+		if (pendingCount == 0)
+			return;
+		if (spool != null && !spool.isEmpty())
+			spoolRows(ALL_COLUMNS, -1);
+		else if (!write(true))
+			nextDrainNanos = System.nanoTime() + retryIntervalNanos;
+		clearPending();
+		flushCount++;
+	}
+
+	/**
+	 * Writes the oldest segment of the spool back to the database, if the spool holds anything and the retry
+	 * interval has passed since the last failure. Anything pending is appended to the spool first, since it's
+	 * newer than what's already there. The segment is only deleted once all of it has been written; if the
+	 * database becomes unavailable part-way the whole segment is tried again later, which is harmless since every
+	 * row is an upsert of that device's latest state at the time.
+	 * <br><br>
+	 * A segment that fails for any other reason is quarantined instead, so that it can't hold up the rest of
+	 * the spool: if it's corrupt, if it can't be read {@link #MAX_READ_FAILURES} times in a row, or if the database
+	 * rejects any of its rows (the others are still written).
+	 */
+	void drainIfDue()
+	{
+		if (spool == null || spool.isEmpty() || System.nanoTime() < nextDrainNanos)
+			return;
+		flush();
+
+		ByteBuffer records;
+		try
+		{
+			records = spool.readOldest();
+			readFailures = 0;
+		}
+		catch (IOException e)
+		{
+			Debugger.ex(e);
+			if (++readFailures >= MAX_READ_FAILURES)
+			{
+				readFailures = 0;
+				spool.quarantineOldest();
+			}
+			nextDrainNanos = System.nanoTime() + retryIntervalNanos;
+			return;
+		}
+		if (records == null)
+			return;
+
+		//replay it in batches, conflating as we go
+		boolean ok = true;
+		long replayed = 0L;
+		long rejected = rejectedCount;
+		while (ok && spoolRow.read(records))
+		{
+			PendingRow row = pendingByHash.get(spoolRow.hash);
+			if (row == null)
+			{
+				row = pending[pendingCount++];
+				row.clear();
+				pendingByHash.put(spoolRow.hash, row);
+			}
+			row.merge(spoolRow);
+			replayed++;
+			if (pendingCount == pending.length)
+			{
+				ok = write(false);
+				clearPending();
+			}
+		}
+		if (ok && pendingCount > 0)
+			ok = write(false);
+		clearPending();
+		
+		if (!ok)
+		{
+			Debugger.w("Replaying spooled " + table + " rows failed; will retry in " + (retryIntervalNanos / 1000000000L) + "s.");
+			nextDrainNanos = System.nanoTime() + retryIntervalNanos;
+			return;
+		}
+		if (records.hasRemaining() || rejectedCount != rejected)
+		{
+			Debugger.w("Spooled " + table + " segment " + (records.hasRemaining() ? "is corrupt" : "had rows the database rejected")
+				+ "; setting it aside.");
+			spool.quarantineOldest();
+		}
+		else
+			spool.removeOldest();
+		replayedCount += replayed;
+		if (spool.isEmpty())
+			Debugger.i("Spooled " + table + " rows have all been written back to the database.");
+	}
+
+	/**
+	 * Closes the spool, if there is one. Call after the final flush.
+	 */
+	void close()
+	{
+		if (spool != null)
+			spool.close();
+	}
+
+	/**
+	 * @return the number of rows waiting to be flushed.
+	 */
+	int getPendingCount()
+	{
+		return pendingCount;
+	}
+
+	/**
+	 * @return the number of packets that were merged into an existing pending slot rather than adding a row.
+	 */
+	long getMergedCount()
+	{
+		return mergedCount;
+	}
+
+	/**
+	 * @return the number of rows successfully written.
+	 */
+	long getWrittenCount()
+	{
+		return writtenCount;
+	}
+
+	/**
+	 * @return the number of rows that could not be written.
+	 */
+	long getFailedCount()
+	{
+		return failedCount;
+	}
+
+	/**
+	 * @return the number of rows the database refused (e.g. for breaking a constraint), which are discarded.
+	 * These are included in {@link #getFailedCount()}.
+	 */
+	long getRejectedCount()
+	{
+		return rejectedCount;
+	}
+
+	/**
+	 * @return the number of batches flushed.
+	 */
+	long getFlushCount()
+	{
+		return flushCount;
+	}
+
+	/**
+	 * @return the number of rows appended to the spool.
+	 */
+	long getSpooledCount()
+	{
+		return spooledCount;
+	}
+
+	/**
+	 * @return the number of spooled rows written back to the database (before conflation).
+	 */
+	long getReplayedCount()
+	{
+		return replayedCount;
+	}
+
+	/**
+	 * @return the number of spool segments set aside because they couldn't be replayed, or 0 if there's no spool.
+	 */
+	long getQuarantinedSegmentCount()
+	{
+		return spool == null ? 0L : spool.getQuarantinedSegmentCount();
+	}
+
+	/**
+	 * @return the number of segments in the spool, or 0 if there's no spool.
+	 */
+	int getSpoolSegmentCount()
+	{
+		return spool == null ? 0 : spool.getSegmentCount();
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Writes the pending rows to the database. Every hash appears at most once,
+	 * so rows are grouped by column set and each group shares one statement.
+	 * <br><br>
+	 * If a group's batch is refused for any reason other than the database being unavailable (e.g. a value
+	 * the schema won't accept), the group is written again one row at a time, so that only the rows the
+	 * database refuses are lost; those are flagged as rejected and counted.
+	 * @param spoolFailures Append the rows of any group that can't be written because the database is unavailable
+	 * to the spool (if there is one).
+	 * @return FALSE if the database was unavailable for any group, TRUE if every row was either written or rejected.
+	 */
+	private boolean write(boolean spoolFailures)
+	{
+		//find the distinct column sets
+		int shapeCount = 0;
+		for (int i = 0; i < pendingCount; i++)
+		{
+			int columns = pending[i].fields & columnMask;
+			int j = 0;
+			while (j < shapeCount && shapes[j] != columns)
+				j++;
+			if (j == shapeCount)
+				shapes[shapeCount++] = columns;
+		}
+		
+		//write each one out
+		boolean ok = true;
+		for (int s = 0; s < shapeCount; s++)
+		{
+			int columns = shapes[s];
+			int rows = 0;
+			for (int i = 0; i < pendingCount; i++)
+				if ((pending[i].fields & columnMask) == columns)
+					rows++;
+			PreparedStatement statement = null;
+			boolean unavailable = false;
+			try
+			{
+				statement = mysql.prepareStatement(getQuery(columns));
+				for (int i = 0; i < pendingCount; i++)
+				{
+					if ((pending[i].fields & columnMask) != columns)
+						continue;
+					bind(statement, pending[i], columns);
+					statement.addBatch();
+				}
+				statement.executeBatch();
+				writtenCount += rows;
+			}
+			catch (SQLException | IllegalStateException e)
+			{
+				if (isUnavailable(e))
+				{
+					Debugger.ex(e);
+					unavailable = true;
+				}
+				else
+				{
+					Debugger.w("Writing " + rows + " " + table + " rows as one batch failed (" + e.getMessage()
+						+ "); writing them one at a time.");
+					unavailable = !writeEach(columns);
+				}
+			}
+			finally
+			{
+				if (statement != null)
+					mysql.release(statement);
+			}
+			
+			if (!unavailable)
+				continue;
+			ok = false;
+			if (!spoolFailures)
+				continue;
+			if (spool == null)
+				failedCount += countUnwritten(columns);
+			else
+				spoolRows(columnMask, columns);
+		}
+		return ok;
+	}
+
+	/**
+	 * Writes one group of pending rows a statement at a time, flagging any the database refuses as rejected.
+	 * @param columns The field set (after masking) of the rows to write.
+	 * @return FALSE if the database became unavailable part-way; rows not yet written are left unflagged.
+	 */
+	private boolean writeEach(int columns)
+	{
+		for (int i = 0; i < pendingCount; i++)
+		{
+			PendingRow row = pending[i];
+			if ((row.fields & columnMask) != columns || row.rejected)
+				continue;
+			PreparedStatement statement = null;
+			try
+			{
+				statement = mysql.prepareStatement(getQuery(columns));
+				bind(statement, row, columns);
+				statement.executeUpdate();
+				writtenCount++;
+			}
+			catch (SQLException | IllegalStateException e)
+			{
+				if (isUnavailable(e))
+				{
+					Debugger.ex(e);
+					return false;
+				}
+				Debugger.w("The database rejected " + table + " row '" + Hash.decode(row.hash) + "' (" + e.getMessage()
+					+ "); discarding it.");
+				row.rejected = true;
+				rejectedCount++;
+				failedCount++;
+			}
+			finally
+			{
+				if (statement != null)
+					mysql.release(statement);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Tests if a write failed because the database couldn't be reached (or was temporarily unable to
+	 * take it), rather than because of what was being written: a connection error (SQLState class 08),
+	 * a transient or recoverable error (e.g. a deadlock or lock wait timeout), or no pooled connection
+	 * becoming free in time.
+	 */
+	private static boolean isUnavailable(Exception e)
+	{
+		if (e instanceof IllegalStateException)
+			return true;
+		for (Throwable t = e; t != null; t = t.getCause())
+		{
+			if (t instanceof SQLTransientException || t instanceof SQLRecoverableException)
+				return true;
+			if (t instanceof SQLException)
+			{
+				String state = ((SQLException)t).getSQLState();
+				if (state != null && state.startsWith("08"))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private int countUnwritten(int columns)
+	{
+		int rows = 0;
+		for (int i = 0; i < pendingCount; i++)
+			if ((pending[i].fields & columnMask) == columns && !pending[i].rejected)
+				rows++;
+		return rows;
+	}
+
+	/**
+	 * Appends pending rows to the spool.
+	 * @param mask The bits of each row's field set to compare.
+	 * @param columns The field set (after masking) of the rows to append, or -1 for all of them.
+	 */
+	private void spoolRows(int mask, int columns)
+	{
+		spoolBuffer.clear();
+		int rows = 0;
+		for (int i = 0; i < pendingCount; i++)
+		{
+			if ((columns != -1 && (pending[i].fields & mask) != columns) || pending[i].rejected)
+				continue;
+			pending[i].write(spoolBuffer);
+			rows++;
+		}
+		spoolBuffer.flip();
+		if (spool.append(spoolBuffer))
+			spooledCount += rows;
+		else
+			failedCount += rows;
+	}
+
+	private void clearPending()
+	{
+		for (int i = 0; i < pendingCount; i++)
+			pending[i].clear();
+		pendingByHash.clear();
+		pendingCount = 0;
+	}
+
+	private String getQuery(int columns)
+	{
+		String query = queries[columns];
+		if (query != null)
+			return query;
+
+		StringBuilder names = new StringBuilder("hash, address, lastUpdate");
+		StringBuilder values = new StringBuilder("?, ?, ?");
+		StringBuilder updates = new StringBuilder("address=VALUES(address), lastUpdate=VALUES(lastUpdate)");
+		for (int i = 0; i < COLUMN_FIELDS.length; i++)
+		{
+			if ((columns & COLUMN_FIELDS[i]) == 0)
+				continue;
+			for (String name : COLUMN_NAMES[i])
+			{
+				names.append(", ").append(name);
+				values.append(", ?");
+				updates.append(", ").append(name).append("=VALUES(").append(name).append(")");
+			}
+		}
+		query = "INSERT INTO " + table + " (" + names + ") VALUES (" + values + ") ON DUPLICATE KEY UPDATE " + updates;
+		queries[columns] = query;
+		return query;
+	}
+
+	private static void bind(PreparedStatement statement, PendingRow row, int columns) throws SQLException
+	{
+		int index = 1;
+		statement.setString(index++, Hash.decode(row.hash));
+		statement.setString(index++, row.address == null ? "" : row.address.getHostAddress());
+		statement.setTimestamp(index++, new Timestamp(row.received));
+		if ((columns & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0)
+			statement.setString(index++, row.deviceType);
+		if ((columns & ParsedUDPPacket.FIELD_USER) != 0)
+		{
+			if (row.userID >= 0)
+				statement.setLong(index++, row.userID);
+			else
+				statement.setNull(index++, Types.INTEGER);
+		}
+		if ((columns & ParsedUDPPacket.FIELD_LATITUDE) != 0)
+			statement.setDouble(index++, row.latitude);
+		if ((columns & ParsedUDPPacket.FIELD_LONGITUDE) != 0)
+			statement.setDouble(index++, row.longitude);
+		if ((columns & ParsedUDPPacket.FIELD_ALTITUDE) != 0)
+			statement.setDouble(index++, row.altitude);
+		if ((columns & ParsedUDPPacket.FIELD_ACCURACY) != 0)
+			statement.setDouble(index++, row.accuracy);
+		if ((columns & ParsedUDPPacket.FIELD_HUMIDITY) != 0)
+			statement.setDouble(index++, row.humidity);
+		if ((columns & ParsedUDPPacket.FIELD_AIR_PRESSURE) != 0)
+			statement.setDouble(index++, row.airPressure);
+		if ((columns & ParsedUDPPacket.FIELD_TEMPERATURE) != 0)
+			statement.setDouble(index++, row.temperature);
+		if ((columns & ParsedUDPPacket.FIELD_LIGHT_LEVEL) != 0)
+			statement.setDouble(index++, row.lightLevel);
+		if ((columns & ParsedUDPPacket.FIELD_VOLTAGE) != 0)
+			statement.setDouble(index++, row.voltage);
+		if ((columns & ParsedUDPPacket.FIELD_SMOOTHED_LOCATION) != 0)
+		{
+			statement.setDouble(index++, row.smoothedLatitude);
+			statement.setDouble(index++, row.smoothedLongitude);
+			statement.setDouble(index++, row.smoothedAccuracy);
+		}
+	}
+
+	/**
+	 * The latest pending state of one device or node; the union of every field seen since the last flush,
+	 * with newer values overwriting older ones. <code>received</code> is when the newest of them arrived,
+	 * and is what gets stored as <code>lastUpdate</code>, so flushing late (or replaying from the spool)
+	 * doesn't make a sender look more recently heard from than it was.
+	 */
+	private static final class PendingRow
+	{
+		int fields;
+		long hash;
+		long received;
+		boolean rejected;
+		InetAddress address;
+		String deviceType;
+		long userID;
+		double latitude, longitude, altitude, accuracy;
+		double humidity, airPressure, temperature, lightLevel;
+		double voltage;
+		double smoothedLatitude, smoothedLongitude, smoothedAccuracy;
+
+		void merge(ParsedUDPPacket packet)
+		{
+			int incoming = packet.getFields();
+			fields |= incoming;
+			hash = packet.getHashKey();
+			long packetReceived = packet.getReceivedTime();
+			received = Math.max(received, packetReceived == 0L ? System.currentTimeMillis() : packetReceived);
+			address = packet.getSourceAddress();
+			if ((incoming & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0)
+				deviceType = packet.getDeviceType();
+			if ((incoming & ParsedUDPPacket.FIELD_USER) != 0)
+				userID = packet.getUserID();
+			if ((incoming & ParsedUDPPacket.FIELD_LATITUDE) != 0)
+				latitude = packet.getLatitude();
+			if ((incoming & ParsedUDPPacket.FIELD_LONGITUDE) != 0)
+				longitude = packet.getLongitude();
+			if ((incoming & ParsedUDPPacket.FIELD_ALTITUDE) != 0)
+				altitude = packet.getAltitude();
+			if ((incoming & ParsedUDPPacket.FIELD_ACCURACY) != 0)
+				accuracy = packet.getAccuracy();
+			if ((incoming & ParsedUDPPacket.FIELD_HUMIDITY) != 0)
+				humidity = packet.getHumidity();
+			if ((incoming & ParsedUDPPacket.FIELD_AIR_PRESSURE) != 0)
+				airPressure = packet.getAirPressure();
+			if ((incoming & ParsedUDPPacket.FIELD_TEMPERATURE) != 0)
+				temperature = packet.getTemperature();
+			if ((incoming & ParsedUDPPacket.FIELD_LIGHT_LEVEL) != 0)
+				lightLevel = packet.getLightLevel();
+			if ((incoming & ParsedUDPPacket.FIELD_VOLTAGE) != 0)
+				voltage = packet.getVoltage();
+			if ((incoming & ParsedUDPPacket.FIELD_SMOOTHED_LOCATION) != 0)
+			{
+				smoothedLatitude = packet.getSmoothedLatitude();
+				smoothedLongitude = packet.getSmoothedLongitude();
+				smoothedAccuracy = packet.getSmoothedAccuracy();
+			}
+		}
+
+		void merge(PendingRow row)
+		{
+			int incoming = row.fields;
+			fields |= incoming;
+			hash = row.hash;
+			received = Math.max(received, row.received);
+			address = row.address;
+			if ((incoming & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0)
+				deviceType = row.deviceType;
+			if ((incoming & ParsedUDPPacket.FIELD_USER) != 0)
+				userID = row.userID;
+			if ((incoming & ParsedUDPPacket.FIELD_LATITUDE) != 0)
+				latitude = row.latitude;
+			if ((incoming & ParsedUDPPacket.FIELD_LONGITUDE) != 0)
+				longitude = row.longitude;
+			if ((incoming & ParsedUDPPacket.FIELD_ALTITUDE) != 0)
+				altitude = row.altitude;
+			if ((incoming & ParsedUDPPacket.FIELD_ACCURACY) != 0)
+				accuracy = row.accuracy;
+			if ((incoming & ParsedUDPPacket.FIELD_HUMIDITY) != 0)
+				humidity = row.humidity;
+			if ((incoming & ParsedUDPPacket.FIELD_AIR_PRESSURE) != 0)
+				airPressure = row.airPressure;
+			if ((incoming & ParsedUDPPacket.FIELD_TEMPERATURE) != 0)
+				temperature = row.temperature;
+			if ((incoming & ParsedUDPPacket.FIELD_LIGHT_LEVEL) != 0)
+				lightLevel = row.lightLevel;
+			if ((incoming & ParsedUDPPacket.FIELD_VOLTAGE) != 0)
+				voltage = row.voltage;
+			if ((incoming & ParsedUDPPacket.FIELD_SMOOTHED_LOCATION) != 0)
+			{
+				smoothedLatitude = row.smoothedLatitude;
+				smoothedLongitude = row.smoothedLongitude;
+				smoothedAccuracy = row.smoothedAccuracy;
+			}
+		}
+
+		/**
+		 * Appends the row to a spool buffer: record length (ushort), fields (ushort), hash (6 bytes),
+		 * received time (long, epoch milliseconds), address length (byte; 0, 4 or 16) and address, then whichever of device type (byte length + ASCII),
+		 * user ID (long) and the double fields (three for the smoothed location) are present, in column order.
+		 */
+		void write(ByteBuffer out)
+		{
+			int start = out.position();
+			out.putShort((short)0);
+			out.putShort((short)(fields & ALL_COLUMNS));
+			out.putShort((short)(hash >>> 32));
+			out.putInt((int)hash);
+			out.putLong(received);
+			byte[] addressBytes = address == null ? null : address.getAddress();
+			out.put((byte)(addressBytes == null ? 0 : addressBytes.length));
+			if (addressBytes != null)
+				out.put(addressBytes);
+			if ((fields & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0)
+			{
+				byte[] type = deviceType == null ? new byte[0] : deviceType.getBytes(StandardCharsets.US_ASCII);
+				int length = Math.min(type.length, 255);
+				out.put((byte)length);
+				out.put(type, 0, length);
+			}
+			if ((fields & ParsedUDPPacket.FIELD_USER) != 0)
+				out.putLong(userID);
+			if ((fields & ParsedUDPPacket.FIELD_LATITUDE) != 0)
+				out.putDouble(latitude);
+			if ((fields & ParsedUDPPacket.FIELD_LONGITUDE) != 0)
+				out.putDouble(longitude);
+			if ((fields & ParsedUDPPacket.FIELD_ALTITUDE) != 0)
+				out.putDouble(altitude);
+			if ((fields & ParsedUDPPacket.FIELD_ACCURACY) != 0)
+				out.putDouble(accuracy);
+			if ((fields & ParsedUDPPacket.FIELD_HUMIDITY) != 0)
+				out.putDouble(humidity);
+			if ((fields & ParsedUDPPacket.FIELD_AIR_PRESSURE) != 0)
+				out.putDouble(airPressure);
+			if ((fields & ParsedUDPPacket.FIELD_TEMPERATURE) != 0)
+				out.putDouble(temperature);
+			if ((fields & ParsedUDPPacket.FIELD_LIGHT_LEVEL) != 0)
+				out.putDouble(lightLevel);
+			if ((fields & ParsedUDPPacket.FIELD_VOLTAGE) != 0)
+				out.putDouble(voltage);
+			if ((fields & ParsedUDPPacket.FIELD_SMOOTHED_LOCATION) != 0)
+			{
+				out.putDouble(smoothedLatitude);
+				out.putDouble(smoothedLongitude);
+				out.putDouble(smoothedAccuracy);
+			}
+			out.putShort(start, (short)(out.position() - start));
+		}
+
+		/**
+		 * Reads the next row written by {@link #write(ByteBuffer)}, replacing this one's contents.
+		 * The row is parsed from a view bounded by its recorded length, so a damaged record can't read into
+		 * the next one; if its contents don't add up to exactly that length, nothing is consumed.
+		 * @return TRUE if a whole row was read, FALSE at the end of the data or at a truncated or corrupt
+		 * record (in which case the input still has data remaining).
+		 */
+		boolean read(ByteBuffer in)
+		{
+			if (in.remaining() < 2)
+				return false;
+			int length = in.getShort(in.position()) & 0xFFFF;
+			if (length < 19 || in.remaining() < length)
+				return false;
+			ByteBuffer record = in.slice();
+			record.limit(length);
+			record.position(2);
+			clear();
+			try
+			{
+				readFields(record);
+			}
+			catch (BufferUnderflowException e)
+			{
+				clear();
+				return false;
+			}
+			if (record.hasRemaining())
+			{
+				clear();
+				return false;
+			}
+			in.position(in.position() + length);
+			return true;
+		}
+
+		private void readFields(ByteBuffer in)
+		{
+			fields = in.getShort() & 0xFFFF;
+			hash = ((in.getShort() & 0xFFFFL) << 32) | (in.getInt() & 0xFFFFFFFFL);
+			received = in.getLong();
+			int addressLength = in.get() & 0xFF;
+			if (addressLength > 0)
+			{
+				byte[] addressBytes = new byte[addressLength];
+				in.get(addressBytes);
+				try
+				{
+					address = InetAddress.getByAddress(addressBytes);
+				}
+				catch (UnknownHostException e)
+				{
+					address = null;
+				}
+			}
+			if ((fields & ParsedUDPPacket.FIELD_DEVICE_TYPE) != 0)
+			{
+				byte[] type = new byte[in.get() & 0xFF];
+				in.get(type);
+				deviceType = new String(type, StandardCharsets.US_ASCII);
+			}
+			if ((fields & ParsedUDPPacket.FIELD_USER) != 0)
+				userID = in.getLong();
+			if ((fields & ParsedUDPPacket.FIELD_LATITUDE) != 0)
+				latitude = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_LONGITUDE) != 0)
+				longitude = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_ALTITUDE) != 0)
+				altitude = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_ACCURACY) != 0)
+				accuracy = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_HUMIDITY) != 0)
+				humidity = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_AIR_PRESSURE) != 0)
+				airPressure = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_TEMPERATURE) != 0)
+				temperature = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_LIGHT_LEVEL) != 0)
+				lightLevel = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_VOLTAGE) != 0)
+				voltage = in.getDouble();
+			if ((fields & ParsedUDPPacket.FIELD_SMOOTHED_LOCATION) != 0)
+			{
+				smoothedLatitude = in.getDouble();
+				smoothedLongitude = in.getDouble();
+				smoothedAccuracy = in.getDouble();
+			}
+		}
+
+		void clear()
+		{
+			fields = 0;
+			rejected = false;
+			hash = Hash.INVALID;
+			received = 0L;
+			address = null;
+			deviceType = null;
+		}
+	}
+}
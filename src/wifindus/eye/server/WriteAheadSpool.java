@@ -0,0 +1,293 @@
+package wifindus.eye.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+import wifindus.Debugger;
+
+/**
+ * A segmented, append-only spool of records waiting to be written to the database. When the database
+ * is unreachable an {@link UpsertBatcher} appends its pending rows here instead of discarding them,
+ * and reads them back, oldest segment first, once the database recovers.
+ * <br><br>
+ * Records are opaque to the spool; it just keeps them in the order they were appended. Segments are
+ * plain files named <code>prefix-NNNNNN.wfs</code>, each starting with the 8 ASCII bytes <code>WFUSPL02</code>
+ * (records gained each row's arrival time in v02, so <code>WFUSPL01</code> segments left by an older build are
+ * not replayed; their header doesn't match, so they're quarantined like any other bad segment).
+ * A new segment is started once the current one reaches the configured size (so a segment may overrun it
+ * by up to one append), and the oldest segment is deleted once there are more than the configured maximum,
+ * bounding disk usage. Segments left behind by a previous run are picked up again on construction.
+ * <br><br>
+ * A segment that can't be replayed (a bad header, or records the database refuses) is quarantined rather than
+ * retried forever: it's renamed with a {@link #QUARANTINE_EXTENSION} suffix, left on disk for someone to look at,
+ * and no longer counts as part of the spool.
+ * <br><br>
+ * Not thread-safe; owned by a single batcher.
+ * @author Mark 'marzer' Gillard
+ */
+final class WriteAheadSpool
+{
+	static final String EXTENSION = ".wfs";
+	static final String QUARANTINE_EXTENSION = ".bad";
+	static final byte[] MAGIC = "WFUSPL02".getBytes(StandardCharsets.US_ASCII);
+
+	private final File directory;
+	private final String prefix;
+	private final int segmentSize;
+	private final int maxSegments;
+	private final ArrayDeque<File> segments = new ArrayDeque<>();
+	private FileChannel current;
+	private int sequence = 0;
+	private volatile long discardedSegmentCount = 0L;
+	private volatile long quarantinedSegmentCount = 0L;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new WriteAheadSpool, adopting any segments with the same prefix already in the directory.
+	 * @param directory The directory to keep segments in. It will be created when the first segment is written.
+	 * @param prefix The file name prefix for this spool's segments (e.g. <code>devices</code>).
+	 * @param segmentSize The size at which a new segment is started, in bytes.
+	 * @param maxSegments The number of segments to keep before the oldest are deleted.
+	 */
+	WriteAheadSpool(File directory, String prefix, int segmentSize, int maxSegments)
+	{
+		if (directory == null)
+			throw new NullPointerException("Parameter 'directory' cannot be null.");
+		if (prefix == null)
+			throw new NullPointerException("Parameter 'prefix' cannot be null.");
+		if (segmentSize < 1)
+			throw new IllegalArgumentException("Parameter 'segmentSize' must be greater than zero.");
+		if (maxSegments < 1)
+			throw new IllegalArgumentException("Parameter 'maxSegments' must be greater than zero.");
+
+		this.directory = directory;
+		this.prefix = prefix;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+
+		//pick up where a previous run left off
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			Arrays.sort(files);
+			for (File file : files)
+			{
+				String name = file.getName();
+				if (!file.isFile() || !name.startsWith(prefix + "-") || !name.endsWith(EXTENSION))
+					continue;
+				try
+				{
+					int number = Integer.parseInt(name.substring(prefix.length() + 1, name.length() - EXTENSION.length()));
+					sequence = Math.max(sequence, number + 1);
+					segments.addLast(file);
+				}
+				catch (NumberFormatException e)
+				{
+					//not one of ours
+				}
+			}
+			if (!segments.isEmpty())
+				Debugger.i("Found " + segments.size() + " spooled segment(s) for '" + prefix + "' in '" + directory + "'.");
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PACKAGE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * @return TRUE if there is nothing in the spool.
+	 */
+	boolean isEmpty()
+	{
+		return segments.isEmpty();
+	}
+
+	/**
+	 * Appends records to the newest segment, starting a new one first if it's full.
+	 * The data is forced to disk before this returns.
+	 * @param records The records to append, from the buffer's position to its limit. The buffer is consumed.
+	 * @return TRUE if the records were written, FALSE if the spool could not write to disk (the error is logged).
+	 */
+	boolean append(ByteBuffer records)
+	{
+		try
+		{
+			if (current == null || current.size() >= segmentSize)
+				roll();
+			while (records.hasRemaining())
+				current.write(records);
+			current.force(false);
+			return true;
+		}
+		catch (IOException e)
+		{
+			Debugger.e("Could not append to spool '" + prefix + "' in '" + directory + "'.");
+			Debugger.ex(e);
+			closeCurrent();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads the whole of the oldest segment. If that's the segment currently being appended to,
+	 * it is closed, and later appends go to a new one.
+	 * @return The segment's records (without its header), or null if the spool is empty or the segment
+	 * had an invalid header (in which case it has been quarantined).
+	 * @throws IOException if the segment could not be read.
+	 */
+	ByteBuffer readOldest() throws IOException
+	{
+		File oldest = segments.peekFirst();
+		if (oldest == null)
+			return null;
+		if (current != null && segments.size() == 1)
+			closeCurrent();
+
+		ByteBuffer data;
+		try (FileChannel channel = FileChannel.open(oldest.toPath(), StandardOpenOption.READ))
+		{
+			data = ByteBuffer.allocate((int)Math.min(channel.size(), Integer.MAX_VALUE));
+			while (data.hasRemaining() && channel.read(data) >= 0)
+				continue;
+		}
+		data.flip();
+
+		//check the header; a segment that doesn't have one can't be trusted
+		byte[] magic = new byte[MAGIC.length];
+		if (data.remaining() >= magic.length)
+			data.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+		{
+			Debugger.w("Spool segment '" + oldest + "' has an invalid header.");
+			quarantineOldest();
+			return null;
+		}
+		return data.slice();
+	}
+
+	/**
+	 * Deletes the oldest segment, once its records have been dealt with.
+	 */
+	void removeOldest()
+	{
+		File oldest = segments.pollFirst();
+		if (oldest == null)
+			return;
+		if (current != null && segments.isEmpty())
+			closeCurrent();
+		if (!oldest.delete())
+			Debugger.w("Could not delete spool segment '" + oldest + "'.");
+	}
+
+	/**
+	 * Sets the oldest segment aside without deleting it, because it can't be replayed.
+	 */
+	void quarantineOldest()
+	{
+		File oldest = segments.pollFirst();
+		if (oldest == null)
+			return;
+		if (current != null && segments.isEmpty())
+			closeCurrent();
+		quarantinedSegmentCount++;
+		File quarantined = new File(oldest.getPath() + QUARANTINE_EXTENSION);
+		if (oldest.renameTo(quarantined))
+			Debugger.w("Quarantined spool segment '" + oldest + "' as '" + quarantined + "'.");
+		else
+		{
+			Debugger.w("Could not quarantine spool segment '" + oldest + "'; deleting it.");
+			if (!oldest.delete())
+				Debugger.w("Could not delete spool segment '" + oldest + "'.");
+		}
+	}
+
+	/**
+	 * Closes the segment currently being appended to. Anything already appended stays in the spool.
+	 */
+	void close()
+	{
+		closeCurrent();
+	}
+
+	/**
+	 * @return the number of segments in the spool, including the one being appended to.
+	 */
+	int getSegmentCount()
+	{
+		return segments.size();
+	}
+
+	/**
+	 * @return the number of segments deleted before being read back, because the spool was full.
+	 */
+	long getDiscardedSegmentCount()
+	{
+		return discardedSegmentCount;
+	}
+
+	/**
+	 * @return the number of segments set aside because they couldn't be replayed.
+	 */
+	long getQuarantinedSegmentCount()
+	{
+		return quarantinedSegmentCount;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private void roll() throws IOException
+	{
+		closeCurrent();
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory '" + directory + "'.");
+
+		//drop the oldest segments
+		while (segments.size() >= maxSegments)
+		{
+			File oldest = segments.removeFirst();
+			discardedSegmentCount++;
+			Debugger.w("Spool '" + prefix + "' is full; discarding oldest segment '" + oldest + "'.");
+			if (!oldest.delete())
+				Debugger.w("Could not delete spool segment '" + oldest + "'.");
+		}
+
+		//start a new one
+		File file;
+		do
+			file = new File(directory, String.format("%s-%06d%s", prefix, sequence++, EXTENSION));
+		while (file.exists());
+		current = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		segments.addLast(file);
+		ByteBuffer header = ByteBuffer.wrap(MAGIC);
+		while (header.hasRemaining())
+			current.write(header);
+		Debugger.v("Spool '" + prefix + "' started segment '" + file + "'.");
+	}
+
+	private void closeCurrent()
+	{
+		if (current == null)
+			return;
+		try
+		{
+			current.close();
+		}
+		catch (IOException e)
+		{
+			//
+		}
+		current = null;
+	}
+}
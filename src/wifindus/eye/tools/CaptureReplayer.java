@@ -0,0 +1,238 @@
+package wifindus.eye.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import wifindus.Debugger;
+import wifindus.eye.server.CaptureReader;
+import wifindus.eye.server.IngestPipeline;
+
+/**
+ * A standalone tool that feeds datagrams recorded by a server's capture journal back into a
+ * running server's UDP port, either at the original pace (or a multiple of it) or as fast as possible.
+ * Segments from different shards are merged back into arrival order.
+ * The server rate-limits each source address, so busy captures and fast replays should either go to a
+ * server running with <code>server.source_rate=0</code> or be spread over several loopback source addresses;
+ * each original sender keeps to one of them.
+ * <br><br>
+ * Usage: <code>CaptureReplayer [-target host:port] [-speed factor|max] [-sources N] capture files or directories...</code>
+ * <br>
+ * The default target is <code>localhost:33339</code>, the default speed is 1 (real time) and everything
+ * is sent from one source address.
+ * @author Mark 'marzer' Gillard
+ */
+public class CaptureReplayer
+{
+	private static final long REPORT_INTERVAL = 5000000000L;
+
+	private final InetSocketAddress target;
+	private final double speed;
+	private final int sources;
+	private final List<CaptureReader> readers;
+	private volatile IngestPipeline pipeline = null;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new CaptureReplayer.
+	 * @param target The address to send datagrams to.
+	 * @param speed The playback speed relative to the original arrival times, or 0 to send as fast as possible.
+	 * @param sources The number of loopback source addresses to spread the datagrams over (1 sends from any address).
+	 * @param segments The capture segments to replay.
+	 * @throws NullPointerException if target or segments are null.
+	 * @throws IllegalArgumentException if speed is negative or sources is out of range.
+	 * @throws IOException if a segment could not be opened.
+	 */
+	public CaptureReplayer(InetSocketAddress target, double speed, int sources, List<File> segments) throws IOException
+	{
+		if (target == null)
+			throw new NullPointerException("Parameter 'target' cannot be null.");
+		if (segments == null)
+			throw new NullPointerException("Parameter 'segments' cannot be null.");
+		if (speed < 0.0)
+			throw new IllegalArgumentException("Parameter 'speed' cannot be negative.");
+		if (sources < 1 || sources > SourceChannels.MAX_SOURCES)
+			throw new IllegalArgumentException("Parameter 'sources' must be between 1 and " + SourceChannels.MAX_SOURCES + " (inclusive).");
+
+		this.target = target;
+		this.speed = speed;
+		this.sources = sources;
+		readers = new ArrayList<>(segments.size());
+		for (File segment : segments)
+			readers.add(new CaptureReader(segment));
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Sends every datagram in the capture to the target.
+	 * @return The number of datagrams sent.
+	 * @throws IOException if the sending channels could not be opened.
+	 * @throws IllegalArgumentException if more than one source address was requested for a target that isn't loopback.
+	 */
+	public final long replay() throws IOException
+	{
+		//prime each reader with its first record
+		List<CaptureReader> active = new ArrayList<>(readers.size());
+		for (CaptureReader reader : readers)
+			if (reader.next())
+				active.add(reader);
+		if (active.isEmpty())
+			return 0L;
+
+		long sent = 0L;
+		long failed = 0L;
+		long firstTime = Long.MIN_VALUE;
+		long startNanos = System.nanoTime();
+		long lastReport = startNanos;
+		long lastReportSent = 0L;
+		try (SourceChannels channels = new SourceChannels(target, sources))
+		{
+			channels.watch(pipeline);
+			while (!active.isEmpty())
+			{
+				//take the earliest record across all segments
+				//(there's only ever a handful of shards, so a linear scan beats a heap)
+				int earliest = 0;
+				for (int i = 1; i < active.size(); i++)
+					if (active.get(i).getReceivedTime() < active.get(earliest).getReceivedTime())
+						earliest = i;
+				CaptureReader reader = active.get(earliest);
+
+				//wait until it's due
+				if (speed > 0.0)
+				{
+					if (firstTime == Long.MIN_VALUE)
+						firstTime = reader.getReceivedTime();
+					long due = startNanos + (long)((reader.getReceivedTime() - firstTime) / speed);
+					long wait;
+					while ((wait = due - System.nanoTime()) > 0L)
+						LockSupport.parkNanos(wait);
+				}
+
+				//send it
+				try
+				{
+					channels.send(reader.getPayload(), reader.getSource().getAddress().hashCode());
+					sent++;
+				}
+				catch (IOException e)
+				{
+					if (failed++ == 0L)
+						Debugger.ex(e);
+				}
+				if (!reader.next())
+					active.remove(earliest);
+
+				//progress
+				long now = System.nanoTime();
+				if (now - lastReport >= REPORT_INTERVAL)
+				{
+					long limited = channels.getSourceLimitedCount();
+					Debugger.i("Sent " + sent + " datagram(s), "
+						+ String.format("%.0f", (sent - lastReportSent) * 1e9 / (now - lastReport)) + "/s"
+						+ (limited >= 0L ? " (source-limited " + limited + ")." : "."));
+					lastReport = now;
+					lastReportSent = sent;
+				}
+			}
+			channels.reportLimited();
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		Debugger.i("Replay complete: " + sent + " datagram(s) sent in " + String.format("%.2f", seconds) + "s ("
+			+ String.format("%.0f", sent / Math.max(seconds, 1e-9)) + "/s), " + failed + " failed.");
+		return sent;
+	}
+
+	/**
+	 * Watches the server's pipeline when it's running in the same process, so datagrams it drops
+	 * to its per-source rate limit are reported with the replay's progress.
+	 * Takes effect from the next call to {@link #replay()}.
+	 * @param pipeline The pipeline receiving the datagrams, or null to stop watching.
+	 */
+	public final void watch(IngestPipeline pipeline)
+	{
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Command-line entry point.
+	 * @param args See the class description.
+	 */
+	public static void main(String[] args)
+	{
+		Debugger.open(Debugger.Verbosity.Information);
+		String host = "localhost";
+		int port = 33339;
+		double speed = 1.0;
+		int sources = 1;
+		List<File> segments = new ArrayList<>();
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				if (args[i].equalsIgnoreCase("-target") && i < args.length - 1)
+				{
+					String[] parts = args[++i].split(":");
+					host = parts[0];
+					if (parts.length > 1)
+						port = Integer.parseInt(parts[1]);
+				}
+				else if (args[i].equalsIgnoreCase("-speed") && i < args.length - 1)
+				{
+					String value = args[++i];
+					speed = value.equalsIgnoreCase("max") ? 0.0 : Double.parseDouble(value);
+					if (speed <= 0.0 && !value.equalsIgnoreCase("max"))
+						throw new NumberFormatException("Speed must be greater than zero.");
+				}
+				else if (args[i].equalsIgnoreCase("-sources") && i < args.length - 1)
+					sources = Integer.parseInt(args[++i]);
+				else
+				{
+					File file = new File(args[i]);
+					if (file.isDirectory())
+						segments.addAll(CaptureReader.findSegments(file));
+					else
+						segments.add(file);
+				}
+			}
+		}
+		catch (NumberFormatException e)
+		{
+			Debugger.e("Invalid argument: " + e.getMessage());
+			Debugger.close();
+			return;
+		}
+		if (segments.isEmpty())
+		{
+			Debugger.e("Usage: CaptureReplayer [-target host:port] [-speed factor|max] [-sources N] capture files or directories...");
+			Debugger.close();
+			return;
+		}
+
+		try
+		{
+			Debugger.i("Replaying " + segments.size() + " segment(s) to " + host + ":" + port
+				+ (speed > 0.0 ? " at " + speed + "x." : " at maximum speed."));
+			new CaptureReplayer(new InetSocketAddress(host, port), speed, sources, segments).replay();
+		}
+		catch (IllegalArgumentException e)
+		{
+			Debugger.e(e.getMessage());
+		}
+		catch (IOException e)
+		{
+			Debugger.ex(e);
+		}
+		Debugger.close();
+	}
+}
@@ -0,0 +1,453 @@
+package wifindus.eye.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import wifindus.ConfigFile;
+import wifindus.Debugger;
+import wifindus.GPSRectangle;
+import wifindus.ParsedUDPPacket;
+import wifindus.eye.server.IngestPipeline;
+
+/**
+ * A standalone load generator that simulates a fleet of devices and mesh nodes sending
+ * updates to a server over UDP, for finding the ingest ceiling before an event.
+ * <br><br>
+ * Devices random-walk around the venue (the map grid described by the <code>map.*</code> keys in the config)
+ * and send the full set of keys the server understands: <code>hash, ts, seq, dt, user, lat, long, acc, alt, hum,
+ * pres, temp, lux</code>. <code>Devices.userID</code> references the Users table, so devices only send a
+ * <code>user</code> when told how many users exist (ids 1 to N, as created by <code>wfu_populate.sql</code>);
+ * a user that doesn't exist gets the whole batch rejected, which isn't the path being measured.
+ * Nodes stay put and report their position and voltage. Updates are staggered over each report interval,
+ * and a configurable fraction of them are deliberately 'lost' (not sent), which the server should see as gaps in each sender's sequence numbers.
+ * The achieved send rate is reported every few seconds; if it falls short of the target, the
+ * simulator itself is the bottleneck. The server rate-limits each source address, so for ceiling runs either
+ * run it with <code>server.source_rate=0</code> or spread the fleet over several loopback source addresses.
+ * <br><br>
+ * Usage: <code>FleetSimulator [-conf file] [-target host:port] [-devices N] [-nodes M] [-users N]
+ * [-interval seconds] [-node_interval seconds] [-loss fraction] [-duration seconds] [-sources N] [-binary]</code>
+ * <br>
+ * Defaults: the config's <code>server.udp_port</code> on localhost, 100 devices, 10 nodes, a 1 second
+ * device interval, a 5 second node interval, no users, no loss, running until killed, one source address, text packets.
+ * @author Mark 'marzer' Gillard
+ */
+public class FleetSimulator
+{
+	private static final long REPORT_INTERVAL = 5000000000L;
+	//size of the map tile at the standard zoom level, in degrees either side of the centre
+	//(see MapTile; duplicated here so the simulator doesn't need to load the UI classes)
+	private static final double CHUNK_RADIUS = 0.01126;
+	private static final double CHUNK_LONG_SCALE = 1.22;
+	//roughly walking pace, in degrees per second
+	private static final double WALK_SPEED = 0.000015;
+	private static final String[] DEVICE_TYPES = { "PHO", "PHO", "PHO", "TAB", "WAT" };
+	private static final String HASH_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+
+	private final InetSocketAddress target;
+	private final GPSRectangle venue;
+	private final SimulatedSender[] senders;
+	private final long[] intervals;
+	private final int users;
+	private final double loss;
+	private final int sources;
+	private final boolean binary;
+	private final Random random = new Random(0x5EED);
+	private final StringBuilder text = new StringBuilder(256);
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+	private final ParsedUDPPacket packet = new ParsedUDPPacket();
+	private final InetSocketAddress self = new InetSocketAddress("127.0.0.1", 0);
+	private volatile IngestPipeline pipeline = null;
+	private volatile boolean abort = false;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Creates a new FleetSimulator.
+	 * @param target The address to send updates to.
+	 * @param venue The area devices wander around in.
+	 * @param devices The number of devices to simulate.
+	 * @param nodes The number of nodes to simulate.
+	 * @param users The number of users in the database (ids 1 to users) for devices to report,
+	 * or 0 to send no user ids.
+	 * @param deviceInterval The time between updates from each device, in seconds.
+	 * @param nodeInterval The time between updates from each node, in seconds.
+	 * @param loss The fraction of updates (0.0 - 1.0) that are deliberately not sent.
+	 * @param sources The number of loopback source addresses to spread the senders over (1 sends from any address).
+	 * @param binary Send the binary (v2) packet format instead of text.
+	 * @throws NullPointerException if target or venue are null.
+	 * @throws IllegalArgumentException if any count or interval is out of range.
+	 */
+	public FleetSimulator(InetSocketAddress target, GPSRectangle venue, int devices, int nodes, int users,
+		double deviceInterval, double nodeInterval, double loss, int sources, boolean binary)
+	{
+		if (target == null)
+			throw new NullPointerException("Parameter 'target' cannot be null.");
+		if (venue == null)
+			throw new NullPointerException("Parameter 'venue' cannot be null.");
+		if (devices < 0 || nodes < 0 || devices + nodes == 0)
+			throw new IllegalArgumentException("There must be at least one device or node, and neither count can be negative.");
+		if (users < 0)
+			throw new IllegalArgumentException("Parameter 'users' cannot be negative.");
+		if (deviceInterval <= 0.0 || nodeInterval <= 0.0)
+			throw new IllegalArgumentException("Intervals must be greater than zero.");
+		if (loss < 0.0 || loss > 1.0)
+			throw new IllegalArgumentException("Parameter 'loss' must be between 0.0 and 1.0 (inclusive).");
+		if (sources < 1 || sources > SourceChannels.MAX_SOURCES)
+			throw new IllegalArgumentException("Parameter 'sources' must be between 1 and " + SourceChannels.MAX_SOURCES + " (inclusive).");
+
+		this.target = target;
+		this.venue = venue;
+		this.users = users;
+		this.loss = loss;
+		this.sources = sources;
+		this.binary = binary;
+		senders = new SimulatedSender[devices + nodes];
+		intervals = new long[] { (long)(deviceInterval * 1e9), (long)(nodeInterval * 1e9) };
+		for (int i = 0; i < senders.length; i++)
+			senders[i] = new SimulatedSender(i >= devices, i);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Sends updates until the duration elapses or {@link #stop()} is called.
+	 * @param duration How long to run for, in seconds, or 0 to run until stopped.
+	 * @throws IOException if the sending channels could not be opened.
+	 * @throws IllegalArgumentException if more than one source address was requested for a target that isn't loopback.
+	 */
+	public final void run(double duration) throws IOException
+	{
+		double targetRate = 0.0;
+		for (SimulatedSender sender : senders)
+			targetRate += 1e9 / intervals[sender.node ? 1 : 0];
+		Debugger.i("Simulating " + senders.length + " sender(s) against " + target
+			+ ", target rate " + String.format("%.0f", targetRate * (1.0 - loss)) + "/s.");
+
+		long sent = 0L, lost = 0L, failed = 0L;
+		long startNanos = System.nanoTime();
+		long endNanos = duration > 0.0 ? startNanos + (long)(duration * 1e9) : Long.MAX_VALUE;
+		long lastReport = startNanos;
+		long lastReportSent = 0L;
+
+		//stagger first updates randomly across each interval
+		PriorityQueue<SimulatedSender> schedule = new PriorityQueue<>(senders.length, new Comparator<SimulatedSender>()
+		{
+			@Override
+			public int compare(SimulatedSender a, SimulatedSender b)
+			{
+				return Long.compare(a.due, b.due);
+			}
+		});
+		for (SimulatedSender sender : senders)
+		{
+			sender.due = startNanos + (long)(intervals[sender.node ? 1 : 0] * random.nextDouble());
+			schedule.add(sender);
+		}
+
+		try (SourceChannels channels = new SourceChannels(target, sources))
+		{
+			channels.watch(pipeline);
+			while (!abort)
+			{
+				//wait for the next sender due
+				long now = System.nanoTime();
+				if (now >= endNanos)
+					break;
+				SimulatedSender sender = schedule.peek();
+				long wait = sender.due - now;
+				if (wait > 0L)
+				{
+					LockSupport.parkNanos(Math.min(wait, endNanos - now));
+					continue;
+				}
+				schedule.poll();
+				sender.due += intervals[sender.node ? 1 : 0];
+				schedule.add(sender);
+
+				//update and send
+				sender.step(intervals[sender.node ? 1 : 0] / 1e9);
+				sender.sequence++;
+				if (loss > 0.0 && random.nextDouble() < loss)
+					lost++;
+				else
+				{
+					try
+					{
+						encode(sender);
+						channels.send(buffer, sender.index);
+						sent++;
+					}
+					catch (IOException e)
+					{
+						if (failed++ == 0L)
+							Debugger.ex(e);
+					}
+				}
+
+				//progress
+				now = System.nanoTime();
+				if (now - lastReport >= REPORT_INTERVAL)
+				{
+					long limited = channels.getSourceLimitedCount();
+					Debugger.i("Sent " + sent + " update(s), "
+						+ String.format("%.0f", (sent - lastReportSent) * 1e9 / (now - lastReport)) + "/s"
+						+ " (lost " + lost + ", failed " + failed
+						+ (limited >= 0L ? ", source-limited " + limited : "") + ").");
+					lastReport = now;
+					lastReportSent = sent;
+				}
+			}
+			channels.reportLimited();
+		}
+
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		Debugger.i("Simulation complete: " + sent + " update(s) sent in " + String.format("%.2f", seconds) + "s ("
+			+ String.format("%.0f", sent / Math.max(seconds, 1e-9)) + "/s), " + lost + " lost, " + failed + " failed.");
+	}
+
+	/**
+	 * Watches the server's pipeline when it's running in the same process, so datagrams it drops
+	 * to its per-source rate limit are reported with the simulator's progress.
+	 * Takes effect from the next call to {@link #run(double)}.
+	 * @param pipeline The pipeline receiving the updates, or null to stop watching.
+	 */
+	public final void watch(IngestPipeline pipeline)
+	{
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Stops a running simulation.
+	 */
+	public final void stop()
+	{
+		abort = true;
+	}
+
+	/**
+	 * Command-line entry point.
+	 * @param args See the class description.
+	 */
+	public static void main(String[] args)
+	{
+		Debugger.open(Debugger.Verbosity.Information);
+		List<File> configFiles = new ArrayList<>();
+		configFiles.add(new File("eye.conf"));
+		String host = "localhost";
+		int port = -1;
+		int devices = 100, nodes = 10, users = 0, sources = 1;
+		double deviceInterval = 1.0, nodeInterval = 5.0, loss = 0.0, duration = 0.0;
+		boolean binary = false;
+		try
+		{
+			for (int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if (arg.equalsIgnoreCase("-binary"))
+				{
+					binary = true;
+					continue;
+				}
+				if (i == args.length - 1)
+					throw new IllegalArgumentException("Missing value for '" + arg + "'.");
+				String value = args[++i];
+				if (arg.equalsIgnoreCase("-conf"))
+					configFiles.add(new File(value));
+				else if (arg.equalsIgnoreCase("-target"))
+				{
+					String[] parts = value.split(":");
+					host = parts[0];
+					if (parts.length > 1)
+						port = Integer.parseInt(parts[1]);
+				}
+				else if (arg.equalsIgnoreCase("-devices"))
+					devices = Integer.parseInt(value);
+				else if (arg.equalsIgnoreCase("-nodes"))
+					nodes = Integer.parseInt(value);
+				else if (arg.equalsIgnoreCase("-users"))
+					users = Integer.parseInt(value);
+				else if (arg.equalsIgnoreCase("-interval"))
+					deviceInterval = Double.parseDouble(value);
+				else if (arg.equalsIgnoreCase("-node_interval"))
+					nodeInterval = Double.parseDouble(value);
+				else if (arg.equalsIgnoreCase("-loss"))
+					loss = Double.parseDouble(value);
+				else if (arg.equalsIgnoreCase("-duration"))
+					duration = Double.parseDouble(value);
+				else if (arg.equalsIgnoreCase("-sources"))
+					sources = Integer.parseInt(value);
+				else
+					throw new IllegalArgumentException("Unknown argument '" + arg + "'.");
+			}
+
+			//venue and port from config
+			ConfigFile config = new ConfigFile(configFiles);
+			config.defaultInt("server.udp_port", 33339, 1024, 65535);
+			if (port < 0)
+				port = config.getInt("server.udp_port");
+			GPSRectangle venue = getVenue(config);
+			Debugger.i("Venue: " + venue.getNorthWest() + " to " + venue.getSouthEast() + ".");
+
+			final FleetSimulator simulator = new FleetSimulator(new InetSocketAddress(host, port), venue,
+				devices, nodes, users, deviceInterval, nodeInterval, loss, sources, binary);
+			Runtime.getRuntime().addShutdownHook(new Thread()
+			{
+				@Override
+				public void run()
+				{
+					simulator.stop();
+				}
+			});
+			simulator.run(duration);
+		}
+		catch (IllegalArgumentException e)
+		{
+			Debugger.e(e.getMessage());
+			Debugger.e("Usage: FleetSimulator [-conf file] [-target host:port] [-devices N] [-nodes M] [-users N]"
+				+ " [-interval seconds] [-node_interval seconds] [-loss fraction] [-duration seconds] [-sources N] [-binary]");
+		}
+		catch (IOException e)
+		{
+			Debugger.ex(e);
+		}
+		Debugger.close();
+	}
+
+	/**
+	 * Works out the venue area from the map config: the standard-zoom map tile around
+	 * <code>map.center_latitude/longitude</code>, scaled by <code>map.grid_scale_x/y</code>
+	 * (the same area the dispatcher's map grid covers).
+	 * @param config The config to read.
+	 * @return The venue's bounds.
+	 */
+	public static final GPSRectangle getVenue(ConfigFile config)
+	{
+		double latitude = config.getDouble("map.center_latitude", -34.977575);
+		double longitude = config.getDouble("map.center_longitude", 138.54267);
+		double halfHeight = CHUNK_RADIUS * config.getDouble("map.grid_scale_y", 1.0);
+		double halfWidth = CHUNK_RADIUS * CHUNK_LONG_SCALE * config.getDouble("map.grid_scale_x", 1.0);
+		return new GPSRectangle(latitude + halfHeight, longitude - halfWidth,
+			latitude - halfHeight, longitude + halfWidth);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PRIVATE METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	private void encode(SimulatedSender sender)
+	{
+		text.setLength(0);
+		text.append(sender.node ? "ty:node" : "ty:device")
+			.append("|hash:").append(sender.hash)
+			.append("|ts:").append(System.currentTimeMillis())
+			.append("|seq:").append(sender.sequence)
+			.append("|lat:").append(sender.latitude)
+			.append("|long:").append(sender.longitude)
+			.append("|alt:").append(Math.round(sender.altitude * 100.0) / 100.0)
+			.append("|acc:").append(Math.round(sender.accuracy * 100.0) / 100.0);
+		if (sender.node)
+			text.append("|volt:").append(Math.round(sender.voltage * 1000.0) / 1000.0);
+		else
+		{
+			text.append("|dt:").append(sender.deviceType);
+			if (sender.userID > 0)
+				text.append("|user:").append(sender.userID);
+			text.append("|hum:").append(Math.round(sender.humidity * 10.0) / 10.0)
+				.append("|pres:").append(Math.round(sender.airPressure * 10.0) / 10.0)
+				.append("|temp:").append(Math.round(sender.temperature * 10.0) / 10.0)
+				.append("|lux:").append(Math.round(sender.lightLevel));
+		}
+
+		buffer.clear();
+		for (int i = 0; i < text.length(); i++)
+			buffer.put((byte)text.charAt(i));
+		buffer.flip();
+		if (binary && packet.parse(buffer, self))
+		{
+			buffer.clear();
+			packet.writeBinary(buffer);
+			buffer.flip();
+		}
+	}
+
+	private final class SimulatedSender
+	{
+		final boolean node;
+		final int index;
+		final String hash;
+		final String deviceType;
+		final int userID;
+		double latitude, longitude, altitude, accuracy;
+		double heading;
+		double humidity, airPressure, temperature, lightLevel, voltage;
+		long sequence;
+		long due;
+
+		SimulatedSender(boolean node, int index)
+		{
+			this.node = node;
+			this.index = index;
+			char[] chars = new char[8];
+			for (int i = 0; i < chars.length; i++)
+				chars[i] = HASH_CHARS.charAt(random.nextInt(HASH_CHARS.length()));
+			hash = new String(chars);
+			deviceType = DEVICE_TYPES[random.nextInt(DEVICE_TYPES.length)];
+			userID = users == 0 || random.nextInt(4) == 0 ? -1 : 1 + index % users;
+			latitude = venue.getSouthEast().getLatitude() + random.nextDouble() * venue.getHeight();
+			longitude = venue.getNorthWest().getLongitude() + random.nextDouble() * venue.getWidth();
+			altitude = 40.0 + random.nextDouble() * 20.0;
+			accuracy = node ? 2.0 : 5.0 + random.nextDouble() * 15.0;
+			heading = random.nextDouble() * Math.PI * 2.0;
+			humidity = 40.0 + random.nextDouble() * 20.0;
+			airPressure = 1000.0 + random.nextDouble() * 25.0;
+			temperature = 15.0 + random.nextDouble() * 15.0;
+			lightLevel = random.nextDouble() * 1000.0;
+			voltage = 11.5 + random.nextDouble();
+		}
+
+		void step(double seconds)
+		{
+			if (node)
+			{
+				voltage = Math.max(10.0, Math.min(13.0, voltage + (random.nextDouble() - 0.55) * 0.01));
+				return;
+			}
+
+			//wander, turning a little each step and bouncing off the edges of the venue
+			heading += (random.nextDouble() - 0.5) * 0.8;
+			double distance = WALK_SPEED * seconds * (0.5 + random.nextDouble());
+			latitude += Math.cos(heading) * distance;
+			longitude += Math.sin(heading) * distance * CHUNK_LONG_SCALE;
+			double north = venue.getNorthWest().getLatitude(), south = venue.getSouthEast().getLatitude();
+			double west = venue.getNorthWest().getLongitude(), east = venue.getSouthEast().getLongitude();
+			if (latitude > north || latitude < south)
+			{
+				latitude = Math.max(south, Math.min(north, latitude));
+				heading = Math.PI - heading;
+			}
+			if (longitude < west || longitude > east)
+			{
+				longitude = Math.max(west, Math.min(east, longitude));
+				heading = -heading;
+			}
+			accuracy = Math.max(3.0, Math.min(30.0, accuracy + (random.nextDouble() - 0.5)));
+			altitude += (random.nextDouble() - 0.5) * 0.5;
+			humidity = Math.max(0.0, Math.min(100.0, humidity + (random.nextDouble() - 0.5) * 0.2));
+			airPressure += (random.nextDouble() - 0.5) * 0.1;
+			temperature += (random.nextDouble() - 0.5) * 0.1;
+			lightLevel = Math.max(0.0, lightLevel + (random.nextDouble() - 0.5) * 20.0);
+		}
+	}
+}
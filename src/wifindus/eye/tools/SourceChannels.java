@@ -0,0 +1,161 @@
+package wifindus.eye.tools;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+import wifindus.Debugger;
+import wifindus.eye.server.IngestPipeline;
+
+/**
+ * The UDP channels a load tool sends from. A server rate-limits each source address
+ * (<code>server.source_rate</code>, 500/s by default), so load from a single address tops out at the limiter,
+ * not the pipeline; against a loopback target the sends can instead be spread across several addresses
+ * (127.0.0.1, 127.0.0.2, ...), each with its own channel. A warning is logged the first time any one
+ * address sends faster than the default limit.
+ * <br><br>
+ * When the server's {@link IngestPipeline} is in the same process it can be watched, and the datagrams it
+ * drops to the source limit are reported alongside the tool's own progress.
+ * @author Mark 'marzer' Gillard
+ */
+final class SourceChannels implements Closeable
+{
+	//the server's default server.source_rate
+	static final int DEFAULT_SOURCE_RATE = 500;
+	static final int MAX_SOURCES = 254;
+
+	private final DatagramChannel[] channels;
+	private final InetSocketAddress target;
+	private final int[] windowSent;
+	private long windowStart = System.nanoTime();
+	private boolean warned = false;
+	private IngestPipeline pipeline = null;
+	private long limitedBaseline = 0L;
+
+	/////////////////////////////////////////////////////////////////////
+	// CONSTRUCTORS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Opens a channel for each source address.
+	 * @param target The address datagrams will be sent to.
+	 * @param sources The number of source addresses to send from.
+	 * @throws NullPointerException if target is null.
+	 * @throws IllegalArgumentException if sources is out of range, or greater than 1 for a target that isn't loopback.
+	 * @throws IOException if a channel could not be opened or bound.
+	 */
+	SourceChannels(InetSocketAddress target, int sources) throws IOException
+	{
+		if (target == null)
+			throw new NullPointerException("Parameter 'target' cannot be null.");
+		if (sources < 1 || sources > MAX_SOURCES)
+			throw new IllegalArgumentException("Parameter 'sources' must be between 1 and " + MAX_SOURCES + " (inclusive).");
+		if (sources > 1 && (target.getAddress() == null || !target.getAddress().isLoopbackAddress()))
+			throw new IllegalArgumentException("Sending from more than one source address needs a loopback target.");
+
+		this.target = target;
+		channels = new DatagramChannel[sources];
+		windowSent = new int[sources];
+		try
+		{
+			for (int i = 0; i < sources; i++)
+			{
+				channels[i] = DatagramChannel.open();
+				if (sources > 1)
+					channels[i].bind(new InetSocketAddress(
+						InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte)(i + 1) }), 0));
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// PUBLIC METHODS
+	/////////////////////////////////////////////////////////////////////
+
+	/**
+	 * Sends a datagram from one of the source addresses.
+	 * @param buffer The datagram's payload.
+	 * @param source Which source to send from (any value; it's wrapped to the number of sources).
+	 * @throws IOException if the send failed.
+	 */
+	final void send(ByteBuffer buffer, int source) throws IOException
+	{
+		int index = (source & 0x7FFFFFFF) % channels.length;
+		channels[index].send(buffer, target);
+
+		//only look at the clock once an address has sent a second's worth at the limit
+		if (!warned && ++windowSent[index] > DEFAULT_SOURCE_RATE)
+		{
+			long now = System.nanoTime();
+			if (now - windowStart < 1000000000L)
+			{
+				warned = true;
+				Debugger.w("Sending more than " + DEFAULT_SOURCE_RATE + "/s from one source address; unless the server "
+					+ "is running with server.source_rate=0 its per-source limit will cap the measured rate "
+					+ "(or use -sources N with a loopback target).");
+			}
+			else
+			{
+				windowStart = now;
+				for (int i = 0; i < windowSent.length; i++)
+					windowSent[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Watches an in-process pipeline's source-limited count, from its current value.
+	 * @param pipeline The pipeline receiving the datagrams, or null to stop watching.
+	 */
+	final void watch(IngestPipeline pipeline)
+	{
+		this.pipeline = pipeline;
+		limitedBaseline = pipeline == null ? 0L : pipeline.getSourceLimitedCount();
+	}
+
+	/**
+	 * Gets the number of datagrams the watched pipeline has dropped to its per-source limit since it was watched.
+	 * @return The number of source-limited datagrams, or -1 if no pipeline is being watched.
+	 */
+	final long getSourceLimitedCount()
+	{
+		return pipeline == null ? -1L : pipeline.getSourceLimitedCount() - limitedBaseline;
+	}
+
+	/**
+	 * Logs a warning if the watched pipeline dropped anything to its per-source limit.
+	 */
+	final void reportLimited()
+	{
+		long limited = getSourceLimitedCount();
+		if (limited > 0L)
+			Debugger.w("The server dropped " + limited + " datagram(s) to its per-source rate limit, so the rate "
+				+ "it handled is lower than the rate sent; set server.source_rate=0 for ceiling runs.");
+	}
+
+	@Override
+	public void close()
+	{
+		for (DatagramChannel channel : channels)
+		{
+			if (channel == null)
+				continue;
+			try
+			{
+				channel.close();
+			}
+			catch (IOException e)
+			{
+				Debugger.ex(e);
+			}
+		}
+	}
+}
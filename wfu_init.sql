@@ -11,6 +11,7 @@ DROP TABLE IF EXISTS Incidents;
 DROP TABLE IF EXISTS Devices;
 DROP TABLE IF EXISTS Users;
 DROP TABLE IF EXISTS Nodes;
+DROP TABLE IF EXISTS DeletedRows;
 SET foreign_key_checks = 1;
 
 CREATE TABLE Devices (
@@ -25,10 +26,15 @@ CREATE TABLE Devices (
   airPressure          decimal(9, 2), 
   temperature          decimal(9, 2), 
   lightLevel           decimal(9, 2), 
+  smoothedLatitude     decimal(18, 16) CHECK (smoothedLatitude IS NULL OR smoothedLatitude BETWEEN -90.00000000000000 AND 90.00000000000000), 
+  smoothedLongitude    decimal(18, 15) CHECK (smoothedLongitude IS NULL OR smoothedLongitude BETWEEN -180.00000000000000 AND 180.00000000000000), 
+  smoothedAccuracy     decimal(8, 4) CHECK (smoothedAccuracy IS NULL OR smoothedAccuracy BETWEEN 0.0000 AND 9999.9999), 
   lastUpdate           datetime DEFAULT '1970-01-01 00:00:00' NOT NULL, 
   respondingIncidentID int(10),
   userID 			   int(10),
-  PRIMARY KEY (hash)) ENGINE=InnoDB;
+  rowVersion           timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3), 
+  PRIMARY KEY (hash),
+  INDEX (rowVersion)) ENGINE=InnoDB;
   
 CREATE TABLE Users (
   id	        int(10) NOT NULL AUTO_INCREMENT, 
@@ -36,7 +42,9 @@ CREATE TABLE Users (
   nameMiddle    varchar(32) NOT NULL CHECK (LEN(nameMiddle) > 0), 
   nameLast      varchar(32) NOT NULL CHECK (LEN(nameLast) > 0), 
   personnelType char(3) NOT NULL CHECK (personnelType IN('MED','SEC','WFU')), 
-  PRIMARY KEY (id)) ENGINE=InnoDB;
+  rowVersion    timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3), 
+  PRIMARY KEY (id),
+  INDEX (rowVersion)) ENGINE=InnoDB;
   
 CREATE TABLE Incidents (
   id   int(10) NOT NULL AUTO_INCREMENT, 
@@ -52,12 +60,16 @@ CREATE TABLE Incidents (
   code		   varchar(32) NOT NULL DEFAULT '',
   description  varchar(2048) NOT NULL DEFAULT '',
   reportingUserID int(10), 
-  PRIMARY KEY (id)) ENGINE=InnoDB;
+  rowVersion   timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3), 
+  PRIMARY KEY (id),
+  INDEX (rowVersion)) ENGINE=InnoDB;
   
 CREATE TABLE PastIncidentResponders (
   userID     int(10) NOT NULL, 
   incidentID int(10) NOT NULL, 
-  PRIMARY KEY (userID, incidentID)) ENGINE=InnoDB;
+  rowVersion timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3), 
+  PRIMARY KEY (userID, incidentID),
+  INDEX (rowVersion)) ENGINE=InnoDB;
  
 CREATE TABLE Nodes (
   hash       char(8) NOT NULL, 
@@ -68,7 +80,16 @@ CREATE TABLE Nodes (
   accuracy   decimal(8, 4) CHECK (accuracy IS NULL OR accuracy BETWEEN 0.0000 AND 9999.9999), 
   voltage    decimal(6, 4), 
   lastUpdate datetime DEFAULT '1970-01-01 00:00:00' NOT NULL, 
-  PRIMARY KEY (hash)) ENGINE=InnoDB;
+  rowVersion timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3) ON UPDATE CURRENT_TIMESTAMP(3), 
+  PRIMARY KEY (hash),
+  INDEX (rowVersion)) ENGINE=InnoDB;
+
+/* rows deleted from the tables above, so clients syncing by rowVersion can find out about them */
+CREATE TABLE DeletedRows (
+  tableName  varchar(32) NOT NULL, 
+  rowKey     varchar(32) NOT NULL, 
+  deleted    timestamp(3) NOT NULL DEFAULT CURRENT_TIMESTAMP(3), 
+  INDEX (deleted)) ENGINE=InnoDB;
   
 ALTER TABLE Devices
 	ADD INDEX `Responded to by` (respondingIncidentID),
@@ -86,3 +107,12 @@ ALTER TABLE PastIncidentResponders
 	ADD INDEX `Was reponded to by user` (incidentID),
 	ADD CONSTRAINT `Was reponded to by user`
 	FOREIGN KEY (incidentID) REFERENCES Incidents (id);
+
+CREATE TRIGGER `Device deleted` AFTER DELETE ON Devices
+	FOR EACH ROW INSERT INTO DeletedRows (tableName, rowKey) VALUES ('Devices', OLD.hash);
+CREATE TRIGGER `User deleted` AFTER DELETE ON Users
+	FOR EACH ROW INSERT INTO DeletedRows (tableName, rowKey) VALUES ('Users', OLD.id);
+CREATE TRIGGER `Incident deleted` AFTER DELETE ON Incidents
+	FOR EACH ROW INSERT INTO DeletedRows (tableName, rowKey) VALUES ('Incidents', OLD.id);
+CREATE TRIGGER `Node deleted` AFTER DELETE ON Nodes
+	FOR EACH ROW INSERT INTO DeletedRows (tableName, rowKey) VALUES ('Nodes', OLD.hash);